@@ -29,6 +29,24 @@ public class Aborted {
         public AbortException() {
             super("Aborted");
         }
+
+        protected AbortException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Chains rejected by an {@link AdmissionController} or by the executor (see {@link RejectionPolicy})
+     * fail with this exception
+     */
+    public static class OverloadException extends AbortException {
+        public OverloadException() {
+            super("Overloaded - chain not admitted");
+        }
+
+        public OverloadException(String message) {
+            super(message);
+        }
     }
 
     /**
@@ -112,6 +130,6 @@ public class Aborted {
      */
     public static <T, U> CompletionStage<Optional<U>> whenAbortedAsync(CompletionStage<Optional<T>> stage, Supplier<Optional<U>> handler, Executor executor)
     {
-        return stage.thenApplyAsync(optional -> optional.isPresent() ? Optional.empty() : handler.get());
+        return stage.thenApplyAsync(optional -> optional.isPresent() ? Optional.empty() : handler.get(), executor);
     }
 }
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Sheds load at chain admission based on executor queue latency, as CoDel does for packet queues.
+ * Pass an instance to {@link StagedFutureBuilder#withAdmission(AdmissionController)}. The controller
+ * measures how long each task of the admitted chains waits in the executor's queue before it starts (its
+ * "sojourn time"). When the sojourn time stays above <code>target</code> for at least <code>interval</code>
+ * the executor is considered overloaded and new chains are rejected. The chains already admitted keep
+ * running and draining the queue - as soon as a task's sojourn time drops below <code>target</code> all
+ * chains are admitted again. If no task runs for an entire <code>interval</code> while overloaded, one
+ * chain is admitted as a probe.
+ * </p>
+ *
+ * <p>
+ * Rejected chains do not run any tasks. They complete exceptionally with {@link Aborted.OverloadException}.
+ * i.e. under overload some chains fail fast instead of every chain slowing down and timing out.
+ * </p>
+ *
+ * <p>
+ * Use one controller per executor.
+ * </p>
+ */
+public class AdmissionController {
+    private final long targetNanos;
+    private final long intervalNanos;
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    // CoDel state - firstAboveNanos/isDropping are written only while holding the instance lock
+    private volatile long firstAboveNanos = 0;
+    private volatile boolean isDropping = false;
+    private volatile long lastSampleNanos = 0;
+
+    /**
+     * Uses a target of 5ms and an interval of 100ms (the CoDel defaults)
+     */
+    public AdmissionController() {
+        this(Duration.ofMillis(5), Duration.ofMillis(100));
+    }
+
+    /**
+     * @param target acceptable queue sojourn time
+     * @param interval how long the sojourn time must stay above target before shedding starts
+     */
+    public AdmissionController(Duration target, Duration interval) {
+        targetNanos = Objects.requireNonNull(target, "target cannot be null").toNanos();
+        intervalNanos = Objects.requireNonNull(interval, "interval cannot be null").toNanos();
+        if ( intervalNanos <= 0 ) {
+            throw new IllegalArgumentException("interval must be greater than 0");
+        }
+    }
+
+    /**
+     * Return an executor that records the queue sojourn time of each task
+     *
+     * @param executor the executor to wrap
+     * @return wrapped executor
+     */
+    public Executor wrap(Executor executor) {
+        Objects.requireNonNull(executor, "executor cannot be null");
+        return command -> {
+            long enqueuedNanos = System.nanoTime();
+            executor.execute(() -> {
+                record(System.nanoTime() - enqueuedNanos);
+                command.run();
+            });
+        };
+    }
+
+    /**
+     * Decide whether a new chain can start
+     *
+     * @return true if admitted
+     */
+    public boolean tryAdmit() {
+        if ( isDropping ) {
+            long now = System.nanoTime();
+            if ( (now - lastSampleNanos) < intervalNanos ) {
+                rejected.increment();
+                return false;
+            }
+            lastSampleNanos = now;  // nothing has run for an interval - let one chain through as a probe
+        }
+        admitted.increment();
+        return true;
+    }
+
+    /**
+     * @return true if currently shedding load
+     */
+    public boolean isOverloaded() {
+        return isDropping;
+    }
+
+    /**
+     * @return number of chains admitted
+     */
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    /**
+     * @return number of chains rejected
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Record a task's queue sojourn time
+     *
+     * @param sojournNanos time the task waited before starting
+     */
+    public void record(long sojournNanos) {
+        if ( sojournNanos < targetNanos ) {
+            // common case is read-only
+            if ( (firstAboveNanos != 0) || isDropping ) {
+                reset();
+            }
+        } else if ( isDropping ) {
+            lastSampleNanos = System.nanoTime();
+        } else {
+            above(System.nanoTime());
+        }
+    }
+
+    private synchronized void reset() {
+        firstAboveNanos = 0;
+        isDropping = false;
+    }
+
+    private synchronized void above(long now) {
+        if ( isDropping ) {
+            return;
+        }
+        if ( firstAboveNanos == 0 ) {
+            firstAboveNanos = now + intervalNanos;
+        } else if ( (now - firstAboveNanos) >= 0 ) {
+            lastSampleNanos = now;
+            isDropping = true;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import io.soabase.stages.executors.ManagedBlockingExecutor;
+import io.soabase.stages.tracing.Tracing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects traced tasks that probably blocked: tasks that ran for at least the threshold
+ * (system property <code>soabase.stages.blockingThresholdMs</code>, default 10, 0 disables) but used less
+ * than half of that time on-CPU. Only measured when the chain has a tracer and the task isn't
+ * already marked as blocking.
+ */
+class BlockingDetector {
+    static final String thresholdProperty = "soabase.stages.blockingThresholdMs";
+
+    private static final long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(thresholdProperty, 10));
+    private static final ThreadMXBean threadBean = initThreadBean();
+
+    static final long notMeasured = -1;
+
+    static long start(Tracing tracing) {
+        if ( (tracing == null) || (threadBean == null) || ManagedBlockingExecutor.isBlockingTask() ) {
+            return notMeasured;
+        }
+        return threadBean.getCurrentThreadCpuTime();
+    }
+
+    static void end(Tracing tracing, long cpuStartNanos, long durationNanos) {
+        if ( (cpuStartNanos == notMeasured) || (durationNanos < thresholdNanos) ) {
+            return;
+        }
+        long cpuNanos = threadBean.getCurrentThreadCpuTime() - cpuStartNanos;
+        if ( (cpuNanos * 2) < durationNanos ) {
+            tracing.blockingDetected(Duration.ofNanos(durationNanos), Duration.ofNanos(cpuNanos));
+        }
+    }
+
+    private static ThreadMXBean initThreadBean() {
+        if ( thresholdNanos <= 0 ) {
+            return null;
+        }
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            return (bean.isCurrentThreadCpuTimeSupported() && bean.isThreadCpuTimeEnabled()) ? bean : null;
+        } catch (Throwable e) {
+            return null;    // e.g. java.management not available
+        }
+    }
+
+    private BlockingDetector() {
+    }
+}
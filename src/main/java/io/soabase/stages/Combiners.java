@@ -0,0 +1,130 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import io.soabase.stages.time.Scheduler;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Joins multiple StagedFutures using a single countdown per join instead of
+ * a tree of CompletableFutures
+ */
+class Combiners {
+    static <T> StagedFutureTimeout<List<T>> allOf(Collection<? extends StagedFuture<T>> futures) {
+        Objects.requireNonNull(futures, "futures cannot be null");
+        return newStage(futures, join(futures, values -> Optional.of(asList(values))));
+    }
+
+    @SuppressWarnings("unchecked")
+    static <A, B, R> StagedFutureTimeout<R> zipIf(StagedFuture<A> a, StagedFuture<B> b, BiFunction<A, B, Optional<R>> combiner) {
+        Objects.requireNonNull(a, "a cannot be null");
+        Objects.requireNonNull(b, "b cannot be null");
+        Objects.requireNonNull(combiner, "combiner cannot be null");
+
+        List<StagedFuture<?>> futures = Arrays.asList(a, b);
+        StagedFuture<Object[]> joined = newStage(futures, join(futures, Optional::of));
+        // the combiner is a task of the chain - it runs via the executor/tracer like any other
+        return joined.thenIf(values -> combiner.apply((A)values[0], (B)values[1]));
+    }
+
+    private static <U> CompletableFuture<Optional<U>> join(Collection<? extends StagedFuture<?>> futures, Function<Object[], Optional<U>> finisher) {
+        CompletableFuture<Optional<U>> result = new CompletableFuture<>();
+        Object[] values = new Object[futures.size()];
+        AtomicInteger remaining = new AtomicInteger(values.length);
+        int index = 0;
+        for ( StagedFuture<?> future : futures ) {
+            int thisIndex = index++;
+            future.unwrap().whenComplete((optional, e) -> {
+                if ( e != null ) {
+                    result.completeExceptionally(e);
+                } else if ( !optional.isPresent() ) {
+                    result.complete(Optional.empty());  // any abort aborts the join
+                } else {
+                    values[thisIndex] = optional.get();
+                    if ( remaining.decrementAndGet() == 0 ) {
+                        result.complete(finisher.apply(values));
+                    }
+                }
+            });
+        }
+        if ( values.length == 0 ) {
+            result.complete(finisher.apply(values));
+        }
+        return result;
+    }
+
+    static <T> StagedFutureTimeout<T> anyOf(Collection<? extends StagedFuture<T>> futures) {
+        Objects.requireNonNull(futures, "futures cannot be null");
+
+        CompletableFuture<Optional<T>> result = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(futures.size());
+        AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        for ( StagedFuture<T> future : futures ) {
+            future.unwrap().whenComplete((optional, e) -> {
+                if ( (e == null) && optional.isPresent() ) {
+                    result.complete(optional);  // first value wins
+                    return;
+                }
+
+                if ( e != null ) {
+                    firstFailure.compareAndSet(null, e);
+                }
+                if ( remaining.decrementAndGet() == 0 ) {
+                    // nothing produced a value - fail if anything failed otherwise abort
+                    Throwable failure = firstFailure.get();
+                    if ( failure != null ) {
+                        result.completeExceptionally(failure);
+                    } else {
+                        result.complete(Optional.empty());
+                    }
+                }
+            });
+        }
+        if ( futures.isEmpty() ) {
+            result.complete(Optional.empty());
+        }
+
+        return newStage(futures, result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> asList(Object[] values) {
+        return Collections.unmodifiableList(Arrays.asList((T[])values));
+    }
+
+    private static <U> StagedFutureTimeout<U> newStage(Collection<? extends StagedFuture<?>> futures, CompletableFuture<Optional<U>> result) {
+        // the joined stage continues with the executor/tracing of the first future
+        StagedFuture<?> first = futures.isEmpty() ? null : futures.iterator().next();
+        if ( first instanceof StagedFutureImpl ) {
+            return ((StagedFutureImpl<?>)first).newStage(result);
+        }
+        return new StagedFutureImpl<>(result, Runnable::run, null, null, Scheduler.system(), null);
+    }
+
+    private Combiners() {
+    }
+}
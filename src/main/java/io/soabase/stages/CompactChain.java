@@ -0,0 +1,82 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import io.soabase.stages.tracing.Tracing;
+
+import java.util.concurrent.Executor;
+
+/**
+ * <p>
+ * An alternative to {@link StagedFuture} for very large numbers of in-flight chains. A StagedFuture chain
+ * is a graph of CompletableFutures - one or more per task, timeout and completer - and each node is retained
+ * until the chain completes. A CompactChain is built once (it's immutable and shared by any number of runs)
+ * and each {@link #start(Object, Executor) run} is a single small state machine object: the current
+ * stage index, a slot for the current stage's input and the final outcome. A stage's input is released as
+ * soon as the stage starts. A {@link java.util.concurrent.CompletionStage} is only created if
+ * {@link CompactRun#toCompletionStage()} is called.
+ * </p>
+ *
+ * <p>
+ * Semantics match StagedFuture: each stage is a task submitted to the executor, returning
+ * {@link java.util.Optional#empty()} aborts the chain, an exception fails the chain and a stage timeout
+ * either fails the chain with a {@link java.util.concurrent.TimeoutException} or continues with a default value.
+ * Unlike StagedFuture, a stage's timeout starts when the stage is submitted rather than when the chain is built.
+ * </p>
+ *
+ * <pre>
+ * CompactChain&lt;Long, Record&gt; chain = CompactChain.&lt;Long&gt;builder()
+ *     .thenIf(id -&gt; queryDatabaseFor(id))
+ *     .thenStageIf(row -&gt; asyncServiceCallFor(row))
+ *     .withTimeout(Duration.ofSeconds(5))
+ *     .thenIf(response -&gt; toRecord(response))
+ *     .whenFailed(e -&gt; handleFailure(e))
+ *     .build();
+ * ...
+ * CompactRun&lt;Record&gt; run = chain.start(id, executor);
+ * </pre>
+ */
+public interface CompactChain<I, T> {
+    /**
+     * Start building a chain whose input is of type <code>I</code>
+     *
+     * @return builder
+     */
+    static <I> CompactChainBuilder<I, I> builder() {
+        return new CompactChainBuilderImpl<>();
+    }
+
+    /**
+     * Run the chain for the given input
+     *
+     * @param input the first stage's input
+     * @param executor executor for the stages - the <code>when...()</code> handlers run in the thread that completes
+     *                 the run (the last stage's, a timeout's or the caller of {@link CompactRun#cancel()})
+     * @return the run
+     */
+    CompactRun<T> start(I input, Executor executor);
+
+    /**
+     * Run the chain for the given input
+     *
+     * @param input the first stage's input
+     * @param executor executor for the stages - the <code>when...()</code> handlers run in the thread that completes
+     *                 the run (the last stage's, a timeout's or the caller of {@link CompactRun#cancel()})
+     * @param tracing tracer for this run
+     * @return the run
+     */
+    CompactRun<T> start(I input, Executor executor, Tracing tracing);
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import io.soabase.stages.time.Scheduler;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Adds stages and handlers to a {@link CompactChain}
+ */
+public interface CompactChainBuilder<I, T> {
+    /**
+     * Add a stage. Same semantics as {@link StagedFuture#thenIf(Function)}.
+     *
+     * @param proc task to execute with the previous stage's value
+     * @return builder
+     */
+    <U> CompactChainBuilder<I, U> thenIf(Function<T, Optional<U>> proc);
+
+    /**
+     * Add a stage that completes asynchronously. Same semantics as {@link StagedFuture#thenStageIf(Function)}.
+     *
+     * @param stage function that returns the stage to wait for
+     * @return builder
+     */
+    <U> CompactChainBuilder<I, U> thenStageIf(Function<T, CompletionStage<Optional<U>>> stage);
+
+    /**
+     * Fail the run with a {@link java.util.concurrent.TimeoutException} if the most recently added stage
+     * takes longer than the given max
+     *
+     * @param max max time for the stage
+     * @return builder
+     */
+    CompactChainBuilder<I, T> withTimeout(Duration max);
+
+    /**
+     * Continue with the given default value if the most recently added stage takes longer than the given max.
+     * The default value is produced in the run's executor, never in the timer thread.
+     *
+     * @param max max time for the stage
+     * @param defaultValue supplier of the value to use on timeout
+     * @return builder
+     */
+    CompactChainBuilder<I, T> withTimeout(Duration max, Supplier<T> defaultValue);
+
+    /**
+     * Use the given clock/timer for stage timeouts and traced durations. The default is {@link Scheduler#system()}.
+     *
+     * @param scheduler scheduler
+     * @return builder
+     */
+    CompactChainBuilder<I, T> withScheduler(Scheduler scheduler);
+
+    /**
+     * Handler called with the final value when a run succeeds
+     *
+     * @param handler consumer for the value
+     * @return builder
+     */
+    CompactChainBuilder<I, T> whenSucceeded(Consumer<T> handler);
+
+    /**
+     * Handler called when a stage of a run returns {@link Optional#empty()}
+     *
+     * @param handler abort handler
+     * @return builder
+     */
+    CompactChainBuilder<I, T> whenAborted(Runnable handler);
+
+    /**
+     * Handler called when a run fails, times out or is canceled
+     *
+     * @param handler exception handler
+     * @return builder
+     */
+    CompactChainBuilder<I, T> whenFailed(Consumer<Throwable> handler);
+
+    /**
+     * @return the chain
+     */
+    CompactChain<I, T> build();
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import io.soabase.stages.time.Scheduler;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+class CompactChainBuilderImpl<I, T> implements CompactChainBuilder<I, T> {
+    private final List<CompactChainImpl.Stage> stages;
+    private final Scheduler scheduler;
+    private final Consumer<Object> successHandler;
+    private final Runnable abortHandler;
+    private final Consumer<Throwable> failureHandler;
+
+    CompactChainBuilderImpl() {
+        this(new ArrayList<>(), Scheduler.system(), null, null, null);
+    }
+
+    @Override
+    public <U> CompactChainBuilder<I, U> thenIf(Function<T, Optional<U>> proc) {
+        Objects.requireNonNull(proc, "proc cannot be null");
+        @SuppressWarnings("unchecked")
+        Function<Object, Object> untypedProc = value -> proc.apply((T)value);
+        return withStage(new CompactChainImpl.Stage(untypedProc, false, null, null));
+    }
+
+    @Override
+    public <U> CompactChainBuilder<I, U> thenStageIf(Function<T, CompletionStage<Optional<U>>> stage) {
+        Objects.requireNonNull(stage, "stage cannot be null");
+        @SuppressWarnings("unchecked")
+        Function<Object, Object> untypedProc = value -> stage.apply((T)value);
+        return withStage(new CompactChainImpl.Stage(untypedProc, true, null, null));
+    }
+
+    @Override
+    public CompactChainBuilder<I, T> withTimeout(Duration max) {
+        Objects.requireNonNull(max, "max cannot be null");
+        return withLastStageTimeout(max, null);
+    }
+
+    @Override
+    public CompactChainBuilder<I, T> withTimeout(Duration max, Supplier<T> defaultValue) {
+        Objects.requireNonNull(max, "max cannot be null");
+        Objects.requireNonNull(defaultValue, "defaultValue cannot be null");
+        return withLastStageTimeout(max, defaultValue::get);
+    }
+
+    @Override
+    public CompactChainBuilder<I, T> withScheduler(Scheduler scheduler) {
+        Objects.requireNonNull(scheduler, "scheduler cannot be null");
+        return new CompactChainBuilderImpl<>(stages, scheduler, successHandler, abortHandler, failureHandler);
+    }
+
+    @Override
+    public CompactChainBuilder<I, T> whenSucceeded(Consumer<T> handler) {
+        Objects.requireNonNull(handler, "handler cannot be null");
+        @SuppressWarnings("unchecked")
+        Consumer<Object> untypedHandler = value -> handler.accept((T)value);
+        return new CompactChainBuilderImpl<>(stages, scheduler, untypedHandler, abortHandler, failureHandler);
+    }
+
+    @Override
+    public CompactChainBuilder<I, T> whenAborted(Runnable handler) {
+        Objects.requireNonNull(handler, "handler cannot be null");
+        return new CompactChainBuilderImpl<>(stages, scheduler, successHandler, handler, failureHandler);
+    }
+
+    @Override
+    public CompactChainBuilder<I, T> whenFailed(Consumer<Throwable> handler) {
+        Objects.requireNonNull(handler, "handler cannot be null");
+        return new CompactChainBuilderImpl<>(stages, scheduler, successHandler, abortHandler, handler);
+    }
+
+    @Override
+    public CompactChain<I, T> build() {
+        if ( stages.isEmpty() ) {
+            throw new IllegalStateException("A chain must have at least one stage");
+        }
+        return new CompactChainImpl<>(stages.toArray(new CompactChainImpl.Stage[0]), scheduler, successHandler, abortHandler, failureHandler);
+    }
+
+    private <U> CompactChainBuilder<I, U> withStage(CompactChainImpl.Stage stage) {
+        List<CompactChainImpl.Stage> newStages = new ArrayList<>(stages);
+        newStages.add(stage);
+        return new CompactChainBuilderImpl<>(newStages, scheduler, null, abortHandler, failureHandler);
+    }
+
+    private CompactChainBuilder<I, T> withLastStageTimeout(Duration max, Supplier<Object> defaultValue) {
+        if ( stages.isEmpty() ) {
+            throw new IllegalStateException("withTimeout() must follow a stage");
+        }
+        List<CompactChainImpl.Stage> newStages = new ArrayList<>(stages);
+        CompactChainImpl.Stage last = newStages.get(newStages.size() - 1);
+        newStages.set(newStages.size() - 1, new CompactChainImpl.Stage(last.proc, last.async, max, defaultValue));
+        return new CompactChainBuilderImpl<>(newStages, scheduler, successHandler, abortHandler, failureHandler);
+    }
+
+    private CompactChainBuilderImpl(List<CompactChainImpl.Stage> stages, Scheduler scheduler, Consumer<Object> successHandler, Runnable abortHandler, Consumer<Throwable> failureHandler) {
+        this.stages = stages;
+        this.scheduler = scheduler;
+        this.successHandler = successHandler;
+        this.abortHandler = abortHandler;
+        this.failureHandler = failureHandler;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import io.soabase.stages.time.Scheduler;
+import io.soabase.stages.tracing.Tracing;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+class CompactChainImpl<I, T> implements CompactChain<I, T> {
+    final Stage[] stages;
+    final Scheduler scheduler;
+    final Consumer<Object> successHandler;
+    final Runnable abortHandler;
+    final Consumer<Throwable> failureHandler;
+
+    static class Stage {
+        final Function<Object, Object> proc;    // returns Optional or, if async, CompletionStage<Optional>
+        final boolean async;
+        final Duration timeout;
+        final Supplier<Object> defaultValue;
+
+        Stage(Function<Object, Object> proc, boolean async, Duration timeout, Supplier<Object> defaultValue) {
+            this.proc = proc;
+            this.async = async;
+            this.timeout = timeout;
+            this.defaultValue = defaultValue;
+        }
+    }
+
+    CompactChainImpl(Stage[] stages, Scheduler scheduler, Consumer<Object> successHandler, Runnable abortHandler, Consumer<Throwable> failureHandler) {
+        this.stages = stages;
+        this.scheduler = scheduler;
+        this.successHandler = successHandler;
+        this.abortHandler = abortHandler;
+        this.failureHandler = failureHandler;
+    }
+
+    @Override
+    public CompactRun<T> start(I input, Executor executor) {
+        return start(input, executor, null);
+    }
+
+    @Override
+    public CompactRun<T> start(I input, Executor executor, Tracing tracing) {
+        Objects.requireNonNull(executor, "executor cannot be null");
+        CompactRunImpl<T> run = new CompactRunImpl<>(this, executor, tracing, input);
+        run.submit(0);
+        return run;
+    }
+}
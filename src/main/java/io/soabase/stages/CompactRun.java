@@ -0,0 +1,46 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A running (or completed) {@link CompactChain}
+ */
+public interface CompactRun<T> {
+    /**
+     * @return true if the run has succeeded, aborted or failed
+     */
+    boolean isDone();
+
+    /**
+     * Cancel the run. The current stage (if any) is not interrupted but no further stages are run.
+     * The run fails with {@link java.util.concurrent.CancellationException}.
+     *
+     * @return true if canceled, false if the run had already completed
+     */
+    boolean cancel();
+
+    /**
+     * Return a CompletionStage view of the run's outcome. The view is created on the first call -
+     * runs that are never asked for it never allocate one. The stage completes with the final value,
+     * with {@link Optional#empty()} if the run aborted or exceptionally if the run failed.
+     *
+     * @return completion stage
+     */
+    CompletionStage<Optional<T>> toCompletionStage();
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import io.soabase.stages.jfr.StageEvents;
+import io.soabase.stages.time.Scheduler;
+import io.soabase.stages.tracing.Tracing;
+
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * <p>
+ * The state machine for one run of a {@link CompactChain}. <code>state</code> is the index of the current
+ * stage until the run completes. Every transition (stage finished, timed out, canceled) is a CAS from the
+ * current index so exactly one of them wins and late results of a losing stage are dropped.
+ * </p>
+ *
+ * <p>
+ * The run itself is the {@link Runnable} handed to the executor for every stage. A stage that times out while
+ * its task is still queued leaves a stale copy in the executor next to the one for the following stage, so
+ * <code>started</code> records the highest stage that was picked up and only one copy can claim each stage.
+ * Moving to the next stage goes through <code>advancing</code> so that the next input is in <code>slot</code>
+ * before any copy can see the new index.
+ * </p>
+ *
+ * <p>
+ * Field updaters instead of atomics keep the run to a single object.
+ * </p>
+ */
+class CompactRunImpl<T> implements CompactRun<T>, Runnable {
+    private static final int succeeded = -1;
+    private static final int aborted = -2;
+    private static final int failed = -3;
+    private static final int completing = -4;
+    private static final int advancing = -5;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<CompactRunImpl> stateUpdater = AtomicIntegerFieldUpdater.newUpdater(CompactRunImpl.class, "state");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<CompactRunImpl> startedUpdater = AtomicIntegerFieldUpdater.newUpdater(CompactRunImpl.class, "started");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<CompactRunImpl, CompletableFuture> viewUpdater = AtomicReferenceFieldUpdater.newUpdater(CompactRunImpl.class, CompletableFuture.class, "view");
+
+    private final CompactChainImpl<?, T> chain;
+    private final Executor executor;
+    private final Tracing tracing;
+    private volatile int state = 0;
+    private volatile int started = -1;
+    private Object slot;     // input of the current stage - cleared as soon as the stage starts
+    private Object outcome;  // final value or exception - published by the write to state
+    private volatile CompletableFuture<Optional<T>> view;
+    private Scheduler.Task timer;
+    private long enqueuedNanos;
+
+    CompactRunImpl(CompactChainImpl<?, T> chain, Executor executor, Tracing tracing, Object input) {
+        this.chain = chain;
+        this.executor = executor;
+        this.tracing = tracing;
+        slot = input;
+    }
+
+    @Override
+    public boolean isDone() {
+        int localState = state;
+        return (localState < 0) && (localState >= failed);
+    }
+
+    @Override
+    public boolean cancel() {
+        for(;;) {
+            int index = state;
+            if ( index == advancing ) {
+                continue;
+            }
+            if ( index < 0 ) {
+                return false;
+            }
+            if ( complete(index, failed, new CancellationException()) ) {
+                StageEvents.canceled("compact", false);
+                if ( tracing != null ) {
+                    tracing.canceled(false);
+                }
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public CompletionStage<Optional<T>> toCompletionStage() {
+        CompletableFuture<Optional<T>> localView = view;
+        if ( localView == null ) {
+            viewUpdater.compareAndSet(this, null, new CompletableFuture<Optional<T>>());
+            localView = view;
+        }
+        if ( isDone() ) {
+            completeView(localView);
+        }
+        return localView;
+    }
+
+    @Override
+    public void run() {
+        int index = state;
+        if ( index < 0 ) {
+            return; // completed (timed out, canceled) while queued - or advancing, which submits again
+        }
+        int localStarted = started;
+        if ( (localStarted >= index) || !startedUpdater.compareAndSet(this, localStarted, index) ) {
+            return; // another copy of this run already has the stage
+        }
+        Object input = slot;
+        slot = null;
+
+        CompactChainImpl.Stage stage = chain.stages[index];
+        try {
+            if ( stage.async ) {
+                @SuppressWarnings("unchecked")
+                CompletionStage<Optional<Object>> next = (CompletionStage<Optional<Object>>)stage.proc.apply(input);
+                next.whenComplete((result, e) -> advance(index, result, e));
+            } else {
+                @SuppressWarnings("unchecked")
+                Optional<Object> result = StagedFutureImpl.trace(tracing, chain.scheduler, enqueuedNanos, () -> (Optional<Object>)stage.proc.apply(input));
+                advance(index, result, null);
+            }
+        } catch (Throwable e) {
+            advance(index, null, e);
+        }
+    }
+
+    void submit(int index) {
+        prepare(index);
+        execute(index);
+    }
+
+    // timer and enqueuedNanos are plain fields - they must be set before the stage's index is published
+    private void prepare(int index) {
+        CompactChainImpl.Stage stage = chain.stages[index];
+        if ( tracing != null ) {
+            enqueuedNanos = chain.scheduler.nanoTime();
+        }
+        if ( stage.timeout != null ) {
+            timer = chain.scheduler.schedule(() -> Timeout.offTimerThread(chain.scheduler, executor).execute(() -> timedOut(index)), stage.timeout);
+        }
+    }
+
+    private void execute(int index) {
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            complete(index, failed, e);
+        }
+    }
+
+    private void advance(int index, Optional<Object> result, Throwable e) {
+        if ( e != null ) {
+            complete(index, failed, ((e instanceof CompletionException) && (e.getCause() != null)) ? e.getCause() : e);
+        } else if ( result == null ) {
+            complete(index, failed, nullValue());
+        } else if ( result.isPresent() ) {
+            next(index, result.get());
+        } else {
+            complete(index, aborted, null);
+        }
+    }
+
+    private void next(int index, Object value) {
+        int nextIndex = index + 1;
+        if ( value == null ) {
+            complete(index, failed, nullValue());   // e.g. a default value supplier returned null
+        } else if ( nextIndex == chain.stages.length ) {
+            complete(index, succeeded, value);
+        } else if ( transition(index, advancing) ) {
+            slot = value;
+            prepare(nextIndex);
+            state = nextIndex;  // publishes slot, timer and enqueuedNanos
+            execute(nextIndex);
+        }
+    }
+
+    private static RuntimeException nullValue() {
+        return new RuntimeException("Stages does not support null values");
+    }
+
+    private void timedOut(int index) {
+        int localState;
+        while ( (localState = state) == advancing ) {
+            Thread.yield(); // the timer was scheduled just before the stage was published
+        }
+        if ( localState != index ) {
+            return;
+        }
+        CompactChainImpl.Stage stage = chain.stages[index];
+        StageEvents.timeout(stage.timeout, stage.defaultValue != null);
+        if ( tracing != null ) {
+            tracing.timedOut(stage.timeout, stage.defaultValue != null);
+        }
+        if ( stage.defaultValue != null ) {
+            Object value;
+            try {
+                value = stage.defaultValue.get();
+            } catch (Throwable e) {
+                complete(index, failed, e);
+                return;
+            }
+            next(index, value);
+        } else {
+            complete(index, failed, new TimeoutException("Timeout after " + stage.timeout));
+        }
+    }
+
+    private boolean transition(int index, int newState) {
+        if ( !stateUpdater.compareAndSet(this, index, newState) ) {
+            return false;
+        }
+        Scheduler.Task localTimer = timer;
+        if ( localTimer != null ) {
+            timer = null;
+            localTimer.cancel();
+        }
+        return true;
+    }
+
+    private boolean complete(int index, int finalState, Object value) {
+        if ( !transition(index, completing) ) {
+            return false;
+        }
+        // handlers run before the outcome is published so that anyone waiting on the view sees their effects
+        try {
+            switch ( finalState ) {
+                case succeeded:
+                    if ( chain.successHandler != null ) {
+                        chain.successHandler.accept(value);
+                    }
+                    break;
+
+                case aborted:
+                    if ( chain.abortHandler != null ) {
+                        chain.abortHandler.run();
+                    }
+                    break;
+
+                default:
+                    if ( chain.failureHandler != null ) {
+                        chain.failureHandler.accept((Throwable)value);
+                    }
+                    break;
+            }
+        } finally {
+            outcome = value;
+            state = finalState;
+
+            CompletableFuture<Optional<T>> localView = view;
+            if ( localView != null ) {
+                completeView(localView);
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void completeView(CompletableFuture<Optional<T>> localView) {
+        switch ( state ) {
+            case succeeded:
+                localView.complete(Optional.of((T)outcome));
+                break;
+
+            case aborted:
+                localView.complete(Optional.empty());
+                break;
+
+            default:
+                localView.completeExceptionally((Throwable)outcome);
+                break;
+        }
+    }
+}
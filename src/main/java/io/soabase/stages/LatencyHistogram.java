@@ -0,0 +1,103 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * A thread safe, fixed size histogram of nanosecond values. Buckets are log-linear (64 buckets per
+ * power of two) so any recorded value is reported within about 1.6% of its actual value, from
+ * nanoseconds to centuries, in a few KB of memory.
+ * </p>
+ *
+ * <p>
+ * Recording is lock-free and never allocates.
+ * </p>
+ */
+public class LatencyHistogram {
+    private static final int subBucketBits = 6;
+    private static final int bucketQty = LogLinearBuckets.bucketQty(subBucketBits);
+
+    private final AtomicLongArray counts = new AtomicLongArray(bucketQty);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * Record a value
+     *
+     * @param nanos value - negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(LogLinearBuckets.indexOf(value, subBucketBits));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return largest recorded value
+     */
+    public Duration getMax() {
+        return Duration.ofNanos(max.get());
+    }
+
+    /**
+     * @return mean of the recorded values
+     */
+    public Duration getMean() {
+        long localCount = count.sum();
+        return Duration.ofNanos((localCount > 0) ? (sum.sum() / localCount) : 0);
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100 - e.g. <code>99.9</code>
+     * @return the value that the given percentage of recorded values are less than or equal to
+     */
+    public Duration getValueAtPercentile(double percentile) {
+        if ( !(percentile >= 0) || (percentile > 100) ) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        long total = 0;
+        for ( int i = 0; i < bucketQty; ++i ) {
+            total += counts.get(i);
+        }
+        if ( total == 0 ) {
+            return Duration.ZERO;
+        }
+        long target = Math.max(1, (long)Math.ceil((percentile / 100.0) * total));
+        long seen = 0;
+        for ( int i = 0; i < bucketQty; ++i ) {
+            seen += counts.get(i);
+            if ( seen >= target ) {
+                return Duration.ofNanos(Math.min(LogLinearBuckets.highestValueOf(i, subBucketBits), max.get()));
+            }
+        }
+        return getMax();
+    }
+}
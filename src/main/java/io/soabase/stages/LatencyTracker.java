@@ -0,0 +1,194 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import io.soabase.stages.time.Scheduler;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * A rolling histogram of recent latencies, used to derive timeouts from observed latency percentiles
+ * (see {@link StagedFutureTimeout#withAdaptiveTimeout(LatencyTracker, double, double, Duration, Duration)}).
+ * Use one tracker per stage/backend - it can be shared by any number of chains.
+ * </p>
+ *
+ * <p>
+ * The window is divided into slices. Each slice is a log-linear histogram (8 buckets per power of two,
+ * i.e. values are reported within 12.5%). As time passes, the oldest slice is cleared and reused, so only
+ * the last <code>window</code> of values are counted. Recording is lock-free and never allocates. When a
+ * slice is reused, values recorded concurrently with the reset may be lost - the percentiles are approximate.
+ * </p>
+ */
+public class LatencyTracker {
+    private static final int subBucketBits = 3;
+    private static final int bucketQty = LogLinearBuckets.bucketQty(subBucketBits);
+
+    private final Scheduler clock;
+    private final long sliceNanos;
+    private final Slice[] slices;
+
+    private static class Slice {
+        private final AtomicLong sliceNumber = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicLongArray counts = new AtomicLongArray(bucketQty);
+        private final LongAdder total = new LongAdder();   // so that reads don't have to sum every bucket
+    }
+
+    /**
+     * Tracks the last minute of values in 6 slices
+     */
+    public LatencyTracker() {
+        this(Duration.ofMinutes(1), 6);
+    }
+
+    /**
+     * @param window how long values are counted
+     * @param sliceQty number of slices the window is divided into - more slices make expiration smoother
+     */
+    public LatencyTracker(Duration window, int sliceQty) {
+        this(window, sliceQty, Scheduler.system());
+    }
+
+    /**
+     * @param window how long values are counted
+     * @param sliceQty number of slices the window is divided into - more slices make expiration smoother
+     * @param clock source of time - use the same scheduler as the chains that use the tracker
+     */
+    public LatencyTracker(Duration window, int sliceQty, Scheduler clock) {
+        this.clock = Objects.requireNonNull(clock, "clock cannot be null");
+        Objects.requireNonNull(window, "window cannot be null");
+        if ( sliceQty < 1 ) {
+            throw new IllegalArgumentException("sliceQty must be greater than 0");
+        }
+        sliceNanos = window.toNanos() / sliceQty;
+        if ( sliceNanos <= 0 ) {
+            throw new IllegalArgumentException("window is too small for the number of slices");
+        }
+        slices = new Slice[sliceQty];
+        for ( int i = 0; i < sliceQty; ++i ) {
+            slices[i] = new Slice();
+        }
+    }
+
+    /**
+     * Record a latency
+     *
+     * @param latency value
+     */
+    public void record(Duration latency) {
+        record(latency.toNanos());
+    }
+
+    /**
+     * Record a latency
+     *
+     * @param nanos value - negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        long sliceNumber = currentSliceNumber();
+        Slice slice = slices[(int)Math.floorMod(sliceNumber, (long)slices.length)];
+        long localSliceNumber = slice.sliceNumber.get();
+        if ( localSliceNumber != sliceNumber ) {
+            if ( localSliceNumber > sliceNumber ) {
+                return; // this thread was descheduled for a whole window - the value is too old to count
+            }
+            if ( slice.sliceNumber.compareAndSet(localSliceNumber, sliceNumber) ) {
+                for ( int i = 0; i < bucketQty; ++i ) {
+                    slice.counts.lazySet(i, 0);
+                }
+                slice.total.reset();
+            }
+        }
+        slice.counts.incrementAndGet(LogLinearBuckets.indexOf(nanos, subBucketBits));
+        slice.total.increment();
+    }
+
+    /**
+     * @return number of values recorded within the window
+     */
+    public long getCount() {
+        return getCount(currentSliceNumber());
+    }
+
+    private long getCount(long sliceNumber) {
+        long total = 0;
+        for ( Slice slice : slices ) {
+            if ( isCurrent(slice, sliceNumber) ) {
+                total += slice.total.sum();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100 - e.g. <code>99.9</code>
+     * @return the value that the given percentage of values recorded within the window are less than or equal
+     * to or {@link Duration#ZERO} if there are no values
+     */
+    public Duration getValueAtPercentile(double percentile) {
+        if ( !(percentile >= 0) || (percentile > 100) ) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        return Duration.ofNanos(Math.max(0, nanosAtPercentile(percentile)));
+    }
+
+    /**
+     * Counts come from the per-slice totals so this is a single scan of the buckets that stops at the percentile
+     *
+     * @param percentile percentile between 0 and 100 - not checked
+     * @return value at the percentile or -1 if there are no values
+     */
+    long nanosAtPercentile(double percentile) {
+        long sliceNumber = currentSliceNumber();
+        long total = getCount(sliceNumber);
+        if ( total == 0 ) {
+            return -1;
+        }
+        long target = Math.max(1, (long)Math.ceil((percentile / 100.0) * total));
+        long seen = 0;
+        int highestSeen = 0;
+        for ( int i = 0; i < bucketQty; ++i ) {
+            long count = 0;
+            for ( Slice slice : slices ) {
+                if ( isCurrent(slice, sliceNumber) ) {
+                    count += slice.counts.get(i);
+                }
+            }
+            if ( count > 0 ) {
+                seen += count;
+                highestSeen = i;
+                if ( seen >= target ) {
+                    break;
+                }
+            }
+        }
+        // if a slice was reset while scanning the target may not be reached - use the highest value seen
+        return LogLinearBuckets.highestValueOf(highestSeen, subBucketBits);
+    }
+
+    private long currentSliceNumber() {
+        return Math.floorDiv(clock.nanoTime(), sliceNanos);
+    }
+
+    private boolean isCurrent(Slice slice, long sliceNumber) {
+        long localSliceNumber = slice.sliceNumber.get();
+        return (localSliceNumber <= sliceNumber) && (localSliceNumber > (sliceNumber - slices.length));
+    }
+}
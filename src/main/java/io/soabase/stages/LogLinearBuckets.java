@@ -0,0 +1,65 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+/**
+ * <p>
+ * The bucket scheme shared by {@link LatencyTracker}, {@link LatencyHistogram} and {@link StripedHistogram}.
+ * Values below <code>2 * 2<sup>subBucketBits</sup></code> get a bucket each. Above that, every power of two is
+ * split into <code>2<sup>subBucketBits</sup></code> linear sub-buckets, so a value is reported within
+ * <code>1 / 2<sup>subBucketBits</sup></code> of its actual value. <code>subBucketBits</code> of 0 is one
+ * bucket per power of two.
+ * </p>
+ */
+class LogLinearBuckets {
+    /**
+     * @param subBucketBits log2 of the number of sub-buckets per power of two
+     * @return number of buckets needed to count any non-negative long
+     */
+    static int bucketQty(int subBucketBits) {
+        return (64 - subBucketBits) << subBucketBits;
+    }
+
+    /**
+     * @param value value - negative values are counted in bucket 0
+     * @param subBucketBits log2 of the number of sub-buckets per power of two
+     * @return the bucket that counts the value
+     */
+    static int indexOf(long value, int subBucketBits) {
+        if ( value < (2L << subBucketBits) ) {
+            return (int)Math.max(0, value);
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - subBucketBits;
+        return (shift << subBucketBits) + (int)(value >>> shift);
+    }
+
+    /**
+     * @param index bucket
+     * @param subBucketBits log2 of the number of sub-buckets per power of two
+     * @return the largest value counted by the bucket
+     */
+    static long highestValueOf(int index, int subBucketBits) {
+        if ( index < (2 << subBucketBits) ) {
+            return index;
+        }
+        int shift = (index >> subBucketBits) - 1;
+        long subBucket = index - (shift << subBucketBits);
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    private LogLinearBuckets() {
+    }
+}
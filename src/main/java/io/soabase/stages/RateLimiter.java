@@ -0,0 +1,108 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import io.soabase.stages.time.Scheduler;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A token bucket rate limiter that can be shared by any number of chains (see
+ * {@link StagedFuture#thenRateLimit(RateLimiter, Duration)}). Unlike blocking limiters, acquiring never parks
+ * a thread: {@link #reserve(Duration)} returns how long the caller must wait for its permit and the
+ * chain defers its next stage on a timer for that long.
+ * </p>
+ *
+ * <p>
+ * Lock-free: the bucket is a single "theoretical arrival time" that is advanced with CAS.
+ * </p>
+ */
+public class RateLimiter {
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final Scheduler clock;
+    private final AtomicLong nextFreeNanos = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Allows bursts of up to one second's worth of permits
+     *
+     * @param permitsPerSecond max permits per second
+     */
+    public RateLimiter(double permitsPerSecond) {
+        this(permitsPerSecond, (int)Math.max(1, Math.ceil(permitsPerSecond)));
+    }
+
+    /**
+     * @param permitsPerSecond max permits per second
+     * @param burst number of permits that can be acquired at once without waiting
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, Scheduler.system());
+    }
+
+    /**
+     * @param permitsPerSecond max permits per second
+     * @param burst number of permits that can be acquired at once without waiting
+     * @param clock source of time - use the same scheduler as the chains that use the limiter
+     */
+    public RateLimiter(double permitsPerSecond, int burst, Scheduler clock) {
+        this.clock = Objects.requireNonNull(clock, "clock cannot be null");
+        if ( !(permitsPerSecond > 0) ) {
+            throw new IllegalArgumentException("permitsPerSecond must be greater than 0");
+        }
+        if ( burst < 1 ) {
+            throw new IllegalArgumentException("burst must be greater than 0");
+        }
+        intervalNanos = Math.max(1, (long)(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        toleranceNanos = (burst - 1) * intervalNanos;
+    }
+
+    /**
+     * Reserve a permit if it will be available within the given max wait
+     *
+     * @param maxWait max time the caller is willing to wait
+     * @return nanoseconds the caller must wait before using the permit (0 means use it now) or
+     * <code>-1</code> if the permit would not be available within <code>maxWait</code> (no permit is reserved)
+     */
+    public long reserve(Duration maxWait) {
+        long maxWaitNanos = maxWait.toNanos();
+        for(;;) {
+            long now = clock.nanoTime();
+            long nextFree = nextFreeNanos.get();
+            long start = Math.max(nextFree, now);
+            long wait = Math.max(0, start - toleranceNanos - now);
+            if ( wait > maxWaitNanos ) {
+                return -1;
+            }
+            if ( nextFreeNanos.compareAndSet(nextFree, start + intervalNanos) ) {
+                return wait;
+            }
+        }
+    }
+
+    /**
+     * Acquire a permit only if it's available now
+     *
+     * @return true if acquired
+     */
+    public boolean tryAcquire() {
+        return reserve(Duration.ZERO) == 0;
+    }
+}
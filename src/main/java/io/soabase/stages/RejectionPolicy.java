@@ -0,0 +1,160 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import io.soabase.stages.time.Scheduler;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * What a chain does when its executor throws {@link RejectedExecutionException} (e.g. a bounded queue is full).
+ * Pass an instance to {@link StagedFutureBuilder#withRejectionPolicy(RejectionPolicy)}. Without a policy the
+ * task fails with the <code>RejectedExecutionException</code>.
+ * </p>
+ *
+ * <ul>
+ *     <li>{@link #abort()} - the chain fails with {@link Aborted.OverloadException}</li>
+ *     <li>{@link #callerRuns()} - the task runs in the thread that submitted it (which slows the submitter down)</li>
+ *     <li>{@link #retry(Duration, Duration, int)} - the task is resubmitted on a timer with exponential backoff.
+ *     If it's still rejected after the max attempts the chain fails with {@link Aborted.OverloadException}</li>
+ * </ul>
+ *
+ * <p>
+ * Instances count every rejection and can be shared by any number of chains - use one per executor.
+ * </p>
+ */
+public class RejectionPolicy {
+    private final Type type;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final int maxAttempts;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder overloaded = new LongAdder();
+
+    private enum Type {
+        ABORT,
+        CALLER_RUNS,
+        RETRY
+    }
+
+    /**
+     * @return a new policy that fails the chain with {@link Aborted.OverloadException}
+     */
+    public static RejectionPolicy abort() {
+        return new RejectionPolicy(Type.ABORT, 0, 0, 1);
+    }
+
+    /**
+     * @return a new policy that runs rejected tasks in the submitting thread
+     */
+    public static RejectionPolicy callerRuns() {
+        return new RejectionPolicy(Type.CALLER_RUNS, 0, 0, 1);
+    }
+
+    /**
+     * @param initialBackoff delay before the first resubmission - doubled for each later attempt
+     * @param maxBackoff max delay between attempts
+     * @param maxAttempts max number of submissions including the first
+     * @return a new policy that resubmits rejected tasks with exponential backoff
+     */
+    public static RejectionPolicy retry(Duration initialBackoff, Duration maxBackoff, int maxAttempts) {
+        Objects.requireNonNull(initialBackoff, "initialBackoff cannot be null");
+        Objects.requireNonNull(maxBackoff, "maxBackoff cannot be null");
+        if ( maxAttempts < 1 ) {
+            throw new IllegalArgumentException("maxAttempts must be greater than 0");
+        }
+        return new RejectionPolicy(Type.RETRY, initialBackoff.toNanos(), Math.max(initialBackoff.toNanos(), maxBackoff.toNanos()), maxAttempts);
+    }
+
+    /**
+     * @return number of times the executor rejected a task (each retry attempt counts)
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return number of tasks that failed with {@link Aborted.OverloadException} because of rejections
+     */
+    public long getOverloadedCount() {
+        return overloaded.sum();
+    }
+
+    void execute(Executor executor, Scheduler scheduler, Runnable command, Consumer<Throwable> failer) {
+        execute(executor, scheduler, command, failer, 1);
+    }
+
+    static void execute(RejectionPolicy policy, Executor executor, Scheduler scheduler, Runnable command, Consumer<Throwable> failer) {
+        if ( policy != null ) {
+            policy.execute(executor, scheduler, command, failer);
+        } else {
+            try {
+                executor.execute(command);
+            } catch (RejectedExecutionException e) {
+                failer.accept(e);
+            }
+        }
+    }
+
+    private void execute(Executor executor, Scheduler scheduler, Runnable command, Consumer<Throwable> failer, int attempt) {
+        try {
+            executor.execute(command);
+            return;
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+        }
+
+        switch ( type ) {
+            case ABORT:
+                overloaded(failer);
+                break;
+
+            case CALLER_RUNS:
+                command.run();
+                break;
+
+            case RETRY:
+                if ( attempt >= maxAttempts ) {
+                    overloaded(failer);
+                } else {
+                    long backoffNanos = initialBackoffNanos;
+                    for ( int i = 1; i < attempt; ++i ) {
+                        backoffNanos = Math.min(maxBackoffNanos, backoffNanos * 2);
+                    }
+                    scheduler.schedule(() -> execute(executor, scheduler, command, failer, attempt + 1), Duration.ofNanos(backoffNanos));
+                }
+                break;
+        }
+    }
+
+    private void overloaded(Consumer<Throwable> failer) {
+        overloaded.increment();
+        failer.accept(new Aborted.OverloadException("Overloaded - task rejected by the executor"));
+    }
+
+    private RejectionPolicy(Type type, long initialBackoffNanos, long maxBackoffNanos, int maxAttempts) {
+        this.type = type;
+        this.initialBackoffNanos = initialBackoffNanos;
+        this.maxBackoffNanos = maxBackoffNanos;
+        this.maxAttempts = maxAttempts;
+    }
+}
@@ -17,11 +17,17 @@ package io.soabase.stages;
 
 import io.soabase.stages.tracing.Tracing;
 
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * A facade that makes staged/pipelined CompletableFutures much easier to create and manage
@@ -91,6 +97,86 @@ public interface StagedFuture<T> {
         return async(StagedFutureImpl.asyncPool, tracing);
     }
 
+    /**
+     * <p>
+     * Return a StagedFuture that completes when all of the given StagedFutures complete. The result
+     * is a list of the values of the given StagedFutures in iteration order. If any of the given
+     * StagedFutures is aborted the returned StagedFuture is aborted and if any fails the returned
+     * StagedFuture fails - in both cases without waiting for the remaining StagedFutures.
+     * </p>
+     *
+     * <p>
+     * Subsequent stages use the executor and tracer of the first of the given StagedFutures.
+     * </p>
+     *
+     * @param futures futures to join
+     * @return joined StagedFuture
+     */
+    static <T> StagedFutureTimeout<List<T>> allOf(Collection<? extends StagedFuture<T>> futures) {
+        return Combiners.allOf(futures);
+    }
+
+    /**
+     * <p>
+     * Return a StagedFuture that completes with the value of the first of the given StagedFutures that
+     * completes with a value. If none of the given StagedFutures produce a value the returned StagedFuture
+     * fails if any of them failed, otherwise it is aborted.
+     * </p>
+     *
+     * <p>
+     * Subsequent stages use the executor and tracer of the first of the given StagedFutures.
+     * </p>
+     *
+     * @param futures futures to join
+     * @return joined StagedFuture
+     */
+    static <T> StagedFutureTimeout<T> anyOf(Collection<? extends StagedFuture<T>> futures) {
+        return Combiners.anyOf(futures);
+    }
+
+    /**
+     * <p>
+     * Return a StagedFuture that completes with the result of combining the values of the two given StagedFutures
+     * (e.g. two branches of a chain - see {@link #thenIf(Function)}). The combiner runs as a task of the chain once both have values.
+     * If either of the given StagedFutures is aborted the returned StagedFuture is aborted and if either fails
+     * the returned StagedFuture fails - in both cases without waiting for the other.
+     * </p>
+     *
+     * <p>
+     * Subsequent stages use the executor and tracer of <code>a</code>.
+     * </p>
+     *
+     * @param a first future
+     * @param b second future
+     * @param combiner combines the values
+     * @return joined StagedFuture
+     */
+    static <A, B, R> StagedFutureTimeout<R> zip(StagedFuture<A> a, StagedFuture<B> b, BiFunction<A, B, R> combiner) {
+        Objects.requireNonNull(combiner, "combiner cannot be null");
+        return Combiners.zipIf(a, b, (valueA, valueB) -> {
+            R value = combiner.apply(valueA, valueB);
+            if ( value == null ) {
+                throw new RuntimeException("Stages does not support null values");
+            }
+            return Optional.of(value);
+        });
+    }
+
+    /**
+     * <p>
+     * Same as {@link #zip(StagedFuture, StagedFuture, BiFunction)} except that the combiner returns
+     * an optional value. If {@link Optional#empty()} is returned, the chain is considered to be aborted.
+     * </p>
+     *
+     * @param a first future
+     * @param b second future
+     * @param combiner combines the values
+     * @return joined StagedFuture
+     */
+    static <A, B, R> StagedFutureTimeout<R> zipIf(StagedFuture<A> a, StagedFuture<B> b, BiFunction<A, B, Optional<R>> combiner) {
+        return Combiners.zipIf(a, b, combiner);
+    }
+
     /**
      * <p>
      * If the current stage completes successfully, execute the given task
@@ -103,6 +189,20 @@ public interface StagedFuture<T> {
      * </p>
      *
      * <p>
+     * Calling <code>thenIf()</code> more than once on the same StagedFuture branches the chain: this stage's
+     * task runs once and its result feeds every branch. Branches run independently (e.g. in parallel)
+     * and have their own tasks, timeouts and completers. Join branches with
+     * {@link #zip(StagedFuture, StagedFuture, BiFunction)} or {@link #allOf(Collection)}.
+     * </p>
+     *
+     * <pre>
+     * StagedFuture&lt;User&gt; user = StagedFuture.async(executor).thenIf(() -&gt; loadUser(id));
+     * StagedFuture&lt;Orders&gt; orders = user.thenIf(u -&gt; loadOrders(u));
+     * StagedFuture&lt;Prefs&gt; prefs = user.thenIf(u -&gt; loadPrefs(u));   // runs in parallel with loadOrders
+     * StagedFuture.zip(orders, prefs, Page::new)...
+     * </pre>
+     *
+     * <p>
      * Note: the returned value is a {@link StagedFutureTimeout} which allows
      * a timeout and an optional default to be set for the task.
      * </p>
@@ -112,6 +212,20 @@ public interface StagedFuture<T> {
      */
     <U> StagedFutureTimeout<U> thenIf(Function<T, Optional<U>> proc);
 
+    /**
+     * <p>
+     * Same as {@link #thenIf(Function)} but for a task that blocks (I/O, locks, etc.). If the task runs in
+     * a {@link java.util.concurrent.ForkJoinPool} worker thread (e.g. {@link #asyncPool()}) it's run via
+     * {@link java.util.concurrent.ForkJoinPool#managedBlock(java.util.concurrent.ForkJoinPool.ManagedBlocker)}
+     * so that the pool can add a compensating thread instead of being starved. See
+     * {@link io.soabase.stages.executors.ManagedBlockingExecutor}.
+     * </p>
+     *
+     * @param proc task to execute
+     * @return next stage in the chain
+     */
+    <U> StagedFutureTimeout<U> thenIfBlocking(Function<T, Optional<U>> proc);
+
     /**
      * <p>
      * If the current stage completes successfully, chain to the given CompletionStage
@@ -128,6 +242,52 @@ public interface StagedFuture<T> {
      */
     <U> StagedFutureTimeout<U> thenStageIf(Function<T, CompletionStage<Optional<U>>> stage);
 
+    /**
+     * <p>
+     * If the current stage completes successfully, the given task produces a stream of results
+     * that later stages process incrementally (see {@link StagedStream}). The stream is not
+     * created until a terminal stage is added and is closed when it has been consumed.
+     * </p>
+     *
+     * @param proc produces the stream
+     * @return stream stage
+     */
+    <U> StagedStream<U> thenStreamIf(Function<T, Stream<U>> proc);
+
+    /**
+     * <p>
+     * If the current stage completes successfully, acquire a permit from the given rate limiter before
+     * continuing the chain. If no permit is free the next stage is deferred on a timer until the reserved
+     * permit is available - no thread is blocked while waiting.
+     * </p>
+     *
+     * <p>
+     * If the permit would not be available within <code>maxWait</code> the chain is aborted (see {@link #whenAborted(Runnable)}).
+     * </p>
+     *
+     * @param limiter limiter - usually shared by many chains
+     * @param maxWait max time to wait for a permit
+     * @return next stage in the chain
+     */
+    StagedFuture<T> thenRateLimit(RateLimiter limiter, Duration maxWait);
+
+    /**
+     * <p>
+     * If this stage or any previous stages in the chain complete exceptionally (including timeouts - see
+     * {@link StagedFutureTimeout#withTimeout(Duration)}), continue the chain with the stage returned
+     * by the given fallback. Otherwise, the chain continues with this stage's result.
+     * </p>
+     *
+     * <p>
+     * The fallback is called via the chain's executor (never in the shared timeout thread) and receives the cause
+     * of the failure (i.e. not the wrapping {@link java.util.concurrent.CompletionException}).
+     * </p>
+     *
+     * @param fallback produces the replacement stage for a failure
+     * @return next stage in the chain
+     */
+    StagedFuture<T> withFallback(Function<Throwable, CompletionStage<Optional<T>>> fallback);
+
     /**
      * If the stage and any previous stages in the chain complete successfully, the handler is called with the resulting value.
      *
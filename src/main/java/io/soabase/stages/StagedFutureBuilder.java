@@ -15,14 +15,102 @@
  */
 package io.soabase.stages;
 
+import io.soabase.stages.context.ContextPropagation;
+import io.soabase.stages.time.Scheduler;
+
+import java.time.Duration;
 import java.util.Optional;
 import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 /**
  * Sets the first task in the chain
  */
 public interface StagedFutureBuilder {
+    /**
+     * <p>
+     * Capture the given context (MDC entries, thread locals) from the current thread when the chain
+     * starts and restore it around every task and completer of the chain, whichever thread
+     * it runs on.
+     * </p>
+     *
+     * @param propagation context to propagate
+     * @return builder that propagates the context
+     */
+    StagedFutureBuilder withContextPropagation(ContextPropagation propagation);
+
+    /**
+     * <p>
+     * Set the chain's priority. Only used by executors that order tasks (see
+     * {@link io.soabase.stages.executors.ChainAwareExecutor}, e.g. {@link io.soabase.stages.executors.DeadlineExecutor}
+     * or the library's wrappers of it) - tasks of higher priority chains
+     * run before queued tasks of lower priority chains. Every task of the chain has this priority.
+     * </p>
+     *
+     * @param priority priority - the default is 0
+     * @return builder that uses the priority
+     */
+    StagedFutureBuilder withPriority(int priority);
+
+    /**
+     * <p>
+     * Set the chain's deadline relative to when the chain starts. Only used by executors that order
+     * tasks (see {@link io.soabase.stages.executors.ChainAwareExecutor}, e.g. {@link io.soabase.stages.executors.DeadlineExecutor}
+     * or the library's wrappers of it) - among chains of the same priority,
+     * queued tasks of the chain with the earliest deadline run first. Every task of the chain has this deadline.
+     * </p>
+     *
+     * @param deadline time from the start of the chain
+     * @return builder that uses the deadline
+     */
+    StagedFutureBuilder withDeadline(Duration deadline);
+
+    /**
+     * <p>
+     * Admit the chain via the given controller. When the chain starts, if the controller is shedding load
+     * the chain does not run and completes exceptionally with {@link Aborted.OverloadException}. The queue
+     * time of each task of admitted chains is reported to the controller.
+     * </p>
+     *
+     * @param controller admission controller - use one per executor
+     * @return builder that uses the controller
+     */
+    StagedFutureBuilder withAdmission(AdmissionController controller);
+
+    /**
+     * <p>
+     * Use the given clock/timer for the chain's timeouts, delays and tracing durations instead of
+     * the system clock. e.g. pass a {@link io.soabase.stages.time.VirtualScheduler} to run the chain in virtual time.
+     * </p>
+     *
+     * @param scheduler scheduler
+     * @return builder that uses the scheduler
+     */
+    StagedFutureBuilder withScheduler(Scheduler scheduler);
+
+    /**
+     * <p>
+     * Mark every task of the chain as blocking - i.e. as if each task were added via
+     * {@link StagedFuture#thenIfBlocking(Function)}.
+     * </p>
+     *
+     * @return builder for a chain of blocking tasks
+     */
+    StagedFutureBuilder withBlocking();
+
+    /**
+     * <p>
+     * Handle executor rejections (e.g. a full bounded queue) with the given policy instead of failing
+     * the task with {@link java.util.concurrent.RejectedExecutionException}. Applies to the chain's tasks
+     * (see {@link #thenIf(Supplier)} and {@link StagedFuture#thenIf(Function)}).
+     * </p>
+     *
+     * @param policy rejection policy
+     * @return builder that uses the policy
+     */
+    StagedFutureBuilder withRejectionPolicy(RejectionPolicy policy);
+
     /**
      * <p>
      * Execute the given task synchronously or asynchronously depending on how the StagedFuture was built.
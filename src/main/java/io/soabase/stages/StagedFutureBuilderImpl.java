@@ -15,10 +15,16 @@
  */
 package io.soabase.stages;
 
+import io.soabase.stages.context.ContextPropagation;
+import io.soabase.stages.executors.ChainAwareExecutor;
+import io.soabase.stages.executors.ManagedBlockingExecutor;
+import io.soabase.stages.time.Scheduler;
 import io.soabase.stages.tracing.Tracing;
 
+import java.time.Duration;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Executor;
 import java.util.function.Supplier;
@@ -26,19 +32,116 @@ import java.util.function.Supplier;
 class StagedFutureBuilderImpl<T> implements StagedFutureBuilder {
     private final Executor executor;
     private final Tracing tracing;
+    private final StagedScope scope;
+    private final ContextPropagation propagation;
+    private final int priority;
+    private final Duration deadline;
+    private final AdmissionController admission;
+    private final Scheduler scheduler;
+    private final boolean blocking;
+    private final RejectionPolicy rejection;
 
     StagedFutureBuilderImpl(Executor executor, Tracing tracing) {
+        this(executor, tracing, null);
+    }
+
+    StagedFutureBuilderImpl(Executor executor, Tracing tracing, StagedScope scope) {
+        this(executor, tracing, scope, null, 0, null, null, Scheduler.system(), false, null);
+    }
+
+    private StagedFutureBuilderImpl(Executor executor, Tracing tracing, StagedScope scope, ContextPropagation propagation, int priority, Duration deadline, AdmissionController admission, Scheduler scheduler, boolean blocking, RejectionPolicy rejection) {
         this.executor = Objects.requireNonNull(executor, "executor cannot be null");
         this.tracing = tracing;
+        this.scope = scope;
+        this.propagation = propagation;
+        this.priority = priority;
+        this.deadline = deadline;
+        this.admission = admission;
+        this.scheduler = scheduler;
+        this.blocking = blocking;
+        this.rejection = rejection;
+    }
+
+    @Override
+    public StagedFutureBuilder withContextPropagation(ContextPropagation propagation) {
+        Objects.requireNonNull(propagation, "propagation cannot be null");
+        return new StagedFutureBuilderImpl(executor, tracing, scope, propagation, priority, deadline, admission, scheduler, blocking, rejection);
+    }
+
+    @Override
+    public StagedFutureBuilder withPriority(int priority) {
+        return new StagedFutureBuilderImpl(executor, tracing, scope, propagation, priority, deadline, admission, scheduler, blocking, rejection);
+    }
+
+    @Override
+    public StagedFutureBuilder withDeadline(Duration deadline) {
+        Objects.requireNonNull(deadline, "deadline cannot be null");
+        return new StagedFutureBuilderImpl(executor, tracing, scope, propagation, priority, deadline, admission, scheduler, blocking, rejection);
+    }
+
+    @Override
+    public StagedFutureBuilder withAdmission(AdmissionController controller) {
+        Objects.requireNonNull(controller, "controller cannot be null");
+        return new StagedFutureBuilderImpl(executor, tracing, scope, propagation, priority, deadline, controller, scheduler, blocking, rejection);
+    }
+
+    @Override
+    public StagedFutureBuilder withScheduler(Scheduler scheduler) {
+        Objects.requireNonNull(scheduler, "scheduler cannot be null");
+        return new StagedFutureBuilderImpl(executor, tracing, scope, propagation, priority, deadline, admission, scheduler, blocking, rejection);
+    }
+
+    @Override
+    public StagedFutureBuilder withBlocking() {
+        return new StagedFutureBuilderImpl(executor, tracing, scope, propagation, priority, deadline, admission, scheduler, true, rejection);
+    }
+
+    @Override
+    public StagedFutureBuilder withRejectionPolicy(RejectionPolicy policy) {
+        Objects.requireNonNull(policy, "policy cannot be null");
+        return new StagedFutureBuilderImpl(executor, tracing, scope, propagation, priority, deadline, admission, scheduler, blocking, policy);
     }
 
     @Override
     public <U> StagedFutureTimeout<U> thenIf(Supplier<Optional<U>> proc) {
-        return new StagedFutureImpl<>(proc, executor, tracing);
+        if ( (admission != null) && !admission.tryAdmit() ) {
+            return rejected();
+        }
+        return new StagedFutureImpl<>(proc, chainExecutor(), tracing, chain(), scheduler, rejection);
     }
 
     @Override
     public <U> StagedFutureTimeout<U> thenStageIf(CompletionStage<Optional<U>> stage) {
-        return new StagedFutureImpl<>(stage, executor, tracing);
+        if ( (admission != null) && !admission.tryAdmit() ) {
+            return rejected();
+        }
+        return new StagedFutureImpl<>(stage, chainExecutor(), tracing, chain(), scheduler, rejection);
+    }
+
+    private <U> StagedFutureTimeout<U> rejected() {
+        CompletableFuture<Optional<U>> overloaded = new CompletableFuture<>();
+        overloaded.completeExceptionally(new Aborted.OverloadException());
+        return new StagedFutureImpl<>(overloaded, chainExecutor(), tracing, chain(), scheduler, rejection);
+    }
+
+    private Executor chainExecutor() {
+        Executor chainExecutor = executor;
+        if ( executor instanceof ChainAwareExecutor ) {
+            // the deadline is fixed when the chain starts - every later stage inherits it via the chain executor
+            long deadlineNanos = (deadline != null) ? (System.nanoTime() + deadline.toNanos()) : ChainAwareExecutor.noDeadline;
+            chainExecutor = ((ChainAwareExecutor)executor).forChain(priority, deadlineNanos);
+        }
+        if ( admission != null ) {
+            chainExecutor = admission.wrap(chainExecutor);
+        }
+        // context is captured once per chain - every later stage runs via the wrapped executor
+        if ( propagation != null ) {
+            chainExecutor = propagation.capture().wrap(chainExecutor);
+        }
+        return blocking ? new ManagedBlockingExecutor(chainExecutor) : chainExecutor;
+    }
+
+    private StagedScope.Chain chain() {
+        return (scope != null) ? scope.newChain() : null;
     }
 }
@@ -15,24 +15,31 @@
  */
 package io.soabase.stages;
 
+import io.soabase.stages.executors.ManagedBlockingExecutor;
+import io.soabase.stages.jfr.StageEvents;
+import io.soabase.stages.time.Scheduler;
 import io.soabase.stages.tracing.Tracing;
 
 import java.time.Duration;
-import java.time.Instant;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 class StagedFutureImpl<T> implements StagedFuture<T>, StagedFutureTimeout<T> {
     private final Executor executor;
     private final CompletionStage<Optional<T>> future;
     private final Tracing tracing;
+    private final StagedScope.Chain chain;
+    private final Scheduler scheduler;
+    private final RejectionPolicy rejection;
 
     private static final boolean useCommonPool =
         (ForkJoinPool.getCommonPoolParallelism() > 1);
@@ -49,19 +56,25 @@ class StagedFutureImpl<T> implements StagedFuture<T>, StagedFutureTimeout<T> {
         public void execute(Runnable r) { new Thread(r).start(); }
     }
 
-    StagedFutureImpl(Supplier<Optional<T>> proc, Executor executor, Tracing tracing) {
+    StagedFutureImpl(Supplier<Optional<T>> proc, Executor executor, Tracing tracing, StagedScope.Chain chain, Scheduler scheduler, RejectionPolicy rejection) {
         this(
             executor,
-            CompletableFuture.supplyAsync(tracingProc(tracing, proc), executor),
-            tracing
+            supplyAsync(tracingProc(tracing, scheduler, proc), executor, scheduler, rejection),
+            tracing,
+            chain,
+            scheduler,
+            rejection
         );
     }
 
-    StagedFutureImpl(CompletionStage<Optional<T>> future, Executor executor, Tracing tracing) {
+    StagedFutureImpl(CompletionStage<Optional<T>> future, Executor executor, Tracing tracing, StagedScope.Chain chain, Scheduler scheduler, RejectionPolicy rejection) {
         this(
             executor,
             future,
-            tracing
+            tracing,
+            chain,
+            scheduler,
+            rejection
         );
     }
 
@@ -72,17 +85,29 @@ class StagedFutureImpl<T> implements StagedFuture<T>, StagedFutureTimeout<T> {
 
     @Override
     public <U> StagedFutureTimeout<U> thenIf(Function<T, Optional<U>> proc) {
+        return thenIf(proc, executor);
+    }
+
+    @Override
+    public <U> StagedFutureTimeout<U> thenIfBlocking(Function<T, Optional<U>> proc) {
+        return thenIf(proc, (executor instanceof ManagedBlockingExecutor) ? executor : new ManagedBlockingExecutor(executor));
+    }
+
+    private <U> StagedFutureTimeout<U> thenIf(Function<T, Optional<U>> proc, Executor procExecutor) {
         Objects.requireNonNull(proc, "proc cannot be null");
 
         // don't burn a thread if the optional is empty
         CompletionStage<Optional<U>> nextStage = future.thenCompose(optional -> {
             if (optional.isPresent()) {
-                Function<T, Optional<U>> tracedProc = tracingProc(tracing, proc);
-                return future.thenApplyAsync(__ -> tracedProc.apply(optional.get()), executor);
+                Function<T, Optional<U>> tracedProc = tracingProc(tracing, scheduler, proc);
+                return supplyAsync(() -> tracedProc.apply(optional.get()), procExecutor, scheduler, rejection);
+            }
+            if ( tracing != null ) {
+                tracing.skipped();
             }
             return CompletableFuture.completedFuture(Optional.empty());
         });
-        return new StagedFutureImpl<>(executor, nextStage, tracing);
+        return newStage(nextStage);
     }
 
     @Override
@@ -93,21 +118,121 @@ class StagedFutureImpl<T> implements StagedFuture<T>, StagedFutureTimeout<T> {
                 return stage.apply(optional.get());
             }
 
+            if ( tracing != null ) {
+                tracing.skipped();
+            }
             return CompletableFuture.completedFuture(Optional.empty());
         }, executor);
-        return new StagedFutureImpl<>(executor, stageIf, tracing);
+        return newStage(stageIf);
+    }
+
+    @Override
+    public <U> StagedStream<U> thenStreamIf(Function<T, Stream<U>> proc) {
+        Objects.requireNonNull(proc, "proc cannot be null");
+        return new StagedStreamImpl<>(this, proc, StagedFutureImpl::of);
+    }
+
+    @Override
+    public StagedFuture<T> thenRateLimit(RateLimiter limiter, Duration maxWait) {
+        Objects.requireNonNull(limiter, "limiter cannot be null");
+        Objects.requireNonNull(maxWait, "maxWait cannot be null");
+        CompletionStage<Optional<T>> next = future.thenCompose(optional -> {
+            if ( optional.isPresent() ) {
+                long waitNanos = limiter.reserve(maxWait);
+                if ( waitNanos < 0 ) {
+                    StageEvents.aborted();
+                    if ( tracing != null ) {
+                        tracing.aborted();
+                    }
+                    return CompletableFuture.completedFuture(Optional.empty());
+                }
+                if ( waitNanos > 0 ) {
+                    return Timeout.delay(scheduler, optional, waitNanos, executor);
+                }
+            }
+            return CompletableFuture.completedFuture(optional);
+        });
+        return newStage(next);
     }
 
     @Override
     public StagedFuture<T> withTimeout(Duration max) {
-        CompletionStage<Optional<T>> timeout = Timeout.within(future, max);
-        return new StagedFutureImpl<>(executor, timeout, tracing);
+        CompletionStage<Optional<T>> timeout = Timeout.within(future, max, scheduler, tracing);
+        return newStage(timeout);
     }
 
     @Override
     public StagedFuture<T> withTimeout(Duration max, Supplier<T> defaultValue) {
-        CompletionStage<Optional<T>> timeout = Timeout.within(future, max, () -> of(defaultValue.get()));
-        return new StagedFutureImpl<>(executor, timeout, tracing);
+        CompletionStage<Optional<T>> timeout = Timeout.within(future, max, () -> of(defaultValue.get()), executor, scheduler, tracing);
+        return newStage(timeout);
+    }
+
+    @Override
+    public StagedFuture<T> withAdaptiveTimeout(LatencyTracker tracker, double percentile, double multiplier, Duration floor, Duration ceiling) {
+        Duration max = adaptiveTimeout(tracker, percentile, multiplier, floor, ceiling);
+        long startNanos = scheduler.nanoTime();
+        CompletionStage<Optional<T>> timeout = Timeout.within(future, max, scheduler, tracing);
+        return newStage(recordLatency(tracker, startNanos, timeout));
+    }
+
+    @Override
+    public StagedFuture<T> withAdaptiveTimeout(LatencyTracker tracker, double percentile, double multiplier, Duration floor, Duration ceiling, Supplier<T> defaultValue) {
+        Duration max = adaptiveTimeout(tracker, percentile, multiplier, floor, ceiling);
+        long startNanos = scheduler.nanoTime();
+        CompletionStage<Optional<T>> timeout = Timeout.within(future, max, () -> of(defaultValue.get()), executor, scheduler, tracing);
+        return newStage(recordLatency(tracker, startNanos, timeout));
+    }
+
+    private Duration adaptiveTimeout(LatencyTracker tracker, double percentile, double multiplier, Duration floor, Duration ceiling) {
+        Objects.requireNonNull(tracker, "tracker cannot be null");
+        Objects.requireNonNull(floor, "floor cannot be null");
+        Objects.requireNonNull(ceiling, "ceiling cannot be null");
+        if ( !(percentile >= 0) || (percentile > 100) ) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        if ( !(multiplier > 0) ) {
+            throw new IllegalArgumentException("multiplier must be greater than 0");
+        }
+        if ( floor.compareTo(ceiling) > 0 ) {
+            throw new IllegalArgumentException("floor cannot be greater than ceiling");
+        }
+
+        Duration timeout;
+        long percentileNanos = tracker.nanosAtPercentile(percentile);
+        if ( percentileNanos < 0 ) {
+            timeout = ceiling;
+        } else {
+            timeout = Duration.ofNanos((long)Math.min(percentileNanos * multiplier, Long.MAX_VALUE));
+        }
+        if ( timeout.compareTo(floor) < 0 ) {
+            timeout = floor;
+        } else if ( timeout.compareTo(ceiling) > 0 ) {
+            timeout = ceiling;
+        }
+        return timeout;
+    }
+
+    private CompletionStage<Optional<T>> recordLatency(LatencyTracker tracker, long startNanos, CompletionStage<Optional<T>> timeout) {
+        // values, failures and timeouts (at the time they elapse) are recorded - aborted/skipped stages did no work
+        timeout.whenComplete((value, e) -> {
+            if ( (e != null) || value.isPresent() ) {
+                tracker.record(scheduler.nanoTime() - startNanos);
+            }
+        });
+        return timeout;
+    }
+
+    @Override
+    public StagedFuture<T> withFallback(Function<Throwable, CompletionStage<Optional<T>>> fallback) {
+        Objects.requireNonNull(fallback, "fallback cannot be null");
+        CompletionStage<Optional<T>> next = future.handleAsync((value, e) -> {
+            if ( e != null ) {
+                Throwable cause = ((e instanceof CompletionException) && (e.getCause() != null)) ? e.getCause() : e;
+                return fallback.apply(cause);
+            }
+            return CompletableFuture.completedFuture(value);
+        }, Timeout.offTimerThread(scheduler, executor)).thenCompose(Function.identity());
+        return newStage(next);
     }
 
     @Override
@@ -122,8 +247,8 @@ class StagedFutureImpl<T> implements StagedFuture<T>, StagedFutureTimeout<T> {
     @Override
     public <U> StagedFuture<U> whenSucceededYield(Function<T, U> handler) {
         Objects.requireNonNull(handler, "handler cannot be null");
-        CompletionStage<Optional<U>> next = Aborted.whenSucceededAsync(future, value -> of(handler.apply(value)));
-        return new StagedFutureImpl<>(executor, next, tracing);
+        CompletionStage<Optional<U>> next = Aborted.whenSucceededAsync(future, value -> of(handler.apply(value)), executor);
+        return newStage(next);
     }
 
     @Override
@@ -133,7 +258,7 @@ class StagedFutureImpl<T> implements StagedFuture<T>, StagedFutureTimeout<T> {
             handler.run();
             return Optional.empty();
         }, executor);
-        return new StagedFutureImpl<>(executor, wrapped, tracing);
+        return newStage(wrapped);
     }
 
     @Override
@@ -144,7 +269,7 @@ class StagedFutureImpl<T> implements StagedFuture<T>, StagedFutureTimeout<T> {
             }
             return Optional.empty();
         }, executor);
-        return new StagedFutureImpl<>(executor, next, tracing);
+        return newStage(next);
     }
 
     @Override
@@ -153,46 +278,99 @@ class StagedFutureImpl<T> implements StagedFuture<T>, StagedFutureTimeout<T> {
             handler.run();
             return (value != null) ? value : Optional.empty();
         }, executor);
-        return new StagedFutureImpl<>(executor, next, tracing);
+        return newStage(next);
     }
 
-    private StagedFutureImpl(Executor executor, CompletionStage<Optional<T>> future, Tracing tracing) {
+    private StagedFutureImpl(Executor executor, CompletionStage<Optional<T>> future, Tracing tracing, StagedScope.Chain chain, Scheduler scheduler, RejectionPolicy rejection) {
         this.executor = executor;
         this.future = future;
         this.tracing = tracing;
+        this.chain = chain;
+        this.scheduler = scheduler;
+        this.rejection = rejection;
+
+        if ( chain != null ) {
+            chain.add(future, tracing);
+        }
+    }
+
+    <U> StagedFutureImpl<U> newStage(CompletionStage<Optional<U>> stage) {
+        return new StagedFutureImpl<>(executor, stage, tracing, chain, scheduler, rejection);
+    }
+
+    // like CompletableFuture.supplyAsync() but a rejected submission is handled by the chain's rejection policy
+    private static <U> CompletableFuture<U> supplyAsync(Supplier<U> proc, Executor executor, Scheduler scheduler, RejectionPolicy rejection) {
+        CompletableFuture<U> result = new CompletableFuture<>();
+        Runnable command = () -> {
+            try {
+                result.complete(proc.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        };
+        RejectionPolicy.execute(rejection, executor, scheduler, command, result::completeExceptionally);
+        return result;
     }
 
-    private static <U> Optional<U> trace(Tracing tracing, Supplier<Optional<U>> proc) {
-        Instant start = Instant.now();
-        tracing.startProc();
+    static <U> Optional<U> trace(Tracing tracing, Scheduler scheduler, long enqueuedNanos, Supplier<Optional<U>> proc) {
+        Object event = StageEvents.stageBegin();
+        long startNanos = 0;
+        long cpuStartNanos = BlockingDetector.notMeasured;
+        if ( tracing != null ) {
+            startNanos = scheduler.nanoTime();
+            tracing.startProc(Duration.ofNanos(startNanos - enqueuedNanos));
+            cpuStartNanos = BlockingDetector.start(tracing);
+        }
         try {
             Optional<U> result = proc.get();
-            tracing.endProcSuccess(Duration.between(start, Instant.now()));
+            if ( tracing != null ) {
+                long durationNanos = scheduler.nanoTime() - startNanos;
+                tracing.endProcSuccess(Duration.ofNanos(durationNanos));
+                BlockingDetector.end(tracing, cpuStartNanos, durationNanos);
+            }
+            if ( result.isPresent() ) {
+                StageEvents.stageEnd(event, StageEvents.Outcome.SUCCEEDED, null);
+            } else {
+                StageEvents.stageEnd(event, StageEvents.Outcome.ABORTED, null);
+                StageEvents.aborted();
+                if ( tracing != null ) {
+                    tracing.aborted();
+                }
+            }
             return result;
         } catch (Throwable e) {
-            tracing.endProcFail(e, Duration.between(start, Instant.now()));
+            if ( tracing != null ) {
+                long durationNanos = scheduler.nanoTime() - startNanos;
+                tracing.endProcFail(e, Duration.ofNanos(durationNanos));
+                BlockingDetector.end(tracing, cpuStartNanos, durationNanos);
+            }
+            StageEvents.stageEnd(event, StageEvents.Outcome.FAILED, e);
             throw e;
         }
     }
 
-    private static <T, U> Function<T, Optional<U>> tracingProc(Tracing tracing, Function<T, Optional<U>> proc) {
+    // called when the task is submitted to the executor - the submission time is the start of the task's queue wait
+    private static <T, U> Function<T, Optional<U>> tracingProc(Tracing tracing, Scheduler scheduler, Function<T, Optional<U>> proc) {
         Objects.requireNonNull(proc, "proc cannot be null");
 
-        if ( tracing == null ) {
+        if ( (tracing == null) && !StageEvents.isTaskEventEnabled() ) {
             return proc;
         }
 
-        return value -> trace(tracing, () -> proc.apply(value));
+        long enqueuedNanos = scheduler.nanoTime();
+        return value -> trace(tracing, scheduler, enqueuedNanos, () -> proc.apply(value));
     }
 
-    private static <T> Supplier<Optional<T>> tracingProc(Tracing tracing, Supplier<Optional<T>> proc) {
+    // called when the task is submitted to the executor - the submission time is the start of the task's queue wait
+    private static <T> Supplier<Optional<T>> tracingProc(Tracing tracing, Scheduler scheduler, Supplier<Optional<T>> proc) {
         Objects.requireNonNull(proc, "proc cannot be null");
 
-        if ( tracing == null ) {
+        if ( (tracing == null) && !StageEvents.isTaskEventEnabled() ) {
             return proc;
         }
 
-        return () -> trace(tracing, proc);
+        long enqueuedNanos = scheduler.nanoTime();
+        return () -> trace(tracing, scheduler, enqueuedNanos, proc);
     }
 
     private static <T> Optional<T> of(T value) {
@@ -36,11 +36,43 @@ public interface StagedFutureTimeout<T> extends StagedFuture<T> {
     /**
      * Sets a timeout for this stage's task. If the given timeout
      * elapses before the task completes this stage is completed
-     * with the given default value.
+     * with the given default value. The default value supplier is called via the
+     * chain's executor (never in the shared timeout thread).
      *
      * @param max max time for the task to execute
      * @param defaultValue value to set if the task times out
      * @return next stage in the chain
      */
     StagedFuture<T> withTimeout(Duration max, Supplier<T> defaultValue);
+
+    /**
+     * Sets a timeout for this stage's task that is derived from the stage's recent latencies. The
+     * timeout is <code>tracker.getValueAtPercentile(percentile) * multiplier</code> bounded by
+     * <code>floor</code> and <code>ceiling</code> (<code>ceiling</code> is used while the tracker has no values).
+     * The stage's latency is recorded to the tracker when it completes with a value or fails. A timeout is recorded
+     * as the time until it elapsed. Stages that are aborted or skipped (empty Optionals) are not recorded.
+     * Otherwise the same as {@link #withTimeout(Duration)}.
+     *
+     * @param tracker latencies of this stage - share the tracker between all chains that call the same backend
+     * @param percentile percentile between 0 and 100 - e.g. <code>99</code>
+     * @param multiplier multiplier for the percentile value - e.g. <code>1.5</code>
+     * @param floor minimum timeout
+     * @param ceiling maximum timeout
+     * @return next stage in the chain
+     */
+    StagedFuture<T> withAdaptiveTimeout(LatencyTracker tracker, double percentile, double multiplier, Duration floor, Duration ceiling);
+
+    /**
+     * Same as {@link #withAdaptiveTimeout(LatencyTracker, double, double, Duration, Duration)} but the stage
+     * completes with the given default value if the timeout elapses (see {@link #withTimeout(Duration, Supplier)})
+     *
+     * @param tracker latencies of this stage - share the tracker between all chains that call the same backend
+     * @param percentile percentile between 0 and 100 - e.g. <code>99</code>
+     * @param multiplier multiplier for the percentile value - e.g. <code>1.5</code>
+     * @param floor minimum timeout
+     * @param ceiling maximum timeout
+     * @param defaultValue value to set if the task times out
+     * @return next stage in the chain
+     */
+    StagedFuture<T> withAdaptiveTimeout(LatencyTracker tracker, double percentile, double multiplier, Duration floor, Duration ceiling, Supplier<T> defaultValue);
 }
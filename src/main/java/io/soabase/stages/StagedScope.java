@@ -0,0 +1,282 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import io.soabase.stages.jfr.StageEvents;
+import io.soabase.stages.tracing.Cancelable;
+import io.soabase.stages.tracing.Tracing;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * <p>
+ * Owns every StagedFuture chain started via its builders. Closing or canceling the scope cancels
+ * all of its chains that are still running (including any pending timeouts) and interrupts
+ * their running tasks. E.g.
+ * </p>
+ *
+ * <pre>
+ * try ( StagedScope scope = new StagedScope() ) {
+ *     scope.async(executor).thenIf(() -&gt; worker("1")).thenIf(s -&gt; worker("2"));
+ *     scope.async(executor).thenIf(() -&gt; worker("3"));
+ *     scope.joinAll(Duration.ofSeconds(10));
+ * }   // anything still running is canceled here
+ * </pre>
+ */
+public class StagedScope implements AutoCloseable {
+    private final Set<CompletableFuture<?>> stages = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Set<Cancelable> cancelables = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private volatile boolean isCanceled = false;
+    private int activeChains = 0;   // guarded by this
+    private int unjoinedIdleChains = 0; // guarded by this - idle chains that went idle after the last joinAny()
+    private long idleGeneration = 0;    // guarded by this
+    private long joinedGeneration = 0;  // guarded by this
+
+    // A chain can have stages added to it at any time so it has no definite end. Instead, a chain is
+    // active while it has stages that haven't completed and idle otherwise. joinAll()/joinAny()
+    // check the current state when called rather than counting transitions - a chain that goes idle
+    // between two of its stages being added is not "completed". The scope only counts idle chains
+    // (it doesn't hold them) so that they can be collected.
+    class Chain {
+        private Cancelable cancelable;      // guarded by StagedScope.this - only set while active
+        private int pending = 0;            // guarded by StagedScope.this
+        private boolean isIdle = false;     // guarded by StagedScope.this
+        private long idleSince = 0;         // guarded by StagedScope.this - generation when the chain went idle
+
+        private Chain() {
+        }
+
+        void add(CompletionStage<?> stage, Tracing tracing) {
+            CompletableFuture<?> future;
+            try {
+                future = stage.toCompletableFuture();
+            } catch (UnsupportedOperationException e) {
+                return; // can't be canceled
+            }
+            if ( future.isDone() ) {
+                synchronized(StagedScope.this) {
+                    if ( (pending == 0) && !isIdle ) {
+                        chainIdle(this, false);
+                    }
+                }
+                return;
+            }
+
+            stages.add(future);
+            synchronized(StagedScope.this) {
+                if ( pending++ == 0 ) {
+                    chainActive(this, (tracing instanceof Cancelable) ? (Cancelable)tracing : null);
+                }
+            }
+            future.whenComplete((__, ___) -> {
+                stages.remove(future);
+                synchronized(StagedScope.this) {
+                    if ( --pending == 0 ) {
+                        chainIdle(this, true);
+                    }
+                }
+            });
+
+            if ( isCanceled ) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Start a StagedFuture owned by this scope that executes tasks synchronously in the calling thread.
+     *
+     * @return builder
+     */
+    public StagedFutureBuilder sync() {
+        return sync(null);
+    }
+
+    /**
+     * Start a StagedFuture owned by this scope that executes tasks synchronously in the calling thread.
+     * You can provide a tracer that wraps/traces all tasks.
+     *
+     * @param tracing the tracer
+     * @return builder
+     */
+    public StagedFutureBuilder sync(Tracing tracing) {
+        return async(Runnable::run, tracing);
+    }
+
+    /**
+     * Start a StagedFuture owned by this scope that executes tasks asynchronously using the given executor.
+     *
+     * @param executor executor to use to run tasks
+     * @return builder
+     */
+    public StagedFutureBuilder async(Executor executor) {
+        return async(executor, null);
+    }
+
+    /**
+     * Start a StagedFuture owned by this scope that executes tasks asynchronously using the given executor.
+     * You can provide a tracer that wraps/traces all tasks.
+     *
+     * @param executor executor to use to run tasks
+     * @param tracing the tracer
+     * @return builder
+     */
+    public StagedFutureBuilder async(Executor executor, Tracing tracing) {
+        Cancelable cancelable = new Cancelable(tracing);
+        if ( isCanceled ) {
+            cancelable.cancelChain(false);
+        }
+        return new StagedFutureBuilderImpl(executor, cancelable, this);
+    }
+
+    /**
+     * Start a StagedFuture owned by this scope that executes tasks asynchronously using the
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()}
+     *
+     * @return builder
+     */
+    public StagedFutureBuilder asyncPool() {
+        return async(StagedFutureImpl.asyncPool, null);
+    }
+
+    /**
+     * Start a StagedFuture owned by this scope that executes tasks asynchronously using the
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()}
+     * You can provide a tracer that wraps/traces all tasks.
+     *
+     * @param tracing the tracer
+     * @return builder
+     */
+    public StagedFutureBuilder asyncPool(Tracing tracing) {
+        return async(StagedFutureImpl.asyncPool, tracing);
+    }
+
+    /**
+     * Wait until all chains owned by this scope have completed
+     *
+     * @param maxWait max time to wait
+     * @return true if all chains completed, false if the time elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean joinAll(Duration maxWait) throws InterruptedException {
+        return await(maxWait, () -> activeChains == 0);
+    }
+
+    /**
+     * Wait until at least one of the chains owned by this scope has completed since the last call to
+     * <code>joinAny()</code> that returned true (or there are no running chains). A chain has completed when
+     * none of its stages are running. Call repeatedly to wait for each subsequent completion.
+     *
+     * @param maxWait max time to wait
+     * @return true if a chain has completed, false if the time elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean joinAny(Duration maxWait) throws InterruptedException {
+        if ( !await(maxWait, () -> (unjoinedIdleChains > 0) || (activeChains == 0)) ) {
+            return false;
+        }
+        unjoinedIdleChains = 0;
+        joinedGeneration = idleGeneration;
+        return true;
+    }
+
+    /**
+     * Cancel all chains owned by this scope. Running tasks are optionally interrupted, tasks that have not
+     * yet started will not run, pending timeouts are canceled and chains started after this call are
+     * canceled immediately.
+     *
+     * @param mayInterruptIfRunning if true, any running tasks are interrupted
+     */
+    public void cancel(boolean mayInterruptIfRunning) {
+        isCanceled = true;
+        StageEvents.canceled("scope", mayInterruptIfRunning);
+        // cancel the stages first so that the chains complete as canceled rather than with whatever the interrupted tasks throw
+        new ArrayList<>(stages).forEach(future -> future.cancel(mayInterruptIfRunning));
+        cancelables.forEach(cancelable -> cancelable.cancelChain(mayInterruptIfRunning));
+    }
+
+    /**
+     * @return true if this scope has been canceled/closed
+     */
+    public boolean isCanceled() {
+        return isCanceled;
+    }
+
+    /**
+     * Closes the scope by canceling any chains that are still running. Same as <code>cancel(true)</code>
+     */
+    @Override
+    public void close() {
+        cancel(true);
+    }
+
+    Chain newChain() {
+        return new Chain();
+    }
+
+    // the Cancelable is only held while the chain is active so that idle chains can be collected
+    private synchronized void chainActive(Chain chain, Cancelable cancelable) {
+        ++activeChains;
+        if ( chain.isIdle ) {
+            chain.isIdle = false;
+            if ( chain.idleSince > joinedGeneration ) {
+                --unjoinedIdleChains;  // not yet seen by joinAny() - it hadn't completed after all
+            }
+        }
+        chain.cancelable = cancelable;
+        if ( cancelable != null ) {
+            cancelables.add(cancelable);
+            if ( isCanceled ) {
+                cancelable.cancelChain(false);
+            }
+        }
+    }
+
+    private synchronized void chainIdle(Chain chain, boolean wasActive) {
+        if ( wasActive ) {
+            --activeChains;
+        }
+        chain.isIdle = true;
+        chain.idleSince = ++idleGeneration;
+        ++unjoinedIdleChains;
+        if ( chain.cancelable != null ) {
+            cancelables.remove(chain.cancelable);
+            chain.cancelable = null;
+        }
+        notifyAll();
+    }
+
+    private boolean await(Duration maxWait, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        while ( !condition.getAsBoolean() ) {
+            long remaining = deadline - System.nanoTime();
+            if ( remaining <= 0 ) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+}
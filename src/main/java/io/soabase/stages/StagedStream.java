@@ -0,0 +1,60 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Collector;
+
+/**
+ * <p>
+ * A stage that produces its result incrementally (see {@link StagedFuture#thenStreamIf(Function)}).
+ * Tasks added via {@link #thenEachIf(Function)} are applied to each element as it is produced
+ * instead of waiting for the entire result. Nothing executes until a terminal stage
+ * ({@link #thenCollect(Collector)}) is added. i.e. only the element currently being processed
+ * needs to be in memory (plus whatever the collector keeps).
+ * </p>
+ */
+public interface StagedStream<T> {
+    /**
+     * <p>
+     * Apply the given task to each element of the stream as it is produced. If the task
+     * returns {@link Optional#empty()} for any element, the stream is closed and the entire
+     * StagedFuture chain is considered to be aborted.
+     * </p>
+     *
+     * @param proc task to execute for each element
+     * @return next stage of the stream
+     */
+    <U> StagedStream<U> thenEachIf(Function<T, Optional<U>> proc);
+
+    /**
+     * <p>
+     * Run the stream as the next task of the chain, reducing the elements with the given
+     * collector. The stream is consumed (and closed) in a single task using the chain's
+     * executor and tracer.
+     * </p>
+     *
+     * <p>
+     * Note: the returned value is a {@link StagedFutureTimeout} which allows
+     * a timeout and an optional default to be set for the task.
+     * </p>
+     *
+     * @param collector collector for the elements
+     * @return next stage in the chain
+     */
+    <R> StagedFutureTimeout<R> thenCollect(Collector<? super T, ?, R> collector);
+}
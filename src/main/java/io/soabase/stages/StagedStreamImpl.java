@@ -0,0 +1,63 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+
+class StagedStreamImpl<S, E, T> implements StagedStream<T> {
+    private final StagedFutureImpl<S> upstream;
+    private final Function<S, Stream<E>> producer;
+    private final Function<E, Optional<T>> each;
+
+    StagedStreamImpl(StagedFutureImpl<S> upstream, Function<S, Stream<E>> producer, Function<E, Optional<T>> each) {
+        this.upstream = upstream;
+        this.producer = producer;
+        this.each = each;
+    }
+
+    @Override
+    public <U> StagedStream<U> thenEachIf(Function<T, Optional<U>> proc) {
+        Objects.requireNonNull(proc, "proc cannot be null");
+        // composed lazily - each element goes through every per-element task before the next element is produced
+        return new StagedStreamImpl<>(upstream, producer, element -> each.apply(element).flatMap(proc));
+    }
+
+    @Override
+    public <R> StagedFutureTimeout<R> thenCollect(Collector<? super T, ?, R> collector) {
+        Objects.requireNonNull(collector, "collector cannot be null");
+        return upstream.thenIf(value -> collect(value, collector));
+    }
+
+    private <A, R> Optional<R> collect(S value, Collector<? super T, A, R> collector) {
+        try ( Stream<E> stream = producer.apply(value) ) {
+            A container = collector.supplier().get();
+            Iterator<E> iterator = stream.iterator();
+            while ( iterator.hasNext() ) {
+                Optional<T> element = each.apply(iterator.next());
+                if ( !element.isPresent() ) {
+                    return Optional.empty();
+                }
+                collector.accumulator().accept(container, element.get());
+            }
+            return Optional.of(collector.finisher().apply(container));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * A histogram of nanosecond durations with one bucket per power of two. Each bucket is a
+ * {@link LongAdder} so concurrent recording from many threads doesn't contend on a shared
+ * cache line. Recording is a leading-zero count and one striped increment - cheap enough to
+ * leave on permanently. Values are reported as the upper bound of their bucket (i.e. within 2x).
+ * </p>
+ */
+public class StripedHistogram {
+    private static final int subBucketBits = 0;  // one bucket per power of two
+    private static final int bucketQty = LogLinearBuckets.bucketQty(subBucketBits);
+
+    private final LongAdder[] buckets = new LongAdder[bucketQty];
+
+    public StripedHistogram() {
+        for ( int i = 0; i < bucketQty; ++i ) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a value
+     *
+     * @param nanos value - negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        buckets[LogLinearBuckets.indexOf(nanos, subBucketBits)].increment();
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        long count = 0;
+        for ( LongAdder bucket : buckets ) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Bucket <code>0</code> counts values of 0. Bucket <code>N</code> counts values from 2<sup>N-1</sup> to
+     * 2<sup>N</sup>-1 nanoseconds.
+     *
+     * @return the count of each bucket
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[bucketQty];
+        for ( int i = 0; i < bucketQty; ++i ) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100 - e.g. <code>99.9</code>
+     * @return upper bound of the bucket containing the given percentile
+     */
+    public Duration getValueAtPercentile(double percentile) {
+        if ( !(percentile >= 0) || (percentile > 100) ) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for ( long count : counts ) {
+            total += count;
+        }
+        if ( total == 0 ) {
+            return Duration.ZERO;
+        }
+        long target = Math.max(1, (long)Math.ceil((percentile / 100.0) * total));
+        long seen = 0;
+        int index = 0;
+        while ( index < (bucketQty - 1) ) {
+            seen += counts[index];
+            if ( seen >= target ) {
+                break;
+            }
+            ++index;
+        }
+        return Duration.ofNanos(LogLinearBuckets.highestValueOf(index, subBucketBits));
+    }
+}
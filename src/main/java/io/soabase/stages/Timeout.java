@@ -15,42 +15,59 @@
  */
 package io.soabase.stages;
 
+import io.soabase.stages.jfr.StageEvents;
+import io.soabase.stages.time.Scheduler;
+import io.soabase.stages.tracing.Tracing;
+
 import java.time.Duration;
 import java.util.concurrent.*;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
-
 // see https://dzone.com/articles/asynchronous-timeouts
 public class Timeout {
     /**
-     * The underlying thread only used to complete exceptionally. We just need the queued scheduler
+     * Return a new CompletionStage that either calls <code>completeExceptionally()</code> after
+     * the given duration elapses or completes with the given future (exceptionally or normally).
+     *
+     * @param future main completion to wrap
+     * @param duration wait time
+     * @return new CompletionStage
      */
-    private static final ScheduledExecutorService scheduler =
-            Executors.newScheduledThreadPool(1, r -> {
-                    Thread thread = new Thread(r);
-                    thread.setDaemon(true);
-                    thread.setName("Timeout.FailAfter thread");
-                    return thread;
-                });
+    public static <T> CompletionStage<T> within(CompletionStage<T> future, Duration duration) {
+        return within(future, duration, Scheduler.system());
+    }
 
     /**
      * Return a new CompletionStage that either calls <code>completeExceptionally()</code> after
-     * the given duration elapses or completes with the given future (exceptionally or normally).
+     * the given duration elapses, as measured by the given scheduler, or completes with the given
+     * future (exceptionally or normally).
      *
      * @param future main completion to wrap
      * @param duration wait time
+     * @param scheduler the clock/timer to use
      * @return new CompletionStage
      */
-    public static <T> CompletionStage<T> within(CompletionStage<T> future, Duration duration) {
-        final CompletionStage<T> timeout = internalFailAfter(duration, null, false);
-        return future.applyToEither(timeout, Function.identity());
+    public static <T> CompletionStage<T> within(CompletionStage<T> future, Duration duration, Scheduler scheduler) {
+        return within(future, duration, scheduler, null);
+    }
+
+    /**
+     * Same as {@link #within(CompletionStage, Duration, Scheduler)} but the given tracer (if not null) is told when the timeout elapses
+     */
+    static <T> CompletionStage<T> within(CompletionStage<T> future, Duration duration, Scheduler scheduler, Tracing tracing) {
+        final CompletableFuture<T> timeout = new CompletableFuture<>();
+        final Scheduler.Task task = schedule(scheduler, timeout, duration, null, false, tracing);
+        final CompletionStage<T> result = future.applyToEither(timeout, Function.identity());
+        // once the result is known (or canceled) the timer is no longer needed - don't leave it in the scheduler's queue
+        result.whenComplete((__, ___) -> task.cancel());
+        return result;
     }
 
     /**
      * Return a new CompletionStage that either calls<code>complete(defaultValue)</code> after
      * the given duration elapses or completes with the given future (exceptionally or normally).
+     * The default value supplier is called via the {@link java.util.concurrent.ForkJoinPool#commonPool()}.
      *
      * @param future main completion to wrap
      * @param duration wait time
@@ -58,8 +75,64 @@ public class Timeout {
      * @return new CompletionStage
      */
     public static <T> CompletionStage<T> within(CompletionStage<T> future, Duration duration, Supplier<T> defaultValue) {
-        final CompletionStage<T> timeout = internalFailAfter(duration, defaultValue, true);
-        return future.applyToEither(timeout, Function.identity());
+        return within(future, duration, defaultValue, StagedFutureImpl.asyncPool);
+    }
+
+    /**
+     * Return a new CompletionStage that either completes with the value of <code>defaultValue</code> after
+     * the given duration elapses or completes with the given future (exceptionally or normally). The default
+     * value supplier is called via the given executor - never in the timer thread.
+     *
+     * @param future main completion to wrap
+     * @param duration wait time
+     * @param defaultValue value to complete with on duration elapse
+     * @param executor executor used to call <code>defaultValue</code>
+     * @return new CompletionStage
+     */
+    public static <T> CompletionStage<T> within(CompletionStage<T> future, Duration duration, Supplier<T> defaultValue, Executor executor) {
+        return within(future, duration, defaultValue, executor, Scheduler.system());
+    }
+
+    /**
+     * Return a new CompletionStage that either completes with the value of <code>defaultValue</code> after
+     * the given duration elapses, as measured by the given scheduler, or completes with the given future
+     * (exceptionally or normally). The default value supplier is called via the given executor - never in
+     * the timer thread.
+     *
+     * @param future main completion to wrap
+     * @param duration wait time
+     * @param defaultValue value to complete with on duration elapse
+     * @param executor executor used to call <code>defaultValue</code>
+     * @param scheduler the clock/timer to use
+     * @return new CompletionStage
+     */
+    public static <T> CompletionStage<T> within(CompletionStage<T> future, Duration duration, Supplier<T> defaultValue, Executor executor, Scheduler scheduler) {
+        return within(future, duration, defaultValue, executor, scheduler, null);
+    }
+
+    /**
+     * Same as {@link #within(CompletionStage, Duration, Supplier, Executor, Scheduler)} but the given tracer (if not null) is told when the timeout elapses
+     */
+    static <T> CompletionStage<T> within(CompletionStage<T> future, Duration duration, Supplier<T> defaultValue, Executor executor, Scheduler scheduler, Tracing tracing) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, e) -> {
+            if ( e != null ) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(value);
+            }
+        });
+        final Scheduler.Task task = scheduler.schedule(() -> {
+            if ( !result.isDone() ) {
+                StageEvents.timeout(duration, true);
+                if ( tracing != null ) {
+                    tracing.timedOut(duration, true);
+                }
+                completeWithDefault(scheduler, result, defaultValue, executor);
+            }
+        }, duration);
+        result.whenComplete((__, ___) -> task.cancel());
+        return result;
     }
 
     /**
@@ -70,33 +143,97 @@ public class Timeout {
      * @return new CompletionStage
      */
     public static <T> CompletionStage<T> failAfter(Duration duration) {
-        return internalFailAfter(duration, null, false);
+        return internalFailAfter(Scheduler.system(), duration, null, false);
     }
 
     /**
      * Return a new CompletionStage that calls <code>complete(defaultValue)</code> after
-     * the given duration elapses.
+     * the given duration elapses. The default value supplier is called via the
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()}.
      *
      * @param duration wait time
      * @param defaultValue value to complete with on duration elapse
      * @return new CompletionStage
      */
     public static <T> CompletionStage<T> failAfter(Duration duration, Supplier<T> defaultValue) {
-        return internalFailAfter(duration, defaultValue, true);
+        return internalFailAfter(Scheduler.system(), duration, defaultValue, true);
+    }
+
+    /**
+     * Return a new CompletionStage that calls <code>completeExceptionally()</code> after
+     * the given duration elapses as measured by the given scheduler.
+     *
+     * @param duration wait time
+     * @param scheduler the clock/timer to use
+     * @return new CompletionStage
+     */
+    public static <T> CompletionStage<T> failAfter(Duration duration, Scheduler scheduler) {
+        return internalFailAfter(scheduler, duration, null, false);
     }
 
-    private static <T> CompletionStage<T> internalFailAfter(Duration duration, Supplier<T> defaultValue, boolean useDefaultValue) {
+    /**
+     * Return a new CompletionStage that completes with the given value, via the given executor, after the given delay
+     */
+    static <T> CompletionStage<T> delay(Scheduler scheduler, T value, long delayNanos, Executor executor) {
         final CompletableFuture<T> future = new CompletableFuture<>();
-        scheduler.schedule(() -> {
-            final TimeoutException ex = new TimeoutException("Timeout after " + duration);
-            if ( useDefaultValue ) {
-                return future.complete(defaultValue.get());
+        scheduler.schedule(() -> execute(offTimerThread(scheduler, executor), () -> future.complete(value), future), Duration.ofNanos(delayNanos));
+        return future;
+    }
+
+    /**
+     * Return an executor that never runs commands in a timer thread. Commands submitted from a timer
+     * thread that the given executor would run inline (e.g. synchronous chains) are run via the common pool instead.
+     */
+    static Executor offTimerThread(Scheduler scheduler, Executor executor) {
+        return command -> executor.execute(() -> {
+            if ( scheduler.isTimerThread() ) {
+                StagedFutureImpl.asyncPool.execute(command);
+            } else {
+                command.run();
             }
-            return future.completeExceptionally(ex);
-        }, duration.toMillis(), MILLISECONDS);
+        });
+    }
+
+    private static <T> CompletionStage<T> internalFailAfter(Scheduler scheduler, Duration duration, Supplier<T> defaultValue, boolean useDefaultValue) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final Scheduler.Task task = schedule(scheduler, future, duration, defaultValue, useDefaultValue, null);
+        future.whenComplete((__, ___) -> task.cancel());
         return future;
     }
 
+    private static <T> Scheduler.Task schedule(Scheduler scheduler, CompletableFuture<T> future, Duration duration, Supplier<T> defaultValue, boolean useDefaultValue, Tracing tracing) {
+        return scheduler.schedule(() -> {
+            StageEvents.timeout(duration, useDefaultValue);
+            if ( tracing != null ) {
+                tracing.timedOut(duration, useDefaultValue);
+            }
+            if ( useDefaultValue ) {
+                completeWithDefault(scheduler, future, defaultValue, StagedFutureImpl.asyncPool);
+            } else {
+                future.completeExceptionally(new TimeoutException("Timeout after " + duration));
+            }
+        }, duration);
+    }
+
+    // the timer thread only ever completes futures - the default value is produced elsewhere
+    private static <T> void completeWithDefault(Scheduler scheduler, CompletableFuture<T> future, Supplier<T> defaultValue, Executor executor) {
+        execute(offTimerThread(scheduler, executor), () -> {
+            try {
+                future.complete(defaultValue.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }, future);
+    }
+
+    private static void execute(Executor executor, Runnable command, CompletableFuture<?> future) {
+        try {
+            executor.execute(command);
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
     private Timeout() {
     }
 }
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.checkpoint;
+
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Checkpoints for one chain of a {@link CheckpointJournal}. Wrap the chain's tasks so that their
+ * results are journaled and, when the chain is run again with the same id, replayed instead of recomputed:
+ * </p>
+ *
+ * <pre>
+ * ChainCheckpoints checkpoints = journal.forChain(reportId);
+ * StagedFuture.async(executor)
+ *     .thenIf(checkpoints.initialStage("load", Serializer.java(), () -&gt; loadData(reportId)))
+ *     .thenIf(checkpoints.stage("score", Serializer.java(), data -&gt; score(data)))     // multi-minute
+ *     .thenIf(checkpoints.stage("render", Serializer.string(), scores -&gt; render(scores)))
+ *     .whenSucceeded(report -&gt; checkpoints.complete());
+ * </pre>
+ *
+ * <p>
+ * Tasks that return {@link Optional#empty()} or throw are not checkpointed. Unwrapped tasks always run -
+ * wrap every task that shouldn't be repeated.
+ * </p>
+ */
+public class ChainCheckpoints {
+    private final CheckpointJournal journal;
+    private final String chainId;
+
+    ChainCheckpoints(CheckpointJournal journal, String chainId) {
+        this.journal = journal;
+        this.chainId = chainId;
+    }
+
+    /**
+     * @return this chain's id
+     */
+    public String getChainId() {
+        return chainId;
+    }
+
+    /**
+     * Wrap the first task of a chain (see {@link io.soabase.stages.StagedFutureBuilder#thenIf(Supplier)})
+     *
+     * @param name stage name - unique within the chain
+     * @param serializer serializer for the task's result
+     * @param proc the task
+     * @return wrapped task
+     */
+    public <U> Supplier<Optional<U>> initialStage(String name, Serializer<U> serializer, Supplier<Optional<U>> proc) {
+        Objects.requireNonNull(proc, "proc cannot be null");
+        return () -> run(name, serializer, proc);
+    }
+
+    /**
+     * Wrap a task of a chain (see {@link io.soabase.stages.StagedFuture#thenIf(Function)})
+     *
+     * @param name stage name - unique within the chain
+     * @param serializer serializer for the task's result
+     * @param proc the task
+     * @return wrapped task
+     */
+    public <T, U> Function<T, Optional<U>> stage(String name, Serializer<U> serializer, Function<T, Optional<U>> proc) {
+        Objects.requireNonNull(proc, "proc cannot be null");
+        return value -> run(name, serializer, () -> proc.apply(value));
+    }
+
+    /**
+     * @param name stage name
+     * @return true if the stage has a checkpoint
+     */
+    public boolean hasCheckpoint(String name) {
+        return journal.read(chainId, name) != null;
+    }
+
+    /**
+     * Mark the chain as complete. Its checkpoints are no longer replayed and are removed by {@link CheckpointJournal#compact()}.
+     */
+    public void complete() {
+        journal.complete(chainId);
+    }
+
+    private <U> Optional<U> run(String name, Serializer<U> serializer, Supplier<Optional<U>> proc) {
+        Objects.requireNonNull(name, "name cannot be null");
+        Objects.requireNonNull(serializer, "serializer cannot be null");
+
+        byte[] saved = journal.read(chainId, name);
+        if ( saved != null ) {
+            try {
+                return Optional.of(serializer.deserialize(saved));
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not deserialize checkpoint: " + chainId + "/" + name, e);
+            }
+        }
+
+        Optional<U> result = proc.get();
+        if ( result.isPresent() ) {
+            byte[] bytes;
+            try {
+                bytes = serializer.serialize(result.get());
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not serialize checkpoint: " + chainId + "/" + name, e);
+            }
+            journal.checkpoint(chainId, name, bytes);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,321 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.checkpoint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * An append-only, memory-mapped journal of stage results. Get a handle for a chain via {@link #forChain(String)}
+ * and wrap the chain's expensive stages with it - each wrapped stage's result is appended to the journal when
+ * the stage completes. When the chain is run again (e.g. after a restart) with the same chain id, stages that
+ * already have a checkpoint return the saved result instead of running. When the chain completes, call
+ * {@link ChainCheckpoints#complete()} so that its checkpoints become garbage that {@link #compact()} removes.
+ * </p>
+ *
+ * <p>
+ * Each record has a CRC. On open, the journal is read up to the first missing or corrupt record (e.g. a write
+ * torn by a crash) and new records are appended from there. Writes go to the page cache via the mapping, so
+ * they survive a process crash. Use <code>syncEachWrite</code> to also survive an OS crash/power loss, at the
+ * cost of an <code>msync</code> per checkpoint.
+ * </p>
+ *
+ * <p>
+ * The journal is thread safe. A journal file must only be opened by one instance at a time.
+ * </p>
+ */
+public class CheckpointJournal implements Closeable {
+    private static final byte typeCheckpoint = 1;
+    private static final byte typeComplete = 2;
+    private static final int headerSize = 8;   // length + crc
+    private static final int initialCapacity = 1 << 20;
+
+    private final Path path;
+    private final boolean syncEachWrite;
+    private final Map<String, LinkedHashMap<String, Entry>> index = new HashMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position;
+    private long garbageBytes;
+
+    private static class Entry {
+        private final int payloadOffset;
+        private final int payloadLength;
+        private final int recordLength;
+
+        Entry(int payloadOffset, int payloadLength, int recordLength) {
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+            this.recordLength = recordLength;
+        }
+    }
+
+    /**
+     * Opens (or creates) the journal without syncing each write
+     *
+     * @param path journal file
+     * @throws IOException errors opening/reading the file
+     */
+    public CheckpointJournal(Path path) throws IOException {
+        this(path, false);
+    }
+
+    /**
+     * @param path journal file
+     * @param syncEachWrite if true, each checkpoint is forced to storage before the stage completes
+     * @throws IOException errors opening/reading the file
+     */
+    public CheckpointJournal(Path path, boolean syncEachWrite) throws IOException {
+        this.path = Objects.requireNonNull(path, "path cannot be null");
+        this.syncEachWrite = syncEachWrite;
+        open();
+    }
+
+    /**
+     * @param chainId an id for the chain that is stable across restarts (e.g. the id of the report being generated)
+     * @return checkpoint handle for the chain
+     */
+    public ChainCheckpoints forChain(String chainId) {
+        return new ChainCheckpoints(this, Objects.requireNonNull(chainId, "chainId cannot be null"));
+    }
+
+    /**
+     * @return ids of chains that have checkpoints but haven't been completed - i.e. chains to resume after a restart
+     */
+    public synchronized Set<String> getIncompleteChains() {
+        return Collections.unmodifiableSet(new TreeSet<>(index.keySet()));
+    }
+
+    /**
+     * @param chainId chain id
+     * @return name of the most recently checkpointed stage of the chain or empty
+     */
+    public synchronized Optional<String> getLastStage(String chainId) {
+        Map<String, Entry> stages = index.get(chainId);
+        String last = null;
+        if ( stages != null ) {
+            for ( String stage : stages.keySet() ) {
+                last = stage;
+            }
+        }
+        return Optional.ofNullable(last);
+    }
+
+    /**
+     * @return bytes used by the journal's records
+     */
+    public synchronized long getSize() {
+        return position;
+    }
+
+    /**
+     * @return bytes used by records of completed chains and superseded checkpoints - reclaimed by {@link #compact()}
+     */
+    public synchronized long getGarbageBytes() {
+        return garbageBytes;
+    }
+
+    /**
+     * Rewrite the journal with only the live checkpoints (the latest checkpoint of each stage of each
+     * incomplete chain). The new journal is written to a temporary file and atomically moved over the
+     * old one. Checkpoints block while compacting.
+     *
+     * @throws IOException errors
+     */
+    public synchronized void compact() throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".compact");
+        Files.deleteIfExists(temp);
+        try ( CheckpointJournal compacted = new CheckpointJournal(temp, false) ) {
+            for ( Map.Entry<String, LinkedHashMap<String, Entry>> chain : index.entrySet() ) {
+                for ( Map.Entry<String, Entry> stage : chain.getValue().entrySet() ) {
+                    compacted.append(typeCheckpoint, chain.getKey(), stage.getKey(), read(stage.getValue()));
+                }
+            }
+            compacted.buffer.force();
+        }
+        buffer.force();
+        channel.close();
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        open();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    synchronized void checkpoint(String chainId, String stage, byte[] payload) {
+        append(typeCheckpoint, chainId, stage, payload);
+    }
+
+    synchronized void complete(String chainId) {
+        if ( index.containsKey(chainId) ) {
+            append(typeComplete, chainId, "", new byte[0]);
+        }
+    }
+
+    synchronized byte[] read(String chainId, String stage) {
+        Map<String, Entry> stages = index.get(chainId);
+        Entry entry = (stages != null) ? stages.get(stage) : null;
+        return (entry != null) ? read(entry) : null;
+    }
+
+    private byte[] read(Entry entry) {
+        byte[] bytes = new byte[entry.payloadLength];
+        ByteBuffer view = buffer.duplicate();
+        view.position(entry.payloadOffset);
+        view.get(bytes);
+        return bytes;
+    }
+
+    private void append(byte type, String chainId, String stage, byte[] payload) {
+        byte[] chainBytes = chainId.getBytes(StandardCharsets.UTF_8);
+        byte[] stageBytes = stage.getBytes(StandardCharsets.UTF_8);
+        if ( (chainBytes.length > Short.MAX_VALUE) || (stageBytes.length > Short.MAX_VALUE) ) {
+            throw new IllegalArgumentException("chain id and stage name must be less than 32K bytes");
+        }
+        long length = (long)headerSize + 1 + 2 + chainBytes.length + 2 + stageBytes.length + 4 + payload.length;
+        ensureCapacity(position + length + headerSize);   // there must always be room for the zero terminator
+
+        int start = position;
+        ByteBuffer view = buffer.duplicate();
+        view.position(start + headerSize);
+        view.put(type);
+        view.putShort((short)chainBytes.length);
+        view.put(chainBytes);
+        view.putShort((short)stageBytes.length);
+        view.put(stageBytes);
+        view.putInt(payload.length);
+        view.put(payload);
+        buffer.putInt(start + 4, crc(start, (int)length));
+        buffer.putInt(start, (int)length);   // written last - a non-zero length marks the record as present
+        position += (int)length;
+        if ( syncEachWrite ) {
+            buffer.force();
+        }
+
+        apply(start);
+    }
+
+    private void apply(int start) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        int length = view.getInt();
+        view.getInt();  // crc
+        byte type = view.get();
+        String chainId = string(view, view.getShort());
+        String stage = string(view, view.getShort());
+        int payloadLength = view.getInt();
+
+        if ( type == typeCheckpoint ) {
+            LinkedHashMap<String, Entry> stages = index.computeIfAbsent(chainId, __ -> new LinkedHashMap<>());
+            Entry previous = stages.remove(stage); // remove so that the stage moves to the end (most recent)
+            if ( previous != null ) {
+                garbageBytes += previous.recordLength;
+            }
+            stages.put(stage, new Entry(view.position(), payloadLength, length));
+        } else {
+            Map<String, Entry> stages = index.remove(chainId);
+            if ( stages != null ) {
+                for ( Entry entry : stages.values() ) {
+                    garbageBytes += entry.recordLength;
+                }
+            }
+            garbageBytes += length;
+        }
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        if ( size > Integer.MAX_VALUE ) {
+            throw new IOException("Journal is too large: " + path);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(initialCapacity, size));
+        index.clear();
+        garbageBytes = 0;
+        position = 0;
+
+        for(;;) {
+            if ( (position + headerSize) > buffer.capacity() ) {
+                break;
+            }
+            int length = buffer.getInt(position);
+            if ( (length <= headerSize) || ((long)position + length > buffer.capacity()) || (buffer.getInt(position + 4) != crc(position, length)) ) {
+                break;
+            }
+            apply(position);
+            position += length;
+        }
+
+        // clear anything after the last good record (e.g. a torn write) so it can't be mistaken for a record later
+        for ( int i = position; i < buffer.capacity(); ++i ) {
+            if ( buffer.get(i) != 0 ) {
+                buffer.put(i, (byte)0);
+            }
+        }
+    }
+
+    private void ensureCapacity(long needed) {
+        if ( needed <= buffer.capacity() ) {
+            return;
+        }
+        if ( needed > Integer.MAX_VALUE ) {
+            throw new IllegalStateException("Journal is full - compact() it: " + path);
+        }
+        long newCapacity = Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * buffer.capacity()));
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int crc(int start, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(start + headerSize);
+        view.limit(start + length);
+        CRC32 crc = new CRC32();
+        crc.update(view);
+        return (int)crc.getValue();
+    }
+
+    private static String string(ByteBuffer view, int length) {
+        byte[] bytes = new byte[length];
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
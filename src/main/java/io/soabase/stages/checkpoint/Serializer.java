@@ -0,0 +1,83 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.checkpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts checkpointed stage results to and from bytes
+ */
+public interface Serializer<T> {
+    /**
+     * @param value stage result
+     * @return bytes
+     * @throws Exception errors
+     */
+    byte[] serialize(T value) throws Exception;
+
+    /**
+     * @param bytes bytes from {@link #serialize(Object)}
+     * @return stage result
+     * @throws Exception errors
+     */
+    T deserialize(byte[] bytes) throws Exception;
+
+    /**
+     * @return serializer for strings (UTF-8)
+     */
+    static Serializer<String> string() {
+        return new Serializer<String>() {
+            @Override
+            public byte[] serialize(String value) {
+                return value.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public String deserialize(byte[] bytes) {
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    /**
+     * @return serializer that uses standard Java serialization
+     */
+    static <T extends Serializable> Serializer<T> java() {
+        return new Serializer<T>() {
+            @Override
+            public byte[] serialize(T value) throws Exception {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try ( ObjectOutputStream out = new ObjectOutputStream(bytes) ) {
+                    out.writeObject(value);
+                }
+                return bytes.toByteArray();
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public T deserialize(byte[] bytes) throws Exception {
+                try ( ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes)) ) {
+                    return (T)in.readObject();
+                }
+            }
+        };
+    }
+}
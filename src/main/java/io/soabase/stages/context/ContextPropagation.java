@@ -0,0 +1,143 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.context;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * <p>
+ * Describes thread context (SLF4J MDC entries and/or {@link ThreadLocal}s) that should follow a
+ * StagedFuture chain from thread to thread. Pass an instance to
+ * {@link io.soabase.stages.StagedFutureBuilder#withContextPropagation(ContextPropagation)}. The
+ * context is captured once when the chain starts and is then restored around each task and
+ * completer of the chain. Instances are immutable and can be shared by any number of chains.
+ * </p>
+ *
+ * <pre>
+ * ContextPropagation propagation = ContextPropagation.builder()
+ *     .withMdc("requestId")
+ *     .withThreadLocal(currentUser)
+ *     .build();
+ * ...
+ * StagedFuture.async(executor).withContextPropagation(propagation)
+ *     .thenIf(...)
+ * </pre>
+ */
+public class ContextPropagation {
+    private final List<ThreadLocal<?>> threadLocals;
+    private final List<String> mdcKeys;
+    private final boolean allMdc;
+
+    /**
+     * Builds a {@link ContextPropagation}
+     */
+    public static class Builder {
+        private final List<ThreadLocal<?>> threadLocals = new ArrayList<>();
+        private final List<String> mdcKeys = new ArrayList<>();
+        private boolean allMdc = false;
+
+        /**
+         * Propagate the given thread local
+         *
+         * @param threadLocal thread local
+         * @return this
+         */
+        public Builder withThreadLocal(ThreadLocal<?> threadLocal) {
+            threadLocals.add(Objects.requireNonNull(threadLocal, "threadLocal cannot be null"));
+            return this;
+        }
+
+        /**
+         * Propagate the given SLF4J MDC keys. If no keys are given, all keys present in the MDC
+         * when the chain starts are propagated.
+         *
+         * @param keys MDC keys or none for all keys
+         * @return this
+         */
+        public Builder withMdc(String... keys) {
+            if ( keys.length == 0 ) {
+                allMdc = true;
+            } else {
+                for ( String key : keys ) {
+                    mdcKeys.add(Objects.requireNonNull(key, "key cannot be null"));
+                }
+            }
+            return this;
+        }
+
+        /**
+         * @return new ContextPropagation
+         */
+        public ContextPropagation build() {
+            return new ContextPropagation(threadLocals, mdcKeys, allMdc);
+        }
+
+        private Builder() {
+        }
+    }
+
+    /**
+     * @return new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Capture the current thread's context
+     *
+     * @return snapshot of the context
+     */
+    public ContextSnapshot capture() {
+        List<String> keys = mdcKeys;
+        if ( allMdc ) {
+            Map<String, String> map = MdcSlot.currentMap();
+            if ( (map != null) && !map.isEmpty() ) {
+                keys = new ArrayList<>(mdcKeys);
+                for ( String key : map.keySet() ) {
+                    if ( !keys.contains(key) ) {
+                        keys.add(key);
+                    }
+                }
+            }
+        }
+
+        ContextSnapshot.Slot[] slots = new ContextSnapshot.Slot[threadLocals.size() + keys.size()];
+        int index = 0;
+        for ( ThreadLocal<?> threadLocal : threadLocals ) {
+            slots[index++] = new ThreadLocalSlot(threadLocal);
+        }
+        for ( String key : keys ) {
+            slots[index++] = new MdcSlot(key);
+        }
+        return new ContextSnapshot(slots);
+    }
+
+    @Override
+    public String toString() {
+        return "ContextPropagation{" + "threadLocals=" + threadLocals.size() + ", mdcKeys=" + (allMdc ? "all" : mdcKeys.toString()) + '}';
+    }
+
+    private ContextPropagation(List<ThreadLocal<?>> threadLocals, List<String> mdcKeys, boolean allMdc) {
+        this.threadLocals = Arrays.asList(threadLocals.toArray(new ThreadLocal<?>[threadLocals.size()]));
+        this.mdcKeys = Arrays.asList(mdcKeys.toArray(new String[mdcKeys.size()]));
+        this.allMdc = allMdc;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.context;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * <p>
+ * Context values captured by {@link ContextPropagation#capture()}. The snapshot is immutable: applying it
+ * to a thread only reads the captured values so it can be applied from any number of threads concurrently.
+ * </p>
+ *
+ * <p>
+ * Applying the snapshot compares each captured value with the thread's current value and only switches
+ * the values that differ. When a task runs on a thread that already has the chain's context (e.g.
+ * a synchronous chain or an executor that keeps a chain on one thread) nothing is written. The storage
+ * for the values to restore is allocated with the wrapped command so switching context allocates nothing.
+ * </p>
+ */
+public class ContextSnapshot {
+    private final Slot[] slots;
+    private final Object[] values;
+
+    private static final Object unchanged = new Object();
+
+    interface Slot {
+        Object get();
+
+        void set(Object value);
+
+        boolean isSame(Object a, Object b);
+    }
+
+    ContextSnapshot(Slot[] slots) {
+        this.slots = slots;
+        values = new Object[slots.length];
+        for ( int i = 0; i < slots.length; ++i ) {
+            values[i] = slots[i].get();
+        }
+    }
+
+    /**
+     * Return an executor that runs each command with this context applied
+     *
+     * @param executor the executor to wrap
+     * @return wrapped executor
+     */
+    public Executor wrap(Executor executor) {
+        Objects.requireNonNull(executor, "executor cannot be null");
+        if ( slots.length == 0 ) {
+            return executor;
+        }
+        return command -> executor.execute(wrap(command));
+    }
+
+    /**
+     * Return a runnable that runs the given command with this context applied and then
+     * restores the thread's previous context
+     *
+     * @param command command
+     * @return wrapped command
+     */
+    public Runnable wrap(Runnable command) {
+        Objects.requireNonNull(command, "command cannot be null");
+        if ( slots.length == 0 ) {
+            return command;
+        }
+        return new ContextTask(this, command);
+    }
+
+    private static class ContextTask implements Runnable {
+        private static final AtomicReferenceFieldUpdater<ContextTask, Object[]> restoreUpdater = AtomicReferenceFieldUpdater.newUpdater(ContextTask.class, Object[].class, "restore");
+
+        private final ContextSnapshot snapshot;
+        private final Runnable command;
+        private volatile Object[] restore;  // taken while running
+
+        private ContextTask(ContextSnapshot snapshot, Runnable command) {
+            this.snapshot = snapshot;
+            this.command = command;
+            restore = new Object[snapshot.slots.length];
+        }
+
+        @Override
+        public void run() {
+            Object[] localRestore = restoreUpdater.getAndSet(this, null);
+            if ( localRestore == null ) {
+                localRestore = new Object[snapshot.slots.length];   // only if the same task is run concurrently or nested
+            }
+            boolean changed = snapshot.apply(localRestore);
+            try {
+                command.run();
+            } finally {
+                if ( changed ) {
+                    snapshot.restore(localRestore);
+                }
+                restore = localRestore;
+            }
+        }
+    }
+
+    private boolean apply(Object[] restore) {
+        boolean changed = false;
+        for ( int i = 0; i < slots.length; ++i ) {
+            Object current = slots[i].get();
+            if ( slots[i].isSame(current, values[i]) ) {
+                restore[i] = unchanged;
+            } else {
+                restore[i] = current;
+                slots[i].set(values[i]);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private void restore(Object[] restore) {
+        for ( int i = 0; i < slots.length; ++i ) {
+            if ( restore[i] != unchanged ) {
+                slots[i].set(restore[i]);
+                restore[i] = null;  // don't keep the thread's previous values reachable
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.context;
+
+import org.slf4j.MDC;
+
+import java.util.Map;
+import java.util.Objects;
+
+// kept separate so that SLF4J is only needed when MDC propagation is used
+class MdcSlot implements ContextSnapshot.Slot {
+    private final String key;
+
+    MdcSlot(String key) {
+        this.key = key;
+    }
+
+    static Map<String, String> currentMap() {
+        return MDC.getCopyOfContextMap();
+    }
+
+    @Override
+    public Object get() {
+        return MDC.get(key);
+    }
+
+    @Override
+    public void set(Object value) {
+        if ( value != null ) {
+            MDC.put(key, (String)value);
+        } else {
+            MDC.remove(key);
+        }
+    }
+
+    @Override
+    public boolean isSame(Object a, Object b) {
+        return Objects.equals(a, b);
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.context;
+
+class ThreadLocalSlot implements ContextSnapshot.Slot {
+    private final ThreadLocal<Object> threadLocal;
+
+    @SuppressWarnings("unchecked")
+    ThreadLocalSlot(ThreadLocal<?> threadLocal) {
+        this.threadLocal = (ThreadLocal<Object>)threadLocal;
+    }
+
+    @Override
+    public Object get() {
+        return threadLocal.get();
+    }
+
+    @Override
+    public void set(Object value) {
+        if ( value != null ) {
+            threadLocal.set(value);
+        } else {
+            threadLocal.remove();
+        }
+    }
+
+    @Override
+    public boolean isSame(Object a, Object b) {
+        return a == b;
+    }
+}
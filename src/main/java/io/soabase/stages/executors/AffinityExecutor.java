@@ -0,0 +1,219 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.executors;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * An executor that keeps a StagedFuture chain on one worker thread. Each worker has a local
+ * queue. When a task running in a worker submits a new task (e.g. a stage completes and
+ * the next stage of the chain is submitted) the new task is pushed onto the front of that
+ * worker's local queue and is the next task the worker runs (LIFO). This keeps the chain's
+ * data hot in one core's cache instead of bouncing the chain between cores on every stage.
+ * </p>
+ *
+ * <p>
+ * Tasks submitted from other threads go to a shared queue. Idle workers take from the shared
+ * queue and steal from the back of busy workers' local queues only when those workers have
+ * more than one task waiting (or when a task has been waiting briefly while its owner is busy).
+ * While any worker is busy, idle workers check for stranded tasks every millisecond. They only
+ * park for longer when every worker is idle - and a task queued behind a busy owner wakes one.
+ * </p>
+ */
+public class AffinityExecutor implements Executor, AutoCloseable {
+    private final Worker[] workers;
+    private final ConcurrentLinkedQueue<Runnable> submissions = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger(0);
+    private final AtomicInteger longParkedCount = new AtomicInteger(0);
+    private volatile boolean isClosed = false;
+
+    private static final long stealDelayNanos = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long idleParkNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private class Worker extends Thread {
+        private final ConcurrentLinkedDeque<Runnable> local = new ConcurrentLinkedDeque<>();
+        private final AtomicBoolean isParked = new AtomicBoolean(false);
+
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            boolean stealAny = false;
+            while ( !isClosed ) {
+                Runnable task = local.pollFirst();
+                if ( task == null ) {
+                    task = submissions.poll();
+                }
+                if ( task == null ) {
+                    task = steal(this, stealAny);
+                }
+
+                if ( task != null ) {
+                    stealAny = false;
+                    runTask(task);
+                } else {
+                    // park briefly so that a task stranded behind a busy owner gets stolen soon - park
+                    // longer only when no worker is busy (i.e. no task can be stranded)
+                    boolean othersIdle = idleCount.get() >= (workers.length - 1);
+                    stealAny = park(this, (stealAny && othersIdle) ? idleParkNanos : stealDelayNanos);
+                }
+            }
+        }
+
+        private AffinityExecutor owner() {
+            return AffinityExecutor.this;
+        }
+    }
+
+    /**
+     * @param threads number of worker threads
+     */
+    public AffinityExecutor(int threads) {
+        this(threads, "AffinityExecutor");
+    }
+
+    /**
+     * @param threads number of worker threads
+     * @param threadNamePrefix prefix for worker thread names
+     */
+    public AffinityExecutor(int threads, String threadNamePrefix) {
+        Objects.requireNonNull(threadNamePrefix, "threadNamePrefix cannot be null");
+        if ( threads < 1 ) {
+            throw new IllegalArgumentException("threads must be greater than 0");
+        }
+        workers = new Worker[threads];
+        for ( int i = 0; i < threads; ++i ) {
+            workers[i] = new Worker(threadNamePrefix + "-" + i);
+        }
+        for ( Worker worker : workers ) {
+            worker.start();
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        Objects.requireNonNull(command, "command cannot be null");
+        if ( isClosed ) {
+            throw new RejectedExecutionException("Executor has been closed");
+        }
+
+        Thread currentThread = Thread.currentThread();
+        if ( (currentThread instanceof Worker) && (((Worker)currentThread).owner() == this) ) {
+            ConcurrentLinkedDeque<Runnable> local = ((Worker)currentThread).local;
+            local.addFirst(command);
+            if ( local.peekLast() != command ) {
+                // there's more local work than this worker can run next - let idle workers help
+                signalIdleWorker();
+            } else if ( (longParkedCount.get() > 0) && (longParkedCount.get() == idleCount.get()) ) {
+                // the task waits behind this (busy) worker and no idle worker is checking for stranded tasks
+                signalIdleWorker();
+            }
+        } else {
+            submissions.add(command);
+            signalIdleWorker();
+        }
+    }
+
+    /**
+     * Stop all worker threads. Tasks that have not started are discarded
+     */
+    @Override
+    public void close() {
+        isClosed = true;
+        for ( Worker worker : workers ) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * @return number of worker threads
+     */
+    public int getThreadCount() {
+        return workers.length;
+    }
+
+    private Runnable steal(Worker thief, boolean stealAny) {
+        for ( Worker worker : workers ) {
+            if ( worker != thief ) {
+                ConcurrentLinkedDeque<Runnable> victim = worker.local;
+                Runnable last = victim.peekLast();
+                // leave the owner the task it will run next unless it's been waiting too long
+                if ( (last != null) && (stealAny || (victim.peekFirst() != last)) && victim.removeLastOccurrence(last) ) {
+                    return last;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Park the worker until signaled or the given time elapses
+     *
+     * @return true if the worker was not signaled
+     */
+    private boolean park(Worker worker, long parkNanos) {
+        boolean isLong = (parkNanos > stealDelayNanos);
+        if ( isLong ) {
+            longParkedCount.incrementAndGet();
+        }
+        worker.isParked.set(true);
+        idleCount.incrementAndGet();
+        if ( submissions.isEmpty() && !isClosed ) {
+            LockSupport.parkNanos(this, parkNanos);
+        }
+        if ( isLong ) {
+            longParkedCount.decrementAndGet();
+        }
+        boolean notSignaled = worker.isParked.compareAndSet(true, false);
+        if ( notSignaled ) {
+            idleCount.decrementAndGet();
+        }
+        return notSignaled;
+    }
+
+    private void signalIdleWorker() {
+        if ( idleCount.get() > 0 ) {
+            for ( Worker worker : workers ) {
+                if ( worker.isParked.compareAndSet(true, false) ) {
+                    idleCount.decrementAndGet();
+                    LockSupport.unpark(worker);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable e) {
+            Thread currentThread = Thread.currentThread();
+            currentThread.getUncaughtExceptionHandler().uncaughtException(currentThread, e);
+        }
+    }
+}
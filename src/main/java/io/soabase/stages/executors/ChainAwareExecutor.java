@@ -0,0 +1,46 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.executors;
+
+import java.util.concurrent.Executor;
+
+/**
+ * <p>
+ * An executor that can order tasks by chain priority/deadline (see
+ * {@link io.soabase.stages.StagedFutureBuilder#withPriority(int)} and
+ * {@link io.soabase.stages.StagedFutureBuilder#withDeadline(java.time.Duration)}).
+ * </p>
+ *
+ * <p>
+ * Executors that wrap another executor should implement this by delegating to the wrapped executor
+ * when it is a ChainAwareExecutor so that wrapping (instrumentation, etc.) doesn't hide the chain's ordering.
+ * </p>
+ */
+public interface ChainAwareExecutor extends Executor {
+    /**
+     * Value for <code>deadlineNanos</code> meaning "no deadline"
+     */
+    long noDeadline = Long.MAX_VALUE;
+
+    /**
+     * Return an executor view that submits every task with the given ordering
+     *
+     * @param priority priority - higher runs first
+     * @param deadlineNanos deadline as a {@link System#nanoTime()} value or {@link #noDeadline}
+     * @return executor
+     */
+    Executor forChain(int priority, long deadlineNanos);
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.executors;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * An executor that runs queued tasks by chain priority and then earliest deadline first (EDF) instead
+ * of FIFO. Tasks with equal priority and deadline run in submission order.
+ * </p>
+ *
+ * <p>
+ * Chains get their priority/deadline from {@link io.soabase.stages.StagedFutureBuilder#withPriority(int)}
+ * and {@link io.soabase.stages.StagedFutureBuilder#withDeadline(java.time.Duration)}. Every task of such
+ * a chain is submitted via {@link #forChain(int, long)} so that continuations inherit the chain's
+ * ordering. Tasks submitted via {@link #execute(Runnable)} have priority 0 and no deadline (i.e. they
+ * run after tasks of the same priority that have deadlines).
+ * </p>
+ */
+public class DeadlineExecutor implements ChainAwareExecutor, AutoCloseable {
+    private final Thread[] workers;
+    private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong(0);
+    private volatile boolean isClosed = false;
+
+    private static class Task implements Comparable<Task> {
+        private final Runnable command;
+        private final int priority;
+        private final long deadlineNanos;
+        private final long sequence;
+
+        Task(Runnable command, int priority, long deadlineNanos, long sequence) {
+            this.command = command;
+            this.priority = priority;
+            this.deadlineNanos = deadlineNanos;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task rhs) {
+            int diff = Integer.compare(rhs.priority, priority);  // higher priority first
+            if ( diff == 0 ) {
+                diff = compareDeadlines(deadlineNanos, rhs.deadlineNanos);
+                if ( diff == 0 ) {
+                    diff = Long.compare(sequence, rhs.sequence);
+                }
+            }
+            return diff;
+        }
+
+        private static int compareDeadlines(long lhs, long rhs) {
+            if ( lhs == rhs ) {
+                return 0;
+            }
+            if ( lhs == noDeadline ) {
+                return 1;
+            }
+            if ( rhs == noDeadline ) {
+                return -1;
+            }
+            // nanoTime values must be compared by difference
+            return (lhs - rhs) < 0 ? -1 : 1;
+        }
+    }
+
+    /**
+     * @param threads number of worker threads
+     */
+    public DeadlineExecutor(int threads) {
+        this(threads, "DeadlineExecutor");
+    }
+
+    /**
+     * @param threads number of worker threads
+     * @param threadNamePrefix prefix for worker thread names
+     */
+    public DeadlineExecutor(int threads, String threadNamePrefix) {
+        Objects.requireNonNull(threadNamePrefix, "threadNamePrefix cannot be null");
+        if ( threads < 1 ) {
+            throw new IllegalArgumentException("threads must be greater than 0");
+        }
+        workers = new Thread[threads];
+        for ( int i = 0; i < threads; ++i ) {
+            workers[i] = new Thread(this::run, threadNamePrefix + "-" + i);
+            workers[i].setDaemon(true);
+        }
+        for ( Thread worker : workers ) {
+            worker.start();
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        execute(command, 0, noDeadline);
+    }
+
+    /**
+     * Submit a task with the given ordering
+     *
+     * @param command task
+     * @param priority priority - higher runs first
+     * @param deadlineNanos deadline as a {@link System#nanoTime()} value or {@link #noDeadline}
+     */
+    public void execute(Runnable command, int priority, long deadlineNanos) {
+        Objects.requireNonNull(command, "command cannot be null");
+        if ( isClosed ) {
+            throw new RejectedExecutionException("Executor has been closed");
+        }
+        queue.add(new Task(command, priority, deadlineNanos, sequence.getAndIncrement()));
+    }
+
+    @Override
+    public Executor forChain(int priority, long deadlineNanos) {
+        return command -> execute(command, priority, deadlineNanos);
+    }
+
+    /**
+     * Stop all worker threads. Tasks that have not started are discarded
+     */
+    @Override
+    public void close() {
+        isClosed = true;
+        for ( Thread worker : workers ) {
+            worker.interrupt();
+        }
+        queue.clear();
+    }
+
+    /**
+     * @return number of worker threads
+     */
+    public int getThreadCount() {
+        return workers.length;
+    }
+
+    /**
+     * @return number of tasks waiting to run
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void run() {
+        while ( !isClosed ) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                // an interrupt aimed at a task that had just finished (e.g. Cancelable) - only close() stops the worker
+                continue;
+            }
+            try {
+                task.command.run();
+            } catch (Throwable e) {
+                Thread currentThread = Thread.currentThread();
+                currentThread.getUncaughtExceptionHandler().uncaughtException(currentThread, e);
+            }
+            // a task may have been interrupted (e.g. by Cancelable) - don't let that stop the worker
+            if ( Thread.interrupted() && isClosed ) {
+                break;
+            }
+        }
+    }
+}
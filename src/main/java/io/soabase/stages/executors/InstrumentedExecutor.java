@@ -0,0 +1,233 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.executors;
+
+import io.soabase.stages.StripedHistogram;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Wraps an executor and measures how StagedFuture chains (or anything else) use it: queue depth, active
+ * workers, submit rate, rejections and histograms of the time tasks wait in the queue and the time they run.
+ * All counters are {@link LongAdder}s and each task costs three {@link System#nanoTime()} calls, so the
+ * wrapper is cheap enough to leave on permanently.
+ * </p>
+ *
+ * <pre>
+ * InstrumentedExecutor executor = StagedExecutors.instrumented(Executors.newFixedThreadPool(16));
+ * StagedFuture.async(executor, tracing)...
+ * ...
+ * InstrumentedExecutor.Snapshot snapshot = executor.snapshot();
+ * </pre>
+ */
+public class InstrumentedExecutor implements ChainAwareExecutor {
+    private final Executor executor;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final StripedHistogram waitTime = new StripedHistogram();
+    private final StripedHistogram runTime = new StripedHistogram();
+
+    /**
+     * Point-in-time copy of the counters
+     */
+    public static class Snapshot {
+        private final long nanoTime;
+        private final long submitted;
+        private final long started;
+        private final long completed;
+        private final long failed;
+        private final long rejected;
+
+        Snapshot(long nanoTime, long submitted, long started, long completed, long failed, long rejected) {
+            this.nanoTime = nanoTime;
+            this.submitted = submitted;
+            this.started = started;
+            this.completed = completed;
+            this.failed = failed;
+            this.rejected = rejected;
+        }
+
+        /**
+         * @return tasks accepted by the executor
+         */
+        public long getSubmittedCount() {
+            return submitted;
+        }
+
+        /**
+         * @return tasks that finished (including those that threw)
+         */
+        public long getCompletedCount() {
+            return completed;
+        }
+
+        /**
+         * @return tasks that threw an exception
+         */
+        public long getFailedCount() {
+            return failed;
+        }
+
+        /**
+         * @return tasks the executor rejected
+         */
+        public long getRejectedCount() {
+            return rejected;
+        }
+
+        /**
+         * @return tasks accepted but not yet started
+         */
+        public long getQueueDepth() {
+            return Math.max(0, submitted - started);
+        }
+
+        /**
+         * @return tasks currently running
+         */
+        public long getActiveCount() {
+            return Math.max(0, started - completed);
+        }
+
+        /**
+         * @param earlier an earlier snapshot of the same executor
+         * @return tasks submitted per second between the two snapshots
+         */
+        public double getSubmitRate(Snapshot earlier) {
+            return rate(submitted - earlier.submitted, earlier);
+        }
+
+        /**
+         * @param earlier an earlier snapshot of the same executor
+         * @return tasks completed per second between the two snapshots
+         */
+        public double getCompletionRate(Snapshot earlier) {
+            return rate(completed - earlier.completed, earlier);
+        }
+
+        private double rate(long delta, Snapshot earlier) {
+            long nanos = nanoTime - earlier.nanoTime;
+            return (nanos > 0) ? ((delta * (double)TimeUnit.SECONDS.toNanos(1)) / nanos) : 0;
+        }
+    }
+
+    /**
+     * @param executor executor to wrap
+     */
+    public InstrumentedExecutor(Executor executor) {
+        this.executor = Objects.requireNonNull(executor, "executor cannot be null");
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        execute(executor, command);
+    }
+
+    /**
+     * Passes the chain's ordering through to the wrapped executor (if it supports it)
+     */
+    @Override
+    public Executor forChain(int priority, long deadlineNanos) {
+        if ( executor instanceof ChainAwareExecutor ) {
+            Executor chainExecutor = ((ChainAwareExecutor)executor).forChain(priority, deadlineNanos);
+            return command -> execute(chainExecutor, command);
+        }
+        return this;
+    }
+
+    private void execute(Executor executor, Runnable command) {
+        Objects.requireNonNull(command, "command cannot be null");
+        long submittedNanos = System.nanoTime();
+        submitted.increment();
+        try {
+            executor.execute(() -> run(command, submittedNanos));
+        } catch (RejectedExecutionException e) {
+            submitted.decrement();
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * @return current counters
+     */
+    public Snapshot snapshot() {
+        // read in reverse order of update so that derived values (queue depth, etc.) are never negative
+        long completedCount = completed.sum();
+        long failedCount = failed.sum();
+        long startedCount = started.sum();
+        long submittedCount = submitted.sum();
+        return new Snapshot(System.nanoTime(), submittedCount, startedCount, completedCount, failedCount, rejected.sum());
+    }
+
+    /**
+     * @return tasks accepted but not yet started
+     */
+    public long getQueueDepth() {
+        return snapshot().getQueueDepth();
+    }
+
+    /**
+     * @return tasks currently running
+     */
+    public long getActiveCount() {
+        return snapshot().getActiveCount();
+    }
+
+    /**
+     * @return tasks the executor rejected
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return histogram of the time from submission until a task starts
+     */
+    public StripedHistogram getWaitTime() {
+        return waitTime;
+    }
+
+    /**
+     * @return histogram of task execution times
+     */
+    public StripedHistogram getRunTime() {
+        return runTime;
+    }
+
+    private void run(Runnable command, long submittedNanos) {
+        long startNanos = System.nanoTime();
+        started.increment();
+        waitTime.record(startNanos - submittedNanos);
+        try {
+            command.run();
+        } catch (Throwable e) {
+            failed.increment();
+            throw e;
+        } finally {
+            runTime.record(System.nanoTime() - startNanos);
+            completed.increment();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.executors;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * <p>
+ * Wraps an executor for tasks that block. When a task runs in a {@link ForkJoinPool} worker thread
+ * (e.g. the common pool used by {@link io.soabase.stages.StagedFuture#asyncPool()}) it's run via
+ * {@link ForkJoinPool#managedBlock(ForkJoinPool.ManagedBlocker)} so that the pool can add a compensating
+ * thread while the task blocks. Without this, a few blocking tasks can starve the common pool - and
+ * everything else in the JVM that uses it (parallel streams, etc.). In other threads the task is run normally.
+ * </p>
+ *
+ * <p>
+ * Tasks run via this executor are not reported by blocking detection (see
+ * {@link io.soabase.stages.tracing.Tracing#blockingDetected(java.time.Duration, java.time.Duration)}).
+ * </p>
+ */
+public class ManagedBlockingExecutor implements ChainAwareExecutor {
+    private final Executor executor;
+
+    private static final ThreadLocal<Boolean> isBlocking = new ThreadLocal<>();
+
+    private static class Blocker implements ForkJoinPool.ManagedBlocker {
+        private final Runnable command;
+        private boolean isDone = false;
+
+        Blocker(Runnable command) {
+            this.command = command;
+        }
+
+        @Override
+        public boolean block() {
+            try {
+                command.run();
+            } finally {
+                isDone = true;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return isDone;
+        }
+    }
+
+    /**
+     * @param executor the executor to wrap
+     */
+    public ManagedBlockingExecutor(Executor executor) {
+        this.executor = Objects.requireNonNull(executor, "executor cannot be null");
+    }
+
+    /**
+     * @return true if the current thread is running a task submitted via a ManagedBlockingExecutor
+     */
+    public static boolean isBlockingTask() {
+        return isBlocking.get() != null;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        Objects.requireNonNull(command, "command cannot be null");
+        executor.execute(() -> run(command));
+    }
+
+    /**
+     * Passes the chain's ordering through to the wrapped executor (if it supports it)
+     */
+    @Override
+    public Executor forChain(int priority, long deadlineNanos) {
+        if ( executor instanceof ChainAwareExecutor ) {
+            return new ManagedBlockingExecutor(((ChainAwareExecutor)executor).forChain(priority, deadlineNanos));
+        }
+        return this;
+    }
+
+    private static void run(Runnable command) {
+        boolean isNested = isBlockingTask();
+        if ( !isNested ) {
+            isBlocking.set(Boolean.TRUE);
+        }
+        try {
+            if ( !isNested && (Thread.currentThread() instanceof ForkJoinWorkerThread) ) {
+                try {
+                    ForkJoinPool.managedBlock(new Blocker(command));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                command.run();
+            }
+        } finally {
+            if ( !isNested ) {
+                isBlocking.remove();
+            }
+        }
+    }
+}
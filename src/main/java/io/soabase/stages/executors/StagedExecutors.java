@@ -0,0 +1,95 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.executors;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Executors tuned for StagedFuture chains. Pass them to
+ * {@link io.soabase.stages.StagedFuture#async(java.util.concurrent.Executor)}
+ */
+public class StagedExecutors {
+    /**
+     * Return a new executor that keeps each chain on one worker thread. Uses
+     * one worker per available processor.
+     *
+     * @return executor
+     * @see AffinityExecutor
+     */
+    public static AffinityExecutor affinity() {
+        return affinity(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Return a new executor that keeps each chain on one worker thread
+     *
+     * @param threads number of worker threads
+     * @return executor
+     * @see AffinityExecutor
+     */
+    public static AffinityExecutor affinity(int threads) {
+        return new AffinityExecutor(threads);
+    }
+
+    /**
+     * Return a new executor that runs queued tasks by chain priority/earliest deadline. Uses
+     * one worker per available processor.
+     *
+     * @return executor
+     * @see DeadlineExecutor
+     */
+    public static DeadlineExecutor deadline() {
+        return deadline(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Return a new executor that runs queued tasks by chain priority/earliest deadline
+     *
+     * @param threads number of worker threads
+     * @return executor
+     * @see DeadlineExecutor
+     */
+    public static DeadlineExecutor deadline(int threads) {
+        return new DeadlineExecutor(threads);
+    }
+
+    /**
+     * Wrap the given executor for tasks that block. Tasks running in a {@link java.util.concurrent.ForkJoinPool}
+     * let the pool add compensating threads while they block.
+     *
+     * @param executor executor to wrap
+     * @return executor
+     * @see ManagedBlockingExecutor
+     */
+    public static ManagedBlockingExecutor managedBlocking(Executor executor) {
+        return new ManagedBlockingExecutor(executor);
+    }
+
+    /**
+     * Wrap the given executor to measure queue depth, active workers, submit rate, rejections and
+     * queue wait/execution time histograms
+     *
+     * @param executor executor to wrap
+     * @return executor
+     * @see InstrumentedExecutor
+     */
+    public static InstrumentedExecutor instrumented(Executor executor) {
+        return new InstrumentedExecutor(executor);
+    }
+
+    private StagedExecutors() {
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.time.Duration;
+
+// only loaded when jdk.jfr is present - see StageEvents.loadSink()
+class JfrEventSink implements EventSink {
+    private final EventType stageType = EventType.getEventType(StageEvent.class);
+    private final EventType timeoutType = EventType.getEventType(TimeoutEvent.class);
+    private final EventType abortedType = EventType.getEventType(AbortedEvent.class);
+    private final EventType canceledType = EventType.getEventType(CanceledEvent.class);
+
+    @Name("io.soabase.stages.Stage")
+    @Label("Stage")
+    @Category("Soabase Stages")
+    @Description("A task of a StagedFuture chain")
+    static class StageEvent extends Event {
+        @Label("Outcome")
+        String outcome;
+
+        @Label("Exception")
+        String exception;
+    }
+
+    @Name("io.soabase.stages.Timeout")
+    @Label("Timeout")
+    @Category("Soabase Stages")
+    @Description("A stage timeout fired")
+    static class TimeoutEvent extends Event {
+        @Label("Timeout")
+        @Timespan(Timespan.MILLISECONDS)
+        long timeout;
+
+        @Label("Used Default Value")
+        boolean usedDefaultValue;
+    }
+
+    @Name("io.soabase.stages.Aborted")
+    @Label("Aborted")
+    @Category("Soabase Stages")
+    @Description("A task aborted its chain by returning an empty Optional")
+    static class AbortedEvent extends Event {
+    }
+
+    @Name("io.soabase.stages.Canceled")
+    @Label("Canceled")
+    @Category("Soabase Stages")
+    @Description("A chain or scope was canceled")
+    static class CanceledEvent extends Event {
+        @Label("Source")
+        String source;
+
+        @Label("May Interrupt If Running")
+        boolean mayInterruptIfRunning;
+    }
+
+    @Override
+    public boolean isTaskEventEnabled() {
+        return stageType.isEnabled() || abortedType.isEnabled();
+    }
+
+    @Override
+    public Object stageBegin() {
+        if ( !stageType.isEnabled() ) {
+            return null;
+        }
+        StageEvent event = new StageEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void stageEnd(Object token, StageEvents.Outcome outcome, Throwable e) {
+        StageEvent event = (StageEvent)token;
+        event.end();
+        if ( event.shouldCommit() ) {
+            event.outcome = outcome.name();
+            event.exception = (e != null) ? e.getClass().getName() : null;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void timeout(Duration timeout, boolean usedDefaultValue) {
+        if ( timeoutType.isEnabled() ) {
+            TimeoutEvent event = new TimeoutEvent();
+            event.timeout = timeout.toMillis();
+            event.usedDefaultValue = usedDefaultValue;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void aborted() {
+        if ( abortedType.isEnabled() ) {
+            new AbortedEvent().commit();
+        }
+    }
+
+    @Override
+    public void canceled(String source, boolean mayInterruptIfRunning) {
+        if ( canceledType.isEnabled() ) {
+            CanceledEvent event = new CanceledEvent();
+            event.source = source;
+            event.mayInterruptIfRunning = mayInterruptIfRunning;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.jfr;
+
+import java.time.Duration;
+
+/**
+ * <p>
+ * JDK Flight Recorder events for StagedFuture chains. The library emits these itself - this class is
+ * public only so that the other packages of the library can reach it.
+ * </p>
+ *
+ * <p>
+ * Events (all in the "Soabase Stages" category):
+ * </p>
+ *
+ * <ul>
+ *     <li><code>io.soabase.stages.Stage</code> - a task of a chain. Duration plus outcome (succeeded, aborted, failed)</li>
+ *     <li><code>io.soabase.stages.Timeout</code> - a timeout fired</li>
+ *     <li><code>io.soabase.stages.Aborted</code> - a task aborted its chain by returning an empty Optional</li>
+ *     <li><code>io.soabase.stages.Canceled</code> - a chain or scope was canceled</li>
+ * </ul>
+ *
+ * <p>
+ * When the JVM has no Flight Recorder (or the system property <code>soabase.stages.jfr</code> is <code>false</code>)
+ * all methods are no-ops. When Flight Recorder is available but the events are not enabled in the
+ * active recording settings the cost is a single check per event.
+ * </p>
+ */
+public final class StageEvents {
+    private static final EventSink sink = loadSink();
+
+    /**
+     * Outcome of a task
+     */
+    public enum Outcome {
+        SUCCEEDED,
+        ABORTED,
+        FAILED
+    }
+
+    /**
+     * @return true if Flight Recorder events can be emitted
+     */
+    public static boolean isAvailable() {
+        return sink != NoopEventSink.instance;
+    }
+
+    /**
+     * @return true if an event emitted per task (<code>io.soabase.stages.Stage</code> or <code>io.soabase.stages.Aborted</code>)
+     * is enabled in a running recording. Can change at any time - check each time a task is submitted.
+     */
+    public static boolean isTaskEventEnabled() {
+        return sink.isTaskEventEnabled();
+    }
+
+    /**
+     * Called before a task runs
+     *
+     * @return token to pass to {@link #stageEnd(Object, Outcome, Throwable)} - <code>null</code> if the event is disabled
+     */
+    public static Object stageBegin() {
+        return sink.stageBegin();
+    }
+
+    /**
+     * Called after a task runs
+     *
+     * @param token value returned by {@link #stageBegin()}
+     * @param outcome outcome
+     * @param e exception if the task failed or <code>null</code>
+     */
+    public static void stageEnd(Object token, Outcome outcome, Throwable e) {
+        if ( token != null ) {
+            sink.stageEnd(token, outcome, e);
+        }
+    }
+
+    /**
+     * Called when a timeout fires
+     *
+     * @param timeout the timeout
+     * @param usedDefaultValue true if the stage was completed with a default value
+     */
+    public static void timeout(Duration timeout, boolean usedDefaultValue) {
+        sink.timeout(timeout, usedDefaultValue);
+    }
+
+    /**
+     * Called when a task aborts its chain
+     */
+    public static void aborted() {
+        sink.aborted();
+    }
+
+    /**
+     * Called when a chain or scope is canceled
+     *
+     * @param source what was canceled
+     * @param mayInterruptIfRunning the interrupt flag passed to cancel
+     */
+    public static void canceled(String source, boolean mayInterruptIfRunning) {
+        sink.canceled(source, mayInterruptIfRunning);
+    }
+
+    private static EventSink loadSink() {
+        if ( "false".equalsIgnoreCase(System.getProperty("soabase.stages.jfr")) ) {
+            return NoopEventSink.instance;
+        }
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            // loaded reflectively so that this class never links against jdk.jfr on JVMs that don't have it
+            return (EventSink)Class.forName("io.soabase.stages.jfr.JfrEventSink").getDeclaredConstructor().newInstance();
+        } catch ( Throwable ignore ) {
+            return NoopEventSink.instance;
+        }
+    }
+
+    private StageEvents() {
+    }
+}
@@ -0,0 +1,428 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.load;
+
+import io.soabase.stages.Aborted;
+import io.soabase.stages.LatencyHistogram;
+import io.soabase.stages.StagedFuture;
+import io.soabase.stages.StagedFutureBuilder;
+import io.soabase.stages.StagedFutureTimeout;
+import io.soabase.stages.tracing.Tracing;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * <p>
+ * Drives simulated StagedFuture chains at a fixed, open-loop arrival rate and reports throughput
+ * and latency percentiles. Use it to see how a chain shape, its timeouts and a chosen executor
+ * behave together as the load approaches and passes saturation.
+ * </p>
+ *
+ * <p>
+ * Open-loop means chains are started on schedule whether or not earlier chains have completed -
+ * the same as independent users arriving at a service. Latency is measured from each chain's
+ * scheduled start so that a stalled generator or a pushed-back submission doesn't hide the delay
+ * (coordinated omission). See {@link LoadReport#getLatency()}.
+ * </p>
+ *
+ * <pre>
+ * LoadReport report = LoadGenerator.builder()
+ *     .withRate(2000)
+ *     .withDuration(Duration.ofSeconds(30))
+ *     .withExecutor(executor)
+ *     .withStage(ServiceTime.logNormal(Duration.ofMillis(5), 0.8))
+ *     .withStage(ServiceTime.fixed(Duration.ofMillis(1)))
+ *     .withTimeout(Duration.ofMillis(50))
+ *     .build()
+ *     .run();
+ * System.out.println(report);
+ * </pre>
+ */
+public class LoadGenerator {
+    private final double rate;
+    private final Duration duration;
+    private final boolean poisson;
+    private final Executor executor;
+    private final Supplier<Tracing> tracing;
+    private final UnaryOperator<StagedFutureBuilder> configurer;
+    private final List<Stage> stages;
+    private final Duration timeout;
+    private final int maxOutstanding;
+    private final Duration drainTimeout;
+    private final Random random;
+
+    private static class Stage {
+        private final ServiceTime serviceTime;
+        private final boolean busy;
+
+        Stage(ServiceTime serviceTime, boolean busy) {
+            this.serviceTime = serviceTime;
+            this.busy = busy;
+        }
+    }
+
+    /**
+     * Builds a {@link LoadGenerator}
+     */
+    public static class Builder {
+        private double rate = 0;
+        private Duration duration = Duration.ofSeconds(10);
+        private boolean poisson = false;
+        private Executor executor = ForkJoinPool.commonPool();
+        private Supplier<Tracing> tracing = null;
+        private UnaryOperator<StagedFutureBuilder> configurer = UnaryOperator.identity();
+        private final List<Stage> stages = new ArrayList<>();
+        private Duration timeout = null;
+        private int maxOutstanding = Integer.MAX_VALUE;
+        private Duration drainTimeout = Duration.ofSeconds(30);
+        private Long seed = null;
+
+        /**
+         * Required
+         *
+         * @param chainsPerSecond number of chains to start per second - at most one per nanosecond
+         * @return this
+         */
+        public Builder withRate(double chainsPerSecond) {
+            if ( !(chainsPerSecond > 0) ) {
+                throw new IllegalArgumentException("chainsPerSecond must be greater than 0");
+            }
+            if ( chainsPerSecond > TimeUnit.SECONDS.toNanos(1) ) {
+                throw new IllegalArgumentException("chainsPerSecond cannot be more than one per nanosecond");
+            }
+            rate = chainsPerSecond;
+            return this;
+        }
+
+        /**
+         * Default is 10 seconds
+         *
+         * @param duration how long to keep starting chains
+         * @return this
+         */
+        public Builder withDuration(Duration duration) {
+            this.duration = Objects.requireNonNull(duration, "duration cannot be null");
+            return this;
+        }
+
+        /**
+         * By default chains are started at evenly spaced intervals. Poisson arrivals (exponentially distributed
+         * gaps with the same mean rate) are burstier and closer to independent users.
+         *
+         * @return this
+         */
+        public Builder withPoissonArrivals() {
+            poisson = true;
+            return this;
+        }
+
+        /**
+         * Default is {@link ForkJoinPool#commonPool()}
+         *
+         * @param executor executor for the chains
+         * @return this
+         */
+        public Builder withExecutor(Executor executor) {
+            this.executor = Objects.requireNonNull(executor, "executor cannot be null");
+            return this;
+        }
+
+        /**
+         * Default is no tracing
+         *
+         * @param tracing called once per chain - the tracer for the chain
+         * @return this
+         */
+        public Builder withTracing(Supplier<Tracing> tracing) {
+            this.tracing = Objects.requireNonNull(tracing, "tracing cannot be null");
+            return this;
+        }
+
+        /**
+         * Customize each chain before its first stage - e.g. to add admission control or a scheduler
+         *
+         * @param configurer called once per chain with the chain's builder
+         * @return this
+         */
+        public Builder withChainBuilder(UnaryOperator<StagedFutureBuilder> configurer) {
+            this.configurer = Objects.requireNonNull(configurer, "configurer cannot be null");
+            return this;
+        }
+
+        /**
+         * Add a stage that waits (parks its thread) for a time drawn from the given distribution - i.e. simulated blocking I/O.
+         * At least one stage is required.
+         *
+         * @param serviceTime service time distribution
+         * @return this
+         */
+        public Builder withStage(ServiceTime serviceTime) {
+            stages.add(new Stage(Objects.requireNonNull(serviceTime, "serviceTime cannot be null"), false));
+            return this;
+        }
+
+        /**
+         * Add a stage that spins (uses CPU) for a time drawn from the given distribution
+         *
+         * @param serviceTime service time distribution
+         * @return this
+         */
+        public Builder withBusyStage(ServiceTime serviceTime) {
+            stages.add(new Stage(Objects.requireNonNull(serviceTime, "serviceTime cannot be null"), true));
+            return this;
+        }
+
+        /**
+         * Default is no timeout
+         *
+         * @param timeout timeout applied to each stage (see {@link StagedFutureTimeout#withTimeout(Duration)})
+         * @return this
+         */
+        public Builder withTimeout(Duration timeout) {
+            this.timeout = Objects.requireNonNull(timeout, "timeout cannot be null");
+            return this;
+        }
+
+        /**
+         * Default is unlimited. Arrivals while this many chains are running are counted as rejected and not started.
+         *
+         * @param maxOutstanding max running chains
+         * @return this
+         */
+        public Builder withMaxOutstanding(int maxOutstanding) {
+            if ( maxOutstanding < 1 ) {
+                throw new IllegalArgumentException("maxOutstanding must be greater than 0");
+            }
+            this.maxOutstanding = maxOutstanding;
+            return this;
+        }
+
+        /**
+         * Default is 30 seconds
+         *
+         * @param drainTimeout max time to wait for running chains after the last arrival
+         * @return this
+         */
+        public Builder withDrainTimeout(Duration drainTimeout) {
+            this.drainTimeout = Objects.requireNonNull(drainTimeout, "drainTimeout cannot be null");
+            return this;
+        }
+
+        /**
+         * Use a fixed seed so that arrivals and service times are the same each run
+         *
+         * @param seed random seed
+         * @return this
+         */
+        public Builder withSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * @return new generator
+         */
+        public LoadGenerator build() {
+            if ( rate <= 0 ) {
+                throw new IllegalStateException("rate is required");
+            }
+            if ( stages.isEmpty() ) {
+                throw new IllegalStateException("at least one stage is required");
+            }
+            Random random = (seed != null) ? new Random(seed) : new Random();
+            return new LoadGenerator(rate, duration, poisson, executor, tracing, configurer, stages, timeout, maxOutstanding, drainTimeout, random);
+        }
+
+        private Builder() {
+        }
+    }
+
+    /**
+     * @return new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Start chains on schedule for the configured duration, then wait for running chains to
+     * complete (up to the drain timeout). Blocks the calling thread, which is used to start the chains.
+     *
+     * @return results
+     * @throws InterruptedException if interrupted
+     */
+    public synchronized LoadReport run() throws InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram();
+        LatencyHistogram serviceLatency = new LatencyHistogram();
+        LongAdder succeeded = new LongAdder();
+        LongAdder aborted = new LongAdder();
+        LongAdder failed = new LongAdder();
+        LongAdder timedOut = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        AtomicInteger outstanding = new AtomicInteger(0);
+        AtomicLong lastCompletion = new AtomicLong(0);
+
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;  // not truncated so that high rates stay accurate
+        long durationNanos = duration.toNanos();
+        long start = System.nanoTime();
+        lastCompletion.set(start);
+        long intended = 0;
+        double offset = 0;
+        while ( offset < durationNanos ) {
+            long intendedStart = start + (long)offset;
+            ++intended;
+            offset += poisson ? (-Math.log(1.0 - random.nextDouble()) * intervalNanos) : intervalNanos;
+            long[] serviceNanos = new long[stages.size()];
+            for ( int i = 0; i < serviceNanos.length; ++i ) {
+                serviceNanos[i] = stages.get(i).serviceTime.nextNanos(random);
+            }
+
+            waitUntil(intendedStart);
+            if ( outstanding.get() >= maxOutstanding ) {
+                rejected.increment();
+                continue;
+            }
+
+            outstanding.incrementAndGet();
+            long actualStart = System.nanoTime();
+            AtomicBoolean started = new AtomicBoolean(false);
+            newChain(serviceNanos, started).unwrap().whenComplete((value, e) -> {
+                long now = System.nanoTime();
+                Throwable cause = ((e instanceof CompletionException) && (e.getCause() != null)) ? e.getCause() : e;
+                if ( !started.get() && isRejection(cause) ) {
+                    // the chain was turned away before its first stage ran - like max outstanding, it has no latency
+                    rejected.increment();
+                } else {
+                    latency.record(now - intendedStart);
+                    serviceLatency.record(now - actualStart);
+                    if ( cause instanceof TimeoutException ) {
+                        timedOut.increment();
+                    } else if ( cause != null ) {
+                        failed.increment();
+                    } else if ( value.isPresent() ) {
+                        succeeded.increment();
+                    } else {
+                        aborted.increment();
+                    }
+                }
+                lastCompletion.accumulateAndGet(now, Math::max);
+                if ( outstanding.decrementAndGet() == 0 ) {
+                    synchronized(outstanding) {
+                        outstanding.notifyAll();
+                    }
+                }
+            });
+        }
+
+        long drainEnd = System.nanoTime() + drainTimeout.toNanos();
+        synchronized(outstanding) {
+            long remaining;
+            while ( (outstanding.get() > 0) && ((remaining = drainEnd - System.nanoTime()) > 0) ) {
+                TimeUnit.NANOSECONDS.timedWait(outstanding, remaining);
+            }
+        }
+        int incomplete = outstanding.get();
+        long end = (incomplete > 0) ? System.nanoTime() : lastCompletion.get();
+        return new LoadReport(intended, succeeded.sum(), aborted.sum(), failed.sum(), timedOut.sum(), rejected.sum(), incomplete, Duration.ofNanos(end - start), latency, serviceLatency);
+    }
+
+    private static boolean isRejection(Throwable cause) {
+        return (cause instanceof RejectedExecutionException) || (cause instanceof Aborted.OverloadException);
+    }
+
+    private StagedFuture<Integer> newChain(long[] serviceNanos, AtomicBoolean started) {
+        StagedFutureBuilder builder = (tracing != null) ? StagedFuture.async(executor, tracing.get()) : StagedFuture.async(executor);
+        StagedFuture<Integer> future = withTimeout(configurer.apply(builder).thenIf(() -> {
+            started.set(true);
+            return work(0, serviceNanos[0]);
+        }));
+        for ( int i = 1; i < serviceNanos.length; ++i ) {
+            int index = i;
+            future = withTimeout(future.thenIf(previous -> work(index, serviceNanos[index])));
+        }
+        return future;
+    }
+
+    private StagedFuture<Integer> withTimeout(StagedFutureTimeout<Integer> future) {
+        return (timeout != null) ? future.withTimeout(timeout) : future;
+    }
+
+    private Optional<Integer> work(int index, long nanos) {
+        long end = System.nanoTime() + nanos;
+        if ( stages.get(index).busy ) {
+            while ( (System.nanoTime() - end) < 0 ) {
+                // spin
+            }
+        } else {
+            long remaining;
+            while ( (remaining = end - System.nanoTime()) > 0 ) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+        return Optional.of(index);
+    }
+
+    private static void waitUntil(long nanoTime) throws InterruptedException {
+        long remaining;
+        while ( (remaining = nanoTime - System.nanoTime()) > 0 ) {
+            LockSupport.parkNanos(remaining);
+            if ( Thread.interrupted() ) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    static long nonNegative(Duration time) {
+        long nanos = time.toNanos();
+        if ( nanos < 0 ) {
+            throw new IllegalArgumentException("time cannot be negative: " + time);
+        }
+        return nanos;
+    }
+
+    private LoadGenerator(double rate, Duration duration, boolean poisson, Executor executor, Supplier<Tracing> tracing, UnaryOperator<StagedFutureBuilder> configurer, List<Stage> stages, Duration timeout, int maxOutstanding, Duration drainTimeout, Random random) {
+        this.rate = rate;
+        this.duration = duration;
+        this.poisson = poisson;
+        this.executor = executor;
+        this.tracing = tracing;
+        this.configurer = configurer;
+        this.stages = Collections.unmodifiableList(new ArrayList<>(stages));
+        this.timeout = timeout;
+        this.maxOutstanding = maxOutstanding;
+        this.drainTimeout = drainTimeout;
+        this.random = random;
+    }
+}
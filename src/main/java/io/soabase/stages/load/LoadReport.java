@@ -0,0 +1,161 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.load;
+
+import io.soabase.stages.LatencyHistogram;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Results of a {@link LoadGenerator} run
+ */
+public class LoadReport {
+    private final long intended;
+    private final long succeeded;
+    private final long aborted;
+    private final long failed;
+    private final long timedOut;
+    private final long rejected;
+    private final long incomplete;
+    private final Duration elapsed;
+    private final LatencyHistogram latency;
+    private final LatencyHistogram serviceLatency;
+
+    LoadReport(long intended, long succeeded, long aborted, long failed, long timedOut, long rejected, long incomplete, Duration elapsed, LatencyHistogram latency, LatencyHistogram serviceLatency) {
+        this.intended = intended;
+        this.succeeded = succeeded;
+        this.aborted = aborted;
+        this.failed = failed;
+        this.timedOut = timedOut;
+        this.rejected = rejected;
+        this.incomplete = incomplete;
+        this.elapsed = Objects.requireNonNull(elapsed, "elapsed cannot be null");
+        this.latency = Objects.requireNonNull(latency, "latency cannot be null");
+        this.serviceLatency = Objects.requireNonNull(serviceLatency, "serviceLatency cannot be null");
+    }
+
+    /**
+     * @return number of chains the arrival schedule called for
+     */
+    public long getIntendedCount() {
+        return intended;
+    }
+
+    /**
+     * @return chains that completed with a value
+     */
+    public long getSucceededCount() {
+        return succeeded;
+    }
+
+    /**
+     * @return chains that completed with an empty value
+     */
+    public long getAbortedCount() {
+        return aborted;
+    }
+
+    /**
+     * @return chains that completed exceptionally for reasons other than a timeout
+     */
+    public long getFailedCount() {
+        return failed;
+    }
+
+    /**
+     * @return chains that failed with a {@link java.util.concurrent.TimeoutException}
+     */
+    public long getTimedOutCount() {
+        return timedOut;
+    }
+
+    /**
+     * @return chains that were not started because the max number of outstanding chains was reached
+     * or their first task was rejected (by the executor or admission control)
+     */
+    public long getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * @return chains still running when the drain timeout expired
+     */
+    public long getIncompleteCount() {
+        return incomplete;
+    }
+
+    /**
+     * @return time from the first arrival until the last chain completed (or the drain timeout expired)
+     */
+    public Duration getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * @return completed chains per second
+     */
+    public double getThroughput() {
+        long completed = succeeded + aborted + failed + timedOut;
+        long nanos = elapsed.toNanos();
+        return (nanos > 0) ? ((completed * 1_000_000_000.0) / nanos) : 0;
+    }
+
+    /**
+     * Latency measured from each chain's <em>intended</em> start time (its slot in the arrival schedule) to
+     * its completion. If the generator falls behind because the system under test pushed back, the time
+     * a chain spent waiting to be started is included - i.e. this is corrected for coordinated omission
+     * and is what a caller arriving on schedule would experience.
+     *
+     * @return latency of completed chains
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Latency measured from when each chain was actually started to its completion. Comparing this
+     * with {@link #getLatency()} shows how much latency a closed-loop benchmark would hide.
+     *
+     * @return uncorrected latency of completed chains
+     */
+    public LatencyHistogram getServiceLatency() {
+        return serviceLatency;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append(String.format("elapsed %s, throughput %.1f/s%n", elapsed, getThroughput()));
+        str.append(String.format("intended %d, succeeded %d, aborted %d, failed %d, timed out %d, rejected %d, incomplete %d%n",
+            intended, succeeded, aborted, failed, timedOut, rejected, incomplete));
+        str.append(String.format("%-10s %12s %12s%n", "", "corrected", "uncorrected"));
+        row(str, "mean", latency.getMean(), serviceLatency.getMean());
+        for ( double percentile : new double[]{50, 90, 99, 99.9, 99.99} ) {
+            row(str, "p" + format(percentile), latency.getValueAtPercentile(percentile), serviceLatency.getValueAtPercentile(percentile));
+        }
+        row(str, "max", latency.getMax(), serviceLatency.getMax());
+        return str.toString();
+    }
+
+    private static void row(StringBuilder str, String name, Duration corrected, Duration uncorrected) {
+        str.append(String.format("%-10s %10.3fms %10.3fms%n", name, corrected.toNanos() / 1_000_000.0, uncorrected.toNanos() / 1_000_000.0));
+    }
+
+    private static String format(double percentile) {
+        return (percentile == Math.rint(percentile)) ? Long.toString((long)percentile) : Double.toString(percentile);
+    }
+}
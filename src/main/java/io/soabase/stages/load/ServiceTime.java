@@ -0,0 +1,91 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.load;
+
+import java.time.Duration;
+import java.util.Random;
+
+/**
+ * Distribution of the time a simulated stage takes (see {@link LoadGenerator.Builder#stage(ServiceTime)})
+ */
+@FunctionalInterface
+public interface ServiceTime {
+    /**
+     * @param random source of randomness - not thread safe, use only in the calling thread
+     * @return next service time in nanoseconds
+     */
+    long nextNanos(Random random);
+
+    /**
+     * @param time the service time
+     * @return every stage takes exactly the given time
+     */
+    static ServiceTime fixed(Duration time) {
+        long nanos = LoadGenerator.nonNegative(time);
+        return random -> nanos;
+    }
+
+    /**
+     * @param min min service time
+     * @param max max service time
+     * @return service times evenly distributed between min and max
+     */
+    static ServiceTime uniform(Duration min, Duration max) {
+        long minNanos = LoadGenerator.nonNegative(min);
+        long range = LoadGenerator.nonNegative(max) - minNanos;
+        if ( range < 0 ) {
+            throw new IllegalArgumentException("max must be greater than or equal to min");
+        }
+        return random -> minNanos + (long)(random.nextDouble() * range);
+    }
+
+    /**
+     * @param mean mean service time
+     * @return exponentially distributed service times (e.g. a memoryless server)
+     */
+    static ServiceTime exponential(Duration mean) {
+        long meanNanos = LoadGenerator.nonNegative(mean);
+        return random -> (long)(-Math.log(1.0 - random.nextDouble()) * meanNanos);
+    }
+
+    /**
+     * Log-normal service times have the long right tail typical of network calls
+     *
+     * @param median median service time
+     * @param sigma shape - larger values give longer tails (e.g. 0.5 to 1.0 for typical RPCs)
+     * @return log-normally distributed service times
+     */
+    static ServiceTime logNormal(Duration median, double sigma) {
+        long medianNanos = LoadGenerator.nonNegative(median);
+        if ( !(sigma >= 0) ) {
+            throw new IllegalArgumentException("sigma cannot be negative");
+        }
+        return random -> (long)(medianNanos * Math.exp(sigma * random.nextGaussian()));
+    }
+
+    /**
+     * @param mostly the usual service time
+     * @param slow the occasional slow service time
+     * @param slowProbability probability (0 to 1) of the slow service time
+     * @return a bimodal distribution (e.g. cache hit vs. miss)
+     */
+    static ServiceTime bimodal(ServiceTime mostly, ServiceTime slow, double slowProbability) {
+        if ( !(slowProbability >= 0) || (slowProbability > 1) ) {
+            throw new IllegalArgumentException("slowProbability must be between 0 and 1");
+        }
+        return random -> (random.nextDouble() < slowProbability) ? slow.nextNanos(random) : mostly.nextNanos(random);
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.pipeline;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * A staged event-driven (SEDA) pipeline. Each stage of the pipeline has its own bounded
+ * queue and its own pool of worker threads so that items flow continuously from stage
+ * to stage and each stage can be sized independently.
+ * </p>
+ *
+ * <p>
+ * Stages use the same abort semantics as {@link io.soabase.stages.StagedFuture#thenIf(java.util.function.Function)}:
+ * if a stage returns {@link java.util.Optional#empty()} the item is dropped and no further stages
+ * see it.
+ * </p>
+ */
+public interface Pipeline<T> {
+    /**
+     * Start building a pipeline that uses daemon worker threads
+     *
+     * @return builder
+     */
+    static <T> PipelineBuilder<T, T> builder() {
+        return builder(null);
+    }
+
+    /**
+     * Start building a pipeline that uses the given thread factory to create worker threads
+     *
+     * @param threadFactory factory for worker threads or <code>null</code> to use daemon threads
+     * @return builder
+     */
+    static <T> PipelineBuilder<T, T> builder(ThreadFactory threadFactory) {
+        return new PipelineBuilderImpl<>(threadFactory);
+    }
+
+    /**
+     * Submit an item to the first stage of the pipeline, waiting if necessary
+     * for space to become available in the first stage's queue.
+     *
+     * @param item the item
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if the pipeline has been shutdown
+     */
+    void submit(T item) throws InterruptedException;
+
+    /**
+     * Submit an item to the first stage of the pipeline if there is space available
+     * in the first stage's queue.
+     *
+     * @param item the item
+     * @return true if the item was accepted, false if the first stage's queue is full
+     * @throws IllegalStateException if the pipeline has been shutdown
+     */
+    boolean offer(T item);
+
+    /**
+     * Return the stages of the pipeline in order. The stages can be used to examine
+     * the queue depth, throughput and service time of each stage.
+     *
+     * @return stages
+     */
+    List<PipelineStage> getStages();
+
+    /**
+     * Stop accepting new items. Items already in the pipeline are processed and then
+     * the worker threads exit.
+     */
+    void shutdown();
+
+    /**
+     * Stop accepting new items and interrupt all worker threads. Items in the pipeline
+     * are discarded.
+     */
+    void shutdownNow();
+
+    /**
+     * Wait for all worker threads to exit after a shutdown
+     *
+     * @param maxWait max time to wait
+     * @return true if all worker threads have exited
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitTermination(Duration maxWait) throws InterruptedException;
+}
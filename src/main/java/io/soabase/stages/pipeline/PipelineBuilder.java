@@ -0,0 +1,78 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.pipeline;
+
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Adds stages and handlers to a {@link Pipeline}
+ */
+public interface PipelineBuilder<T, U> {
+    /**
+     * <p>
+     * Add a stage to the pipeline. The stage gets its own bounded queue and its own
+     * worker threads. The given task receives each item produced by the previous stage.
+     * The given task returns an optional value. If {@link Optional#empty()} is returned
+     * the item is dropped and the {@link #whenAborted(Runnable)} handler is called.
+     * </p>
+     *
+     * <p>
+     * When the queue of a stage is full the previous stage waits for space. i.e.
+     * a slow stage applies back pressure to the stages in front of it.
+     * </p>
+     *
+     * @param name name of the stage (used for thread names and metrics)
+     * @param threads number of worker threads for the stage
+     * @param queueCapacity max number of items waiting for the stage
+     * @param proc task to execute for each item
+     * @return builder
+     */
+    <V> PipelineBuilder<T, V> thenIf(String name, int threads, int queueCapacity, Function<U, Optional<V>> proc);
+
+    /**
+     * Handler called with each item that makes it through all stages of the pipeline. The
+     * handler is called in the worker threads of the last stage.
+     *
+     * @param handler consumer for the item
+     * @return builder
+     */
+    PipelineBuilder<T, U> whenSucceeded(Consumer<U> handler);
+
+    /**
+     * Handler called each time a stage drops an item by returning {@link Optional#empty()}
+     *
+     * @param handler abort handler
+     * @return builder
+     */
+    PipelineBuilder<T, U> whenAborted(Runnable handler);
+
+    /**
+     * Handler called each time a stage throws an exception. The item is dropped.
+     *
+     * @param handler exception handler
+     * @return builder
+     */
+    PipelineBuilder<T, U> whenFailed(Consumer<Throwable> handler);
+
+    /**
+     * Build the pipeline and start its worker threads
+     *
+     * @return pipeline
+     */
+    Pipeline<T> build();
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+class PipelineBuilderImpl<T, U> implements PipelineBuilder<T, U> {
+    static class StageSpec {
+        final String name;
+        final int threads;
+        final int queueCapacity;
+        final Function<Object, Optional<Object>> proc;
+
+        StageSpec(String name, int threads, int queueCapacity, Function<Object, Optional<Object>> proc) {
+            this.name = name;
+            this.threads = threads;
+            this.queueCapacity = queueCapacity;
+            this.proc = proc;
+        }
+    }
+
+    private final ThreadFactory threadFactory;
+    private final List<StageSpec> stages;
+    private final Consumer<Object> successHandler;
+    private final Runnable abortHandler;
+    private final Consumer<Throwable> failureHandler;
+
+    PipelineBuilderImpl(ThreadFactory threadFactory) {
+        this(threadFactory, new ArrayList<>(), null, null, null);
+    }
+
+    @Override
+    public <V> PipelineBuilder<T, V> thenIf(String name, int threads, int queueCapacity, Function<U, Optional<V>> proc) {
+        Objects.requireNonNull(name, "name cannot be null");
+        Objects.requireNonNull(proc, "proc cannot be null");
+        if ( threads < 1 ) {
+            throw new IllegalArgumentException("threads must be greater than 0");
+        }
+        if ( queueCapacity < 1 ) {
+            throw new IllegalArgumentException("queueCapacity must be greater than 0");
+        }
+
+        @SuppressWarnings("unchecked")
+        Function<Object, Optional<Object>> untypedProc = value -> (Optional<Object>)proc.apply((U)value);
+        List<StageSpec> newStages = new ArrayList<>(stages);
+        newStages.add(new StageSpec(name, threads, queueCapacity, untypedProc));
+        return new PipelineBuilderImpl<>(threadFactory, newStages, null, abortHandler, failureHandler);
+    }
+
+    @Override
+    public PipelineBuilder<T, U> whenSucceeded(Consumer<U> handler) {
+        Objects.requireNonNull(handler, "handler cannot be null");
+        @SuppressWarnings("unchecked")
+        Consumer<Object> untypedHandler = value -> handler.accept((U)value);
+        return new PipelineBuilderImpl<>(threadFactory, stages, untypedHandler, abortHandler, failureHandler);
+    }
+
+    @Override
+    public PipelineBuilder<T, U> whenAborted(Runnable handler) {
+        Objects.requireNonNull(handler, "handler cannot be null");
+        return new PipelineBuilderImpl<>(threadFactory, stages, successHandler, handler, failureHandler);
+    }
+
+    @Override
+    public PipelineBuilder<T, U> whenFailed(Consumer<Throwable> handler) {
+        Objects.requireNonNull(handler, "handler cannot be null");
+        return new PipelineBuilderImpl<>(threadFactory, stages, successHandler, abortHandler, handler);
+    }
+
+    @Override
+    public Pipeline<T> build() {
+        if ( stages.isEmpty() ) {
+            throw new IllegalStateException("A pipeline must have at least one stage");
+        }
+        return new PipelineImpl<>(threadFactory, stages, successHandler, abortHandler, failureHandler);
+    }
+
+    private PipelineBuilderImpl(ThreadFactory threadFactory, List<StageSpec> stages, Consumer<Object> successHandler, Runnable abortHandler, Consumer<Throwable> failureHandler) {
+        this.threadFactory = threadFactory;
+        this.stages = stages;
+        this.successHandler = successHandler;
+        this.abortHandler = abortHandler;
+        this.failureHandler = failureHandler;
+    }
+}
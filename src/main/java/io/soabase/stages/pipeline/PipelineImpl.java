@@ -0,0 +1,211 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.pipeline;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+class PipelineImpl<T> implements Pipeline<T> {
+    private final List<PipelineStageImpl> stages;
+    private final List<Thread> workers;
+    private final Consumer<Object> successHandler;
+    private final Runnable abortHandler;
+    private final Consumer<Throwable> failureHandler;
+    private final AtomicLong inFlight = new AtomicLong(0);
+    private final AtomicBoolean isTerminated = new AtomicBoolean(false);
+    private volatile boolean isShutdown = false;
+
+    PipelineImpl(ThreadFactory threadFactory, List<PipelineBuilderImpl.StageSpec> specs, Consumer<Object> successHandler, Runnable abortHandler, Consumer<Throwable> failureHandler) {
+        this.successHandler = successHandler;
+        this.abortHandler = abortHandler;
+        this.failureHandler = failureHandler;
+
+        long startNanos = System.nanoTime();
+        List<PipelineStageImpl> stages = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for ( PipelineBuilderImpl.StageSpec spec : specs ) {
+            PipelineStageImpl stage = new PipelineStageImpl(spec, startNanos);
+            stages.add(stage);
+            for ( int i = 0; i < spec.threads; ++i ) {
+                Thread thread = newThread(threadFactory, spec.name, i, stages.size() - 1);
+                workers.add(thread);
+            }
+        }
+        this.stages = Collections.unmodifiableList(stages);
+        this.workers = Collections.unmodifiableList(workers);
+        this.workers.forEach(Thread::start);
+    }
+
+    @Override
+    public void submit(T item) throws InterruptedException {
+        Objects.requireNonNull(item, "item cannot be null");
+        enter();
+        try {
+            stages.get(0).put(item);
+        } catch (InterruptedException e) {
+            exit();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean offer(T item) {
+        Objects.requireNonNull(item, "item cannot be null");
+        enter();
+        if ( !stages.get(0).offer(item) ) {
+            exit();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public List<PipelineStage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    @Override
+    public void shutdown() {
+        isShutdown = true;
+        if ( inFlight.get() == 0 ) {
+            terminate();
+        }
+    }
+
+    @Override
+    public void shutdownNow() {
+        isShutdown = true;
+        terminate();
+    }
+
+    @Override
+    public boolean awaitTermination(Duration maxWait) throws InterruptedException {
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        for ( Thread worker : workers ) {
+            long remainingMs = Math.max(1, (deadline - System.nanoTime()) / 1_000_000);
+            worker.join(remainingMs);
+            if ( worker.isAlive() ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Thread newThread(ThreadFactory threadFactory, String name, int index, int stageIndex) {
+        Runnable worker = () -> work(stageIndex);
+        if ( threadFactory != null ) {
+            return threadFactory.newThread(worker);
+        }
+        Thread thread = new Thread(worker);
+        thread.setDaemon(true);
+        thread.setName("Pipeline-" + name + "-" + index);
+        return thread;
+    }
+
+    private void work(int stageIndex) {
+        PipelineStageImpl stage = stages.get(stageIndex);
+        PipelineStageImpl next = ((stageIndex + 1) < stages.size()) ? stages.get(stageIndex + 1) : null;
+        // only terminate() ends the loop - an interrupt left behind by a proc must not cost the stage a worker
+        while ( !isTerminated.get() ) {
+            Object item;
+            try {
+                item = stage.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                process(stage, next, item);
+            } catch (InterruptedException e) {
+                // terminated while handing the item to the next stage - the item is dropped
+            } catch (Throwable e) {
+                fail(e);
+            } finally {
+                exit();
+            }
+        }
+    }
+
+    private void process(PipelineStageImpl stage, PipelineStageImpl next, Object item) throws InterruptedException {
+        Optional<Object> result;
+        try {
+            result = stage.process(item);
+        } catch (Throwable e) {
+            fail(e);
+            return;
+        } finally {
+            if ( !isTerminated.get() ) {
+                Thread.interrupted();   // clear any interrupt the proc left behind
+            }
+        }
+
+        if ( !result.isPresent() ) {
+            if ( abortHandler != null ) {
+                abortHandler.run();
+            }
+            return;
+        }
+
+        if ( next != null ) {
+            inFlight.incrementAndGet(); // the item stays in flight even after a shutdown
+            try {
+                next.put(result.get());
+            } catch (InterruptedException e) {
+                exit();
+                throw e;
+            }
+        } else if ( successHandler != null ) {
+            successHandler.accept(result.get());
+        }
+    }
+
+    private void fail(Throwable e) {
+        if ( failureHandler != null ) {
+            try {
+                failureHandler.accept(e);
+            } catch (Throwable ignore) {
+                // nowhere left to report it - the worker must keep running
+            }
+        }
+    }
+
+    private void enter() {
+        inFlight.incrementAndGet();
+        if ( isShutdown ) {
+            exit();
+            throw new IllegalStateException("Pipeline has been shutdown");
+        }
+    }
+
+    private void exit() {
+        if ( (inFlight.decrementAndGet() == 0) && isShutdown ) {
+            terminate();
+        }
+    }
+
+    private void terminate() {
+        if ( isTerminated.compareAndSet(false, true) ) {
+            workers.forEach(Thread::interrupt);
+        }
+    }
+}
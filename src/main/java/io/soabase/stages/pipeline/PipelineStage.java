@@ -0,0 +1,68 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.pipeline;
+
+import java.time.Duration;
+
+/**
+ * Metrics for a single stage of a {@link Pipeline}
+ */
+public interface PipelineStage {
+    /**
+     * @return the name of the stage
+     */
+    String getName();
+
+    /**
+     * @return number of worker threads for the stage
+     */
+    int getThreads();
+
+    /**
+     * @return max number of items that can wait for the stage
+     */
+    int getQueueCapacity();
+
+    /**
+     * @return number of items currently waiting for the stage
+     */
+    int getQueueDepth();
+
+    /**
+     * @return number of items the stage has processed (including aborted and failed items)
+     */
+    long getProcessedCount();
+
+    /**
+     * @return number of items the stage has dropped by returning an empty Optional
+     */
+    long getAbortedCount();
+
+    /**
+     * @return number of items for which the stage threw an exception
+     */
+    long getFailedCount();
+
+    /**
+     * @return processed items per second since the pipeline was started
+     */
+    double getThroughput();
+
+    /**
+     * @return average time the stage's task takes to process an item
+     */
+    Duration getMeanServiceTime();
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.pipeline;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+class PipelineStageImpl implements PipelineStage {
+    private final String name;
+    private final int threads;
+    private final int queueCapacity;
+    private final long startNanos;
+    private final BlockingQueue<Object> queue;
+    private final Function<Object, Optional<Object>> proc;
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder serviceNanos = new LongAdder();
+
+    PipelineStageImpl(PipelineBuilderImpl.StageSpec spec, long startNanos) {
+        this.name = spec.name;
+        this.threads = spec.threads;
+        this.queueCapacity = spec.queueCapacity;
+        this.proc = spec.proc;
+        this.startNanos = startNanos;
+        queue = new ArrayBlockingQueue<>(spec.queueCapacity);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public long getProcessedCount() {
+        return processed.sum();
+    }
+
+    @Override
+    public long getAbortedCount() {
+        return aborted.sum();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    @Override
+    public double getThroughput() {
+        long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+        return (processed.sum() * 1_000_000_000.0) / elapsedNanos;
+    }
+
+    @Override
+    public Duration getMeanServiceTime() {
+        long count = processed.sum();
+        return (count > 0) ? Duration.ofNanos(serviceNanos.sum() / count) : Duration.ZERO;
+    }
+
+    @Override
+    public String toString() {
+        return "PipelineStage{" +
+            "name='" + name + '\'' +
+            ", threads=" + threads +
+            ", queueDepth=" + getQueueDepth() +
+            ", queueCapacity=" + queueCapacity +
+            ", processed=" + getProcessedCount() +
+            ", aborted=" + getAbortedCount() +
+            ", failed=" + getFailedCount() +
+            '}';
+    }
+
+    void put(Object item) throws InterruptedException {
+        queue.put(item);
+    }
+
+    boolean offer(Object item) {
+        return queue.offer(item);
+    }
+
+    Object take() throws InterruptedException {
+        return queue.take();
+    }
+
+    /**
+     * Run the stage's task for the given item and record metrics
+     *
+     * @param item item
+     * @return result of the task
+     */
+    Optional<Object> process(Object item) {
+        long start = System.nanoTime();
+        try {
+            Optional<Object> result = Objects.requireNonNull(proc.apply(item), "proc cannot return null");
+            if ( !result.isPresent() ) {
+                aborted.increment();
+            }
+            return result;
+        } catch (Throwable e) {
+            failed.increment();
+            throw e;
+        } finally {
+            serviceNanos.add(System.nanoTime() - start);
+            processed.increment();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.time;
+
+import java.time.Duration;
+
+/**
+ * <p>
+ * The clock and timer used by a StagedFuture chain for timeouts, delays (e.g. rate limiting) and
+ * tracing durations. The default is {@link #system()}. Use a {@link VirtualScheduler} to run
+ * simulations/tests in virtual time. Pass an instance to
+ * {@link io.soabase.stages.StagedFutureBuilder#withScheduler(Scheduler)}.
+ * </p>
+ */
+public interface Scheduler {
+    /**
+     * A scheduled command
+     */
+    interface Task {
+        /**
+         * Cancel the command if it hasn't run yet
+         */
+        void cancel();
+    }
+
+    /**
+     * Return the system scheduler: {@link System#nanoTime()} and a single shared daemon timer thread
+     *
+     * @return scheduler
+     */
+    static Scheduler system() {
+        return SystemScheduler.instance;
+    }
+
+    /**
+     * Current time in nanoseconds - only meaningful relative to other values from the same scheduler
+     *
+     * @return nanos
+     */
+    long nanoTime();
+
+    /**
+     * Run the given command after the given delay. The command must be short - it should only complete
+     * futures or hand work to an executor.
+     *
+     * @param command command
+     * @param delay delay
+     * @return the scheduled task
+     */
+    Task schedule(Runnable command, Duration delay);
+
+    /**
+     * @return true if the current thread is one of this scheduler's timer threads
+     */
+    default boolean isTimerThread() {
+        return false;
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.time;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall clock scheduler. The underlying thread is only used to complete futures - we just need the queued scheduler
+ */
+class SystemScheduler implements Scheduler {
+    static final SystemScheduler instance = new SystemScheduler();
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private static class TimerThread extends Thread {
+        TimerThread(Runnable r) {
+            super(r, "Timeout.FailAfter thread");
+            setDaemon(true);
+        }
+    }
+
+    private SystemScheduler() {
+        executor = new ScheduledThreadPoolExecutor(1, TimerThread::new);
+        // once a timer is canceled it's no longer needed - don't leave it in the queue
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public Task schedule(Runnable command, Duration delay) {
+        ScheduledFuture<?> future = executor.schedule(command, delay.toNanos(), TimeUnit.NANOSECONDS);
+        return () -> future.cancel(false);
+    }
+
+    @Override
+    public boolean isTimerThread() {
+        return Thread.currentThread() instanceof TimerThread;
+    }
+}
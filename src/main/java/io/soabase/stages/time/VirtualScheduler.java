@@ -0,0 +1,168 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.time;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.PriorityQueue;
+
+/**
+ * <p>
+ * A deterministic scheduler whose time only moves when told to. Scheduled commands run in time order
+ * (and submission order for equal times) in the thread that calls {@link #advance(Duration)} or
+ * {@link #runUntilIdle()}. Combined with a synchronous executor, simulations of chains with timeouts
+ * and delays run as fast as the CPU allows and produce the same results every run.
+ * </p>
+ *
+ * <pre>
+ * VirtualScheduler scheduler = new VirtualScheduler();
+ * StagedFuture&lt;String&gt; future = StagedFuture.sync().withScheduler(scheduler)
+ *     .thenStageIf(neverCompletes)
+ *     .withTimeout(Duration.ofHours(1), () -&gt; "default");
+ * scheduler.advance(Duration.ofHours(1));  // returns immediately - future is now complete
+ * </pre>
+ */
+public class VirtualScheduler implements Scheduler {
+    private PriorityQueue<VirtualTask> tasks = new PriorityQueue<>();
+    private long now;
+    private long sequence = 0;
+    private int pendingCount = 0;
+
+    // canceling is lazy (removing from the middle of the heap is O(n) and every completed timeout cancels its timer):
+    // canceled tasks stay in the heap, are skipped when they come due and are purged if they outnumber pending tasks
+    private class VirtualTask implements Task, Comparable<VirtualTask> {
+        private Runnable command;   // null once run or canceled - guarded by VirtualScheduler.this
+        private final long time;
+        private final long order;
+
+        VirtualTask(Runnable command, long time, long order) {
+            this.command = command;
+            this.time = time;
+            this.order = order;
+        }
+
+        @Override
+        public void cancel() {
+            synchronized(VirtualScheduler.this) {
+                if ( command != null ) {
+                    command = null;
+                    --pendingCount;
+                    if ( (tasks.size() - pendingCount) > Math.max(pendingCount, 64) ) {
+                        purge();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(VirtualTask rhs) {
+            int diff = Long.compare(time, rhs.time);
+            return (diff != 0) ? diff : Long.compare(order, rhs.order);
+        }
+    }
+
+    /**
+     * Starts at time 0
+     */
+    public VirtualScheduler() {
+        this(0);
+    }
+
+    /**
+     * @param startNanos initial time
+     */
+    public VirtualScheduler(long startNanos) {
+        now = startNanos;
+    }
+
+    @Override
+    public synchronized long nanoTime() {
+        return now;
+    }
+
+    @Override
+    public synchronized Task schedule(Runnable command, Duration delay) {
+        Objects.requireNonNull(command, "command cannot be null");
+        VirtualTask task = new VirtualTask(command, now + Math.max(0, delay.toNanos()), sequence++);
+        tasks.add(task);
+        ++pendingCount;
+        return task;
+    }
+
+    /**
+     * Move time forward by the given amount, running every command that becomes due (including
+     * commands scheduled by those commands) in time order
+     *
+     * @param amount amount of time
+     */
+    public void advance(Duration amount) {
+        long target;
+        synchronized(this) {
+            target = now + amount.toNanos();
+        }
+        advanceTo(target);
+    }
+
+    /**
+     * Run every scheduled command (including commands scheduled by those commands), moving time
+     * forward as needed. Returns when nothing is scheduled.
+     */
+    public void runUntilIdle() {
+        advanceTo(Long.MAX_VALUE);
+    }
+
+    /**
+     * @return number of scheduled commands
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    private void advanceTo(long target) {
+        for(;;) {
+            Runnable command;
+            synchronized(this) {
+                VirtualTask task = tasks.peek();
+                if ( (task == null) || (task.time > target) ) {
+                    if ( target != Long.MAX_VALUE ) {
+                        now = Math.max(now, target);
+                    }
+                    return;
+                }
+                tasks.poll();
+                command = task.command;
+                if ( command == null ) {
+                    continue;   // canceled
+                }
+                task.command = null;
+                --pendingCount;
+                now = Math.max(now, task.time);
+            }
+            // run outside of the lock - the command may schedule more commands
+            command.run();
+        }
+    }
+
+    private void purge() {
+        PriorityQueue<VirtualTask> purged = new PriorityQueue<>(Math.max(1, pendingCount));
+        for ( VirtualTask task : tasks ) {
+            if ( task.command != null ) {
+                purged.add(task);
+            }
+        }
+        tasks = purged;
+    }
+}
@@ -0,0 +1,353 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.tracing;
+
+import org.slf4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * Background writer for {@link AsyncTracing}. Tracers record raw events (timestamps, ids, durations and
+ * exception references) into a preallocated ring of slots - recording claims a slot with a CAS and
+ * never blocks, allocates or formats. A background thread formats the events and writes them to a
+ * {@link Sink} (SLF4J, a file, etc.). If the ring is full, or the writer has been closed, the event is dropped
+ * and counted. The thread's name is captured when the event is recorded.
+ * </p>
+ *
+ * <p>
+ * Share one writer across all chains.
+ * </p>
+ */
+public class AsyncTraceWriter implements Closeable {
+    static final byte typeStart = 1;
+    static final byte typeSuccess = 2;
+    static final byte typeFail = 3;
+    static final byte typeBlocking = 4;
+    static final byte typeTimedOut = 5;
+    static final byte typeAborted = 6;
+    static final byte typeSkipped = 7;
+    static final byte typeCanceled = 8;
+
+    private final Sink sink;
+    private final int mask;
+    private final long flushIntervalNanos;
+    private final AtomicLongArray published;
+    private final byte[] types;
+    private final long[] epochMillis;
+    private final long[] chainIds;
+    private final int[] stages;
+    private final long[] nanos;
+    private final long[] otherNanos;
+    private final String[] threadNames;
+    private final Throwable[] errors;
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong chainIdSequence = new AtomicLong(0);
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sinkFailures = new LongAdder();
+    private final Thread thread;
+    private volatile long head = 0;
+    private volatile boolean isClosed = false;
+
+    /**
+     * Destination for formatted trace lines. Called only from the writer's background thread.
+     */
+    @FunctionalInterface
+    public interface Sink {
+        /**
+         * @param line formatted event
+         * @throws Exception errors are counted (see {@link #getSinkFailureCount()})
+         */
+        void write(String line) throws Exception;
+
+        /**
+         * Called after each batch of lines
+         *
+         * @throws Exception errors are counted (see {@link #getSinkFailureCount()})
+         */
+        default void flush() throws Exception {
+            // NOP
+        }
+
+        /**
+         * Called when the writer is closed
+         *
+         * @throws Exception errors are counted (see {@link #getSinkFailureCount()})
+         */
+        default void close() throws Exception {
+            // NOP
+        }
+
+        /**
+         * @param logger SLF4J logger
+         * @param level level to log at
+         * @return sink that logs each line
+         */
+        static Sink logger(Logger logger, Slf4JTracing.Level level) {
+            Objects.requireNonNull(logger, "logger cannot be null");
+            Objects.requireNonNull(level, "level cannot be null");
+            return line -> level.log(logger, line);
+        }
+
+        /**
+         * @param path file to append to
+         * @return sink that appends each line to the file
+         * @throws IOException errors opening the file
+         */
+        static Sink file(Path path) throws IOException {
+            BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+            return new Sink() {
+                @Override
+                public void write(String line) throws IOException {
+                    writer.write(line);
+                    writer.newLine();
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    writer.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    writer.close();
+                }
+            };
+        }
+    }
+
+    /**
+     * Uses a ring of 16384 events and a flush interval of 100ms
+     *
+     * @param sink destination for formatted events
+     */
+    public AsyncTraceWriter(Sink sink) {
+        this(sink, 16384, Duration.ofMillis(100));
+    }
+
+    /**
+     * @param sink destination for formatted events
+     * @param capacity max events waiting to be written (rounded up to a power of 2)
+     * @param flushInterval max time an event waits before being written
+     */
+    public AsyncTraceWriter(Sink sink, int capacity, Duration flushInterval) {
+        this.sink = Objects.requireNonNull(sink, "sink cannot be null");
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if ( size < capacity ) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        flushIntervalNanos = flushInterval.toNanos();
+        published = new AtomicLongArray(size);
+        for ( int i = 0; i < size; ++i ) {
+            published.set(i, -1);
+        }
+        types = new byte[size];
+        epochMillis = new long[size];
+        chainIds = new long[size];
+        stages = new int[size];
+        nanos = new long[size];
+        otherNanos = new long[size];
+        threadNames = new String[size];
+        errors = new Throwable[size];
+
+        thread = new Thread(this::run, "AsyncTraceWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return a new tracer for one chain
+     */
+    public AsyncTracing newTracing() {
+        return new AsyncTracing(this);
+    }
+
+    /**
+     * @return number of events dropped because the ring was full or the writer was closed
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return number of sink calls that threw
+     */
+    public long getSinkFailureCount() {
+        return sinkFailures.sum();
+    }
+
+    /**
+     * Write all recorded events now
+     */
+    public void flush() {
+        drain();
+    }
+
+    /**
+     * Stop the background thread, write any recorded events and close the sink
+     */
+    @Override
+    public void close() {
+        isClosed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drain();
+        try {
+            sink.close();
+        } catch (Exception e) {
+            sinkFailures.increment();
+        }
+    }
+
+    long nextChainId() {
+        return chainIdSequence.incrementAndGet();
+    }
+
+    void record(byte type, long chainId, int stage, long nanosValue, long otherNanosValue, Throwable e) {
+        if ( isClosed ) {
+            dropped.increment();
+            return;
+        }
+        long claimed;
+        do {
+            claimed = tail.get();
+            if ( (claimed - head) > mask ) {
+                dropped.increment();
+                return;
+            }
+        } while ( !tail.compareAndSet(claimed, claimed + 1) );
+
+        int index = (int)(claimed & mask);
+        types[index] = type;
+        epochMillis[index] = System.currentTimeMillis();
+        chainIds[index] = chainId;
+        stages[index] = stage;
+        nanos[index] = nanosValue;
+        otherNanos[index] = otherNanosValue;
+        threadNames[index] = Thread.currentThread().getName();  // now - pooled threads can be renamed before the slot is formatted
+        errors[index] = e;
+        published.lazySet(index, claimed);    // release - the consumer reads the slot only after seeing this
+    }
+
+    private void run() {
+        while ( !isClosed ) {
+            if ( !drain() ) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+        }
+    }
+
+    /**
+     * Single consumer - synchronized so that {@link #flush()} can be called from any thread.
+     * Producers never take this lock.
+     *
+     * @return true if the ring was more than half full (i.e. keep going without parking)
+     */
+    private synchronized boolean drain() {
+        StringBuilder line = new StringBuilder(128);
+        long localHead = head;
+        long start = localHead;
+        for(;;) {
+            int index = (int)(localHead & mask);
+            if ( published.get(index) != localHead ) {
+                break;  // empty or the producer hasn't finished writing the slot yet
+            }
+            line.setLength(0);
+            format(line, index);
+            threadNames[index] = null;
+            errors[index] = null;
+            head = ++localHead;
+            try {
+                sink.write(line.toString());
+            } catch (Exception e) {
+                sinkFailures.increment();
+            }
+        }
+        if ( localHead != start ) {
+            try {
+                sink.flush();
+            } catch (Exception e) {
+                sinkFailures.increment();
+            }
+        }
+        return (localHead - start) > (mask / 2);
+    }
+
+    private void format(StringBuilder line, int index) {
+        line.append(epochMillis[index])
+            .append(" chain (").append(chainIds[index])
+            .append(") stage (").append(stages[index])
+            .append(") thread (").append(threadNames[index])
+            .append(") ");
+        switch ( types[index] ) {
+            case typeStart:
+                line.append("Start - queued (").append(nanos[index]).append(") nanos");
+                break;
+
+            case typeSuccess:
+                line.append("Success - (").append(nanos[index]).append(") nanos");
+                break;
+
+            case typeFail: {
+                Throwable e = errors[index];
+                line.append("Failure - error: (type (").append(e.getClass().getSimpleName())
+                    .append(") - message (").append(e.getMessage()).append(")) - (")
+                    .append(nanos[index]).append(") nanos");
+                break;
+            }
+
+            case typeBlocking:
+                line.append("Blocking detected - (").append(nanos[index]).append(") nanos - cpu (").append(otherNanos[index]).append(") nanos");
+                break;
+
+            case typeTimedOut:
+                line.append("Timed out - (").append(nanos[index]).append(") nanos - default value (").append(otherNanos[index] != 0).append(")");
+                break;
+
+            case typeAborted:
+                line.append("Aborted");
+                break;
+
+            case typeSkipped:
+                line.append("Skipped");
+                break;
+
+            case typeCanceled:
+                line.append("Canceled - interrupt (").append(otherNanos[index] != 0).append(")");
+                break;
+        }
+    }
+}
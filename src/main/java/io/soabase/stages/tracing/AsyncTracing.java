@@ -0,0 +1,175 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.tracing;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A tracer that hands its events to an {@link AsyncTraceWriter}. The task's thread only records
+ * raw values (timestamps, durations, ids and exception references) into the writer's ring - formatting and
+ * I/O happen on the writer's background thread. Use a new instance for each chain (similar to
+ * {@link Cancelable}) - each instance gets a chain id and tasks are numbered in the order they start.
+ * Events that follow a task's start on the same thread (its end, blocking, abort) are tagged with that task's
+ * number. Events from other threads (e.g. timeouts) are tagged with the most recently started task.
+ * </p>
+ *
+ * <pre>
+ * AsyncTraceWriter writer = new AsyncTraceWriter(AsyncTraceWriter.Sink.logger(logger, Slf4JTracing.Level.INFO));
+ * ...
+ * StagedFuture.async(executor, writer.newTracing())
+ *     .thenIf(...)
+ * </pre>
+ */
+public class AsyncTracing implements Tracing {
+    private final AsyncTraceWriter writer;
+    private final Tracing next;
+    private final long chainId;
+    private final AtomicInteger stageIndex = new AtomicInteger(0);
+
+    // the task each thread last started - one holder per thread so that tagging events doesn't allocate
+    private static final ThreadLocal<CurrentStage> currentStage = ThreadLocal.withInitial(CurrentStage::new);
+
+    private static class CurrentStage {
+        private AsyncTraceWriter writer;    // chain ids are unique per writer - not the tracer so that the chain can be collected
+        private long chainId;
+        private int stage;
+    }
+
+    /**
+     * @param writer writer to record events to
+     */
+    public AsyncTracing(AsyncTraceWriter writer) {
+        this(writer, null);
+    }
+
+    /**
+     * @param writer writer to record events to
+     * @param next next tracer to call
+     */
+    public AsyncTracing(AsyncTraceWriter writer, Tracing next) {
+        this.writer = Objects.requireNonNull(writer, "writer cannot be null");
+        this.next = next;
+        chainId = writer.nextChainId();
+    }
+
+    /**
+     * @return the id used for this chain in the written events
+     */
+    public long getChainId() {
+        return chainId;
+    }
+
+    @Override
+    public void startProc() {
+        writer.record(AsyncTraceWriter.typeStart, chainId, started(), 0, 0, null);
+
+        if ( next != null ) {
+            next.startProc();
+        }
+    }
+
+    @Override
+    public void startProc(Duration queueWait) {
+        writer.record(AsyncTraceWriter.typeStart, chainId, started(), queueWait.toNanos(), 0, null);
+
+        if ( next != null ) {
+            next.startProc(queueWait);
+        }
+    }
+
+    @Override
+    public void endProcSuccess(Duration duration) {
+        writer.record(AsyncTraceWriter.typeSuccess, chainId, currentStage(), duration.toNanos(), 0, null);
+
+        if ( next != null ) {
+            next.endProcSuccess(duration);
+        }
+    }
+
+    @Override
+    public void endProcFail(Throwable e, Duration duration) {
+        writer.record(AsyncTraceWriter.typeFail, chainId, currentStage(), duration.toNanos(), 0, e);
+
+        if ( next != null ) {
+            next.endProcFail(e, duration);
+        }
+    }
+
+    @Override
+    public void blockingDetected(Duration duration, Duration cpuTime) {
+        writer.record(AsyncTraceWriter.typeBlocking, chainId, currentStage(), duration.toNanos(), cpuTime.toNanos(), null);
+
+        if ( next != null ) {
+            next.blockingDetected(duration, cpuTime);
+        }
+    }
+
+    @Override
+    public void timedOut(Duration timeout, boolean usedDefaultValue) {
+        writer.record(AsyncTraceWriter.typeTimedOut, chainId, currentStage(), timeout.toNanos(), usedDefaultValue ? 1 : 0, null);
+
+        if ( next != null ) {
+            next.timedOut(timeout, usedDefaultValue);
+        }
+    }
+
+    @Override
+    public void aborted() {
+        writer.record(AsyncTraceWriter.typeAborted, chainId, currentStage(), 0, 0, null);
+
+        if ( next != null ) {
+            next.aborted();
+        }
+    }
+
+    @Override
+    public void skipped() {
+        writer.record(AsyncTraceWriter.typeSkipped, chainId, currentStage(), 0, 0, null);
+
+        if ( next != null ) {
+            next.skipped();
+        }
+    }
+
+    @Override
+    public void canceled(boolean mayInterruptIfRunning) {
+        writer.record(AsyncTraceWriter.typeCanceled, chainId, currentStage(), 0, mayInterruptIfRunning ? 1 : 0, null);
+
+        if ( next != null ) {
+            next.canceled(mayInterruptIfRunning);
+        }
+    }
+
+    private int started() {
+        int stage = stageIndex.getAndIncrement();
+        CurrentStage current = currentStage.get();
+        current.writer = writer;
+        current.chainId = chainId;
+        current.stage = stage;
+        return stage;
+    }
+
+    private int currentStage() {
+        CurrentStage current = currentStage.get();
+        if ( (current.writer == writer) && (current.chainId == chainId) ) {
+            return current.stage;
+        }
+        return Math.max(stageIndex.get() - 1, 0);
+    }
+}
@@ -15,6 +15,8 @@
  */
 package io.soabase.stages.tracing;
 
+import io.soabase.stages.jfr.StageEvents;
+
 import java.time.Duration;
 import java.util.Collections;
 import java.util.Set;
@@ -59,22 +61,31 @@ public class Cancelable implements Tracing {
      */
     public void cancelChain(boolean mayInterruptIfRunning) {
         isCanceled = true;
+        StageEvents.canceled("chain", mayInterruptIfRunning);
 
         if ( mayInterruptIfRunning ) {
             active.forEach(Thread::interrupt);
         }
+        if ( next != null ) {
+            next.canceled(mayInterruptIfRunning);
+        }
     }
 
     @Override
     public void startProc() {
-        if (isCanceled) {
-            throw new CancellationException("Chain has been canceled");
+        start();
+
+        if ( next != null ) {
+            next.startProc();
         }
+    }
 
-        active.add(Thread.currentThread());
+    @Override
+    public void startProc(Duration queueWait) {
+        start();
 
         if ( next != null ) {
-            next.startProc();
+            next.startProc(queueWait);
         }
     }
 
@@ -96,10 +107,53 @@ public class Cancelable implements Tracing {
         }
     }
 
+    @Override
+    public void blockingDetected(Duration duration, Duration cpuTime) {
+        if ( next != null ) {
+            next.blockingDetected(duration, cpuTime);
+        }
+    }
+
+    @Override
+    public void timedOut(Duration timeout, boolean usedDefaultValue) {
+        if ( next != null ) {
+            next.timedOut(timeout, usedDefaultValue);
+        }
+    }
+
+    @Override
+    public void aborted() {
+        if ( next != null ) {
+            next.aborted();
+        }
+    }
+
+    @Override
+    public void skipped() {
+        if ( next != null ) {
+            next.skipped();
+        }
+    }
+
+    @Override
+    public void canceled(boolean mayInterruptIfRunning) {
+        if ( next != null ) {
+            next.canceled(mayInterruptIfRunning);
+        }
+    }
+
     protected void handleInterrupted() {
         isCanceled = true;
     }
 
+    private void start() {
+        if (isCanceled) {
+            throw new CancellationException("Chain has been canceled");
+        }
+
+        active.add(Thread.currentThread());
+    }
+
     private void end() {
         Thread currentThread = Thread.currentThread();
         active.remove(currentThread);
@@ -32,6 +32,11 @@ public class ConsoleTracing implements Tracing {
         System.out.println(Tracing.formatStart(contextProc));
     }
 
+    @Override
+    public void startProc(Duration queueWait) {
+        System.out.println(Tracing.formatStart(contextProc, queueWait));
+    }
+
     @Override
     public void endProcSuccess(Duration duration) {
         System.out.println(Tracing.formatSuccess(contextProc, duration));
@@ -41,4 +46,29 @@ public class ConsoleTracing implements Tracing {
     public void endProcFail(Throwable e, Duration duration) {
         System.out.println(Tracing.formatFail(contextProc, e, duration));
     }
+
+    @Override
+    public void blockingDetected(Duration duration, Duration cpuTime) {
+        System.out.println(Tracing.formatBlocking(contextProc, duration, cpuTime));
+    }
+
+    @Override
+    public void timedOut(Duration timeout, boolean usedDefaultValue) {
+        System.out.println(Tracing.formatTimedOut(contextProc, timeout, usedDefaultValue));
+    }
+
+    @Override
+    public void aborted() {
+        System.out.println(Tracing.formatAborted(contextProc));
+    }
+
+    @Override
+    public void skipped() {
+        System.out.println(Tracing.formatSkipped(contextProc));
+    }
+
+    @Override
+    public void canceled(boolean mayInterruptIfRunning) {
+        System.out.println(Tracing.formatCanceled(contextProc, mayInterruptIfRunning));
+    }
 }
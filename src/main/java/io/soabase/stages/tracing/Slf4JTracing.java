@@ -84,6 +84,13 @@ public class Slf4JTracing implements Tracing {
         }
     }
 
+    @Override
+    public void startProc(Duration queueWait) {
+        if ( level.enabled(logger) ) {
+            level.log(logger, Tracing.formatStart(contextProc, queueWait));
+        }
+    }
+
     @Override
     public void endProcSuccess(Duration duration) {
         if ( level.enabled(logger) ) {
@@ -97,4 +104,40 @@ public class Slf4JTracing implements Tracing {
             level.log(logger, Tracing.formatFail(contextProc, e, duration));
         }
     }
+
+    @Override
+    public void blockingDetected(Duration duration, Duration cpuTime) {
+        // always a problem - logged as a warning regardless of the tracing level
+        if ( logger.isWarnEnabled() ) {
+            logger.warn(Tracing.formatBlocking(contextProc, duration, cpuTime));
+        }
+    }
+
+    @Override
+    public void timedOut(Duration timeout, boolean usedDefaultValue) {
+        if ( level.enabled(logger) ) {
+            level.log(logger, Tracing.formatTimedOut(contextProc, timeout, usedDefaultValue));
+        }
+    }
+
+    @Override
+    public void aborted() {
+        if ( level.enabled(logger) ) {
+            level.log(logger, Tracing.formatAborted(contextProc));
+        }
+    }
+
+    @Override
+    public void skipped() {
+        if ( level.enabled(logger) ) {
+            level.log(logger, Tracing.formatSkipped(contextProc));
+        }
+    }
+
+    @Override
+    public void canceled(boolean mayInterruptIfRunning) {
+        if ( level.enabled(logger) ) {
+            level.log(logger, Tracing.formatCanceled(contextProc, mayInterruptIfRunning));
+        }
+    }
 }
@@ -0,0 +1,262 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.tracing;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>
+ * A tracer that only forwards to the next tracer for chains that turn out to be interesting. Use a
+ * new instance for each chain (similar to {@link Cancelable}). Tracing events are buffered cheaply
+ * in a small preallocated ring. The buffered events (and all events after them) are forwarded to
+ * the next tracer when any of the following occurs:
+ * </p>
+ *
+ * <ul>
+ *     <li>A task fails, a stage times out, the chain aborts or the chain is canceled</li>
+ *     <li>The chain is slow: a task's queue wait or execution time, or the time since the chain started, reaches <code>slowThreshold</code></li>
+ *     <li>{@link #emit()} is called - e.g. from a <code>whenSucceeded()</code> completer that finds the result suspicious</li>
+ *     <li>The chain was selected by the random head sample</li>
+ * </ul>
+ *
+ * <p>
+ * Otherwise nothing reaches the next tracer. Note: buffered events are forwarded from the thread that
+ * triggers the emit. If the ring fills, the oldest events are overwritten. To combine with {@link Cancelable},
+ * wrap this tracer in the Cancelable (not the other way around) so that cancellation is never deferred.
+ * </p>
+ *
+ * <pre>
+ * StagedFuture.async(executor, new TailSamplingTracing(Tracing.info(logger), Duration.ofSeconds(1)))
+ *     .thenIf(...)
+ * </pre>
+ */
+public class TailSamplingTracing implements Tracing {
+    private final Tracing next;
+    private final long slowNanos;
+    private final long chainStartNanos = System.nanoTime();
+    private final byte[] types;
+    private final long[] nanos;
+    private final Throwable[] errors;
+    private int head = 0;
+    private int size = 0;
+    private int overwritten = 0;
+    private volatile boolean isEmitting;
+    private boolean isFlushing = false;   // guarded by this
+
+    private static final byte typeStart = 0;
+    private static final byte typeStartQueued = 1;
+    private static final byte typeSuccess = 2;
+    private static final byte typeFail = 3;
+    private static final byte typeSkipped = 4;
+
+    /**
+     * Buffers up to 64 events and does no head sampling
+     *
+     * @param next tracer to forward to
+     * @param slowThreshold chains/tasks at least this slow are forwarded
+     */
+    public TailSamplingTracing(Tracing next, Duration slowThreshold) {
+        this(next, slowThreshold, 0.0, 64);
+    }
+
+    /**
+     * @param next tracer to forward to
+     * @param slowThreshold chains/tasks at least this slow are forwarded
+     * @param headSampleRate fraction (0.0 - 1.0) of chains to forward regardless
+     * @param capacity max events to buffer
+     */
+    public TailSamplingTracing(Tracing next, Duration slowThreshold, double headSampleRate, int capacity) {
+        this.next = Objects.requireNonNull(next, "next cannot be null");
+        slowNanos = Objects.requireNonNull(slowThreshold, "slowThreshold cannot be null").toNanos();
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        }
+        types = new byte[capacity];
+        nanos = new long[capacity];
+        errors = new Throwable[capacity];
+        isEmitting = (headSampleRate > 0) && (ThreadLocalRandom.current().nextDouble() < headSampleRate);
+    }
+
+    /**
+     * Forward the buffered events to the next tracer and forward all subsequent events directly
+     */
+    public void emit() {
+        if ( !isEmitting ) {
+            flush();
+        }
+    }
+
+    /**
+     * @return true if this chain's events are being forwarded
+     */
+    public boolean isEmitting() {
+        return isEmitting;
+    }
+
+    /**
+     * @return number of buffered events that were overwritten because the ring was full
+     */
+    public synchronized int getOverwrittenCount() {
+        return overwritten;
+    }
+
+    @Override
+    public void startProc() {
+        if ( !buffer(typeStart, 0, null) ) {
+            next.startProc();
+        }
+    }
+
+    @Override
+    public void startProc(Duration queueWait) {
+        long queueWaitNanos = queueWait.toNanos();
+        if ( !buffer(typeStartQueued, queueWaitNanos, null) ) {
+            next.startProc(queueWait);
+        } else if ( queueWaitNanos >= slowNanos ) {
+            flush();
+        }
+    }
+
+    @Override
+    public void endProcSuccess(Duration duration) {
+        long durationNanos = duration.toNanos();
+        if ( !buffer(typeSuccess, durationNanos, null) ) {
+            next.endProcSuccess(duration);
+        } else if ( (durationNanos >= slowNanos) || ((System.nanoTime() - chainStartNanos) >= slowNanos) ) {
+            flush();
+        }
+    }
+
+    @Override
+    public void endProcFail(Throwable e, Duration duration) {
+        if ( !buffer(typeFail, duration.toNanos(), e) ) {
+            next.endProcFail(e, duration);
+        } else {
+            flush();
+        }
+    }
+
+    @Override
+    public void blockingDetected(Duration duration, Duration cpuTime) {
+        // always worth seeing - emit the chain so far and then forward
+        flush();
+        next.blockingDetected(duration, cpuTime);
+    }
+
+    @Override
+    public void timedOut(Duration timeout, boolean usedDefaultValue) {
+        // always worth seeing - emit the chain so far and then forward
+        flush();
+        next.timedOut(timeout, usedDefaultValue);
+    }
+
+    @Override
+    public void aborted() {
+        // always worth seeing - emit the chain so far and then forward
+        flush();
+        next.aborted();
+    }
+
+    @Override
+    public void skipped() {
+        if ( !buffer(typeSkipped, 0, null) ) {
+            next.skipped();
+        }
+    }
+
+    @Override
+    public void canceled(boolean mayInterruptIfRunning) {
+        // always worth seeing - emit the chain so far and then forward
+        flush();
+        next.canceled(mayInterruptIfRunning);
+    }
+
+    /**
+     * @return true if buffered, false if emitting (the event should be forwarded directly)
+     */
+    private boolean buffer(byte type, long value, Throwable e) {
+        return !isEmitting && record(type, value, e);
+    }
+
+    private synchronized boolean record(byte type, long value, Throwable e) {
+        if ( isEmitting ) {
+            return false;   // an emit happened (or finished replaying while this thread waited for the lock)
+        }
+        int index = (head + size) % types.length;
+        if ( size == types.length ) {
+            head = (head + 1) % types.length;   // full - overwrite the oldest
+            ++overwritten;
+        } else {
+            ++size;
+        }
+        types[index] = type;
+        nanos[index] = value;
+        errors[index] = e;
+        return true;
+    }
+
+    /**
+     * Replays the buffer under the lock and only then switches to forwarding directly. Events from other
+     * threads that arrive during the replay wait in {@link #record(byte, long, Throwable)} and are forwarded
+     * after it - i.e. the next tracer always sees the events in order.
+     */
+    private synchronized void flush() {
+        if ( isEmitting || isFlushing ) {
+            return;
+        }
+        isFlushing = true;
+        try {
+            while ( size > 0 ) {
+                // consume from the head so that events recorded during the replay (by the next tracer calling back on this thread) are replayed too
+                int index = head;
+                head = (head + 1) % types.length;
+                --size;
+                Throwable e = errors[index];
+                errors[index] = null;
+                replay(types[index], nanos[index], e);
+            }
+        } finally {
+            isFlushing = false;
+            isEmitting = true;
+        }
+    }
+
+    private void replay(byte type, long value, Throwable e) {
+        switch ( type ) {
+            case typeStart:
+                next.startProc();
+                break;
+
+            case typeStartQueued:
+                next.startProc(Duration.ofNanos(value));
+                break;
+
+            case typeSuccess:
+                next.endProcSuccess(Duration.ofNanos(value));
+                break;
+
+            case typeFail:
+                next.endProcFail(e, Duration.ofNanos(value));
+                break;
+
+            case typeSkipped:
+                next.skipped();
+                break;
+        }
+    }
+}
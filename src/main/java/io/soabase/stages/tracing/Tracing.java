@@ -114,6 +114,18 @@ public interface Tracing {
      */
     void startProc();
 
+    /**
+     * Called just before the task is executed with the time the task waited in the executor's
+     * queue (i.e. from when it was submitted until it started). The duration passed to
+     * {@link #endProcSuccess(Duration)}/{@link #endProcFail(Throwable, Duration)} is the
+     * task's execution time only. The default implementation calls {@link #startProc()}.
+     *
+     * @param queueWait time from submission to start
+     */
+    default void startProc(Duration queueWait) {
+        startProc();
+    }
+
     /**
      * Called when the task completes successfully
      *
@@ -129,6 +141,58 @@ public interface Tracing {
      */
     void endProcFail(Throwable e, Duration duration);
 
+    /**
+     * Called after a task that was not marked as blocking (see {@link io.soabase.stages.StagedFuture#thenIfBlocking(java.util.function.Function)})
+     * spent most of its execution time off-CPU - i.e. it probably blocked (I/O, locks, sleeps) in
+     * a thread that may belong to a shared pool. Called after {@link #endProcSuccess(Duration)}/{@link #endProcFail(Throwable, Duration)}
+     * in the task's thread. The default implementation does nothing.
+     *
+     * @param duration elapsed time of the task
+     * @param cpuTime CPU time the task used
+     */
+    default void blockingDetected(Duration duration, Duration cpuTime) {
+        // NOP
+    }
+
+    /**
+     * Called when a timeout set via {@link io.soabase.stages.StagedFutureTimeout} (or a compact chain stage's
+     * timeout) elapses before the stage completes. May be called from the timer thread - implementations must
+     * not block. The default implementation does nothing.
+     *
+     * @param timeout the timeout that elapsed
+     * @param usedDefaultValue true if the stage completes with its default value, false if it fails with a {@link java.util.concurrent.TimeoutException}
+     */
+    default void timedOut(Duration timeout, boolean usedDefaultValue) {
+        // NOP
+    }
+
+    /**
+     * Called when a task returns an empty Optional (or a rate limited stage gives up) - i.e. the chain
+     * aborts. For tasks, called after {@link #endProcSuccess(Duration)} in the task's thread. The default
+     * implementation does nothing.
+     */
+    default void aborted() {
+        // NOP
+    }
+
+    /**
+     * Called for each task that is not run because the chain had already aborted. The default
+     * implementation does nothing.
+     */
+    default void skipped() {
+        // NOP
+    }
+
+    /**
+     * Called when the chain is canceled (e.g. via {@link Cancelable#cancelChain(boolean)}). The default
+     * implementation does nothing.
+     *
+     * @param mayInterruptIfRunning true if running tasks are interrupted
+     */
+    default void canceled(boolean mayInterruptIfRunning) {
+        // NOP
+    }
+
     /**
      * Return execution context information including the current thread and a stack trace
      *
@@ -174,6 +238,17 @@ public interface Tracing {
         return String.format("Start (%s)", contextProc.get());
     }
 
+    /**
+     * Format the log message for task start using the given supplier of context and queue wait time
+     *
+     * @param contextProc context supplier
+     * @param queueWait time the task waited in the executor's queue
+     * @return log message
+     */
+    static String formatStart(Supplier<List<String>> contextProc, Duration queueWait) {
+        return String.format("Start (%s) - queued (%d) nanos", contextProc.get(), queueWait.toNanos());
+    }
+
     /**
      * Format the log message for task success using the given supplier of context and duration
      *
@@ -185,6 +260,61 @@ public interface Tracing {
         return String.format("Success (%s) - (%d) nanos", contextProc.get(), duration.toNanos());
     }
 
+    /**
+     * Format the log message for a blocking task using the given supplier of context
+     *
+     * @param contextProc context supplier
+     * @param duration elapsed time of the task
+     * @param cpuTime CPU time of the task
+     * @return log message
+     */
+    static String formatBlocking(Supplier<List<String>> contextProc, Duration duration, Duration cpuTime) {
+        return String.format("Blocking detected (%s) - (%d) nanos - cpu (%d) nanos", contextProc.get(), duration.toNanos(), cpuTime.toNanos());
+    }
+
+    /**
+     * Format the log message for a timeout using the given supplier of context
+     *
+     * @param contextProc context supplier
+     * @param timeout the timeout that elapsed
+     * @param usedDefaultValue true if a default value is used
+     * @return log message
+     */
+    static String formatTimedOut(Supplier<List<String>> contextProc, Duration timeout, boolean usedDefaultValue) {
+        return String.format("Timed out (%s) - (%d) nanos - default value (%s)", contextProc.get(), timeout.toNanos(), usedDefaultValue);
+    }
+
+    /**
+     * Format the log message for an aborted chain using the given supplier of context
+     *
+     * @param contextProc context supplier
+     * @return log message
+     */
+    static String formatAborted(Supplier<List<String>> contextProc) {
+        return String.format("Aborted (%s)", contextProc.get());
+    }
+
+    /**
+     * Format the log message for a skipped task using the given supplier of context
+     *
+     * @param contextProc context supplier
+     * @return log message
+     */
+    static String formatSkipped(Supplier<List<String>> contextProc) {
+        return String.format("Skipped (%s)", contextProc.get());
+    }
+
+    /**
+     * Format the log message for a canceled chain using the given supplier of context
+     *
+     * @param contextProc context supplier
+     * @param mayInterruptIfRunning true if running tasks are interrupted
+     * @return log message
+     */
+    static String formatCanceled(Supplier<List<String>> contextProc, boolean mayInterruptIfRunning) {
+        return String.format("Canceled (%s) - interrupt (%s)", contextProc.get(), mayInterruptIfRunning);
+    }
+
     /**
      * Format the log message for task failure using the given supplier of context and duration
      *
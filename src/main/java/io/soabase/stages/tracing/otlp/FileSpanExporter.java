@@ -0,0 +1,66 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.tracing.otlp;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Appends each batch of spans to a file as one line of OTLP-JSON (an <code>ExportTraceServiceRequest</code>
+ * per line). This is the format read by the OpenTelemetry collector's <code>otlpjsonfile</code> receiver.
+ */
+public class FileSpanExporter implements SpanExporter, Closeable {
+    private final BufferedWriter writer;
+    private final String serviceName;
+
+    /**
+     * @param path file to append to
+     * @throws IOException errors opening the file
+     */
+    public FileSpanExporter(Path path) throws IOException {
+        this(path, OtlpJson.defaultServiceName);
+    }
+
+    /**
+     * @param path file to append to
+     * @param serviceName value for the <code>service.name</code> resource attribute
+     * @throws IOException errors opening the file
+     */
+    public FileSpanExporter(Path path, String serviceName) throws IOException {
+        Objects.requireNonNull(path, "path cannot be null");
+        this.serviceName = Objects.requireNonNull(serviceName, "serviceName cannot be null");
+        writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public synchronized void export(List<Span> spans) throws IOException {
+        writer.write(OtlpJson.toJson(spans, serviceName));
+        writer.newLine();
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
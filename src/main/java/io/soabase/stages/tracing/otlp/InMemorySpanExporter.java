@@ -0,0 +1,53 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.tracing.otlp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps exported spans in memory - useful for tests
+ */
+public class InMemorySpanExporter implements SpanExporter {
+    private final List<Span> spans = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void export(List<Span> spans) {
+        this.spans.addAll(spans);
+    }
+
+    /**
+     * @return the spans exported so far
+     */
+    public List<Span> getSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    /**
+     * @return the spans exported so far as an OTLP-JSON <code>ExportTraceServiceRequest</code>
+     */
+    public String toOtlpJson() {
+        return OtlpJson.toJson(spans, OtlpJson.defaultServiceName);
+    }
+
+    /**
+     * Clear the exported spans
+     */
+    public void reset() {
+        spans.clear();
+    }
+}
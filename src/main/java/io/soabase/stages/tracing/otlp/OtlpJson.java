@@ -0,0 +1,122 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.tracing.otlp;
+
+import java.util.Collection;
+
+/**
+ * Writes spans as an OTLP-JSON <code>ExportTraceServiceRequest</code>
+ * (see https://opentelemetry.io/docs/specs/otlp/#json-protobuf-encoding)
+ */
+class OtlpJson {
+    static final String defaultServiceName = "soabase-stages";
+
+    private static final int spanKindInternal = 1;
+    private static final int statusCodeOk = 1;
+    private static final int statusCodeError = 2;
+
+    static String toJson(Collection<Span> spans, String serviceName) {
+        StringBuilder json = new StringBuilder(256 * (spans.size() + 1));
+        json.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+        attribute(json, "service.name", serviceName);
+        json.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"io.soabase.stages\"},\"spans\":[");
+        boolean first = true;
+        for ( Span span : spans ) {
+            if ( !first ) {
+                json.append(',');
+            }
+            first = false;
+            span(json, span);
+        }
+        json.append("]}]}]}");
+        return json.toString();
+    }
+
+    private static void span(StringBuilder json, Span span) {
+        json.append("{\"traceId\":\"").append(span.getTraceId())
+            .append("\",\"spanId\":\"").append(span.getSpanId()).append('"');
+        if ( span.getParentSpanId() != null ) {
+            json.append(",\"parentSpanId\":\"").append(span.getParentSpanId()).append('"');
+        }
+        json.append(",\"name\":");
+        string(json, span.getName());
+        json.append(",\"kind\":").append(spanKindInternal)
+            .append(",\"startTimeUnixNano\":\"").append(span.getStartEpochNanos())
+            .append("\",\"endTimeUnixNano\":\"").append(span.getEndEpochNanos())
+            .append("\",\"attributes\":[");
+        attribute(json, "thread.name", span.getThreadName());
+        Throwable error = span.getError();
+        if ( error != null ) {
+            json.append(',');
+            attribute(json, "exception.type", error.getClass().getName());
+            if ( error.getMessage() != null ) {
+                json.append(',');
+                attribute(json, "exception.message", error.getMessage());
+            }
+            json.append("],\"status\":{\"code\":").append(statusCodeError).append("}}");
+        } else {
+            json.append("],\"status\":{\"code\":").append(statusCodeOk).append("}}");
+        }
+    }
+
+    private static void attribute(StringBuilder json, String key, String value) {
+        json.append("{\"key\":");
+        string(json, key);
+        json.append(",\"value\":{\"stringValue\":");
+        string(json, value);
+        json.append("}}");
+    }
+
+    private static void string(StringBuilder json, String value) {
+        json.append('"');
+        for ( int i = 0; i < value.length(); ++i ) {
+            char c = value.charAt(i);
+            switch ( c ) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+
+                case '\\':
+                    json.append("\\\\");
+                    break;
+
+                case '\n':
+                    json.append("\\n");
+                    break;
+
+                case '\r':
+                    json.append("\\r");
+                    break;
+
+                case '\t':
+                    json.append("\\t");
+                    break;
+
+                default:
+                    if ( c < 0x20 ) {
+                        json.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        json.append(c);
+                    }
+                    break;
+            }
+        }
+        json.append('"');
+    }
+
+    private OtlpJson() {
+    }
+}
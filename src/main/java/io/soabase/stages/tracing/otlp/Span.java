@@ -0,0 +1,99 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.tracing.otlp;
+
+/**
+ * A completed span - i.e. one task of a StagedFuture chain
+ */
+public class Span {
+    private final String traceId;
+    private final String spanId;
+    private final String parentSpanId;
+    private final String name;
+    private final String threadName;
+    private final long startEpochNanos;
+    private final long endEpochNanos;
+    private final Throwable error;
+
+    public Span(String traceId, String spanId, String parentSpanId, String name, String threadName, long startEpochNanos, long endEpochNanos, Throwable error) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.name = name;
+        this.threadName = threadName;
+        this.startEpochNanos = startEpochNanos;
+        this.endEpochNanos = endEpochNanos;
+        this.error = error;
+    }
+
+    /**
+     * @return trace id (32 hex characters) shared by all spans of a chain
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * @return span id (16 hex characters)
+     */
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * @return the id of the parent span or <code>null</code> if this is a root span
+     */
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public long getStartEpochNanos() {
+        return startEpochNanos;
+    }
+
+    public long getEndEpochNanos() {
+        return endEpochNanos;
+    }
+
+    /**
+     * @return the exception if the task failed or <code>null</code>
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "Span{" +
+            "traceId='" + traceId + '\'' +
+            ", spanId='" + spanId + '\'' +
+            ", parentSpanId='" + parentSpanId + '\'' +
+            ", name='" + name + '\'' +
+            ", threadName='" + threadName + '\'' +
+            ", startEpochNanos=" + startEpochNanos +
+            ", endEpochNanos=" + endEpochNanos +
+            ", error=" + error +
+            '}';
+    }
+}
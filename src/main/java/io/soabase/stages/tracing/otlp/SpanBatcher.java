@@ -0,0 +1,187 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.tracing.otlp;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * Buffers completed spans and hands them to a {@link SpanExporter} in batches from a background thread.
+ * </p>
+ *
+ * <p>
+ * Adding a span is lock-free: producers claim a slot in a preallocated ring with a single CAS. If the
+ * ring is full the span is dropped (and counted) rather than blocking the task that produced it.
+ * </p>
+ */
+public class SpanBatcher implements Closeable {
+    private final SpanExporter exporter;
+    private final AtomicReferenceArray<Span> ring;
+    private final int mask;
+    private final int maxBatchSize;
+    private final long flushIntervalNanos;
+    private final AtomicLong tail = new AtomicLong(0);
+    private volatile long head = 0;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder exportFailures = new LongAdder();
+    private final Thread thread;
+    private volatile boolean isClosed = false;
+
+    /**
+     * Uses a capacity of 8192 spans, batches of up to 512 spans and a flush interval of 1 second
+     *
+     * @param exporter where to send batches
+     */
+    public SpanBatcher(SpanExporter exporter) {
+        this(exporter, 8192, 512, Duration.ofSeconds(1));
+    }
+
+    /**
+     * @param exporter where to send batches
+     * @param capacity max spans waiting to be exported (rounded up to a power of 2)
+     * @param maxBatchSize max spans per batch
+     * @param flushInterval max time a span waits before being exported
+     */
+    public SpanBatcher(SpanExporter exporter, int capacity, int maxBatchSize, Duration flushInterval) {
+        this.exporter = Objects.requireNonNull(exporter, "exporter cannot be null");
+        if ( (capacity < 1) || (maxBatchSize < 1) ) {
+            throw new IllegalArgumentException("capacity and maxBatchSize must be greater than 0");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if ( size < capacity ) {
+            size <<= 1;
+        }
+        ring = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        this.maxBatchSize = maxBatchSize;
+        flushIntervalNanos = flushInterval.toNanos();
+
+        thread = new Thread(this::run, "SpanBatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Add a completed span. Never blocks.
+     *
+     * @param span span
+     * @return true if added, false if the buffer is full and the span was dropped
+     */
+    public boolean add(Span span) {
+        long claimed;
+        do {
+            claimed = tail.get();
+            if ( (claimed - head) > mask ) {
+                dropped.increment();
+                return false;
+            }
+        } while ( !tail.compareAndSet(claimed, claimed + 1) );
+        ring.set((int)(claimed & mask), span);
+
+        if ( (claimed - head) >= maxBatchSize ) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    /**
+     * Export all buffered spans now
+     */
+    public void flush() {
+        while ( drain() ) {
+            // keep going
+        }
+    }
+
+    /**
+     * @return number of spans dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return number of batches that failed to export
+     */
+    public long getExportFailureCount() {
+        return exportFailures.sum();
+    }
+
+    /**
+     * Stop the background thread and export any buffered spans
+     */
+    @Override
+    public void close() {
+        isClosed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void run() {
+        while ( !isClosed ) {
+            if ( !drain() ) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+        }
+    }
+
+    /**
+     * Single consumer - synchronized so that {@link #flush()} can be called from any thread.
+     * Producers never take this lock.
+     *
+     * @return true if a full batch was exported (i.e. there may be more)
+     */
+    private synchronized boolean drain() {
+        List<Span> batch = null;
+        long localHead = head;
+        while ( (batch == null) || (batch.size() < maxBatchSize) ) {
+            int index = (int)(localHead & mask);
+            Span span = ring.get(index);
+            if ( span == null ) {
+                break;  // empty or the producer hasn't finished writing the slot yet
+            }
+            ring.lazySet(index, null);
+            head = ++localHead;
+            if ( batch == null ) {
+                batch = new ArrayList<>(maxBatchSize);
+            }
+            batch.add(span);
+        }
+
+        if ( batch == null ) {
+            return false;
+        }
+        try {
+            exporter.export(batch);
+        } catch (Exception e) {
+            exportFailures.increment();
+        }
+        return batch.size() == maxBatchSize;
+    }
+}
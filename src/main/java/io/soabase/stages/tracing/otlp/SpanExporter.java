@@ -0,0 +1,32 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.tracing.otlp;
+
+import java.util.List;
+
+/**
+ * Destination for batches of completed spans. Called from the {@link SpanBatcher}'s background thread.
+ */
+@FunctionalInterface
+public interface SpanExporter {
+    /**
+     * Export a batch of spans
+     *
+     * @param spans the spans
+     * @throws Exception errors are counted by the batcher (see {@link SpanBatcher#getExportFailureCount()}) and the batch is dropped
+     */
+    void export(List<Span> spans) throws Exception;
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.tracing.otlp;
+
+import io.soabase.stages.tracing.Tracing;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A tracer that records each task of a chain as a span. Use a new instance for each chain (similar to
+ * {@link io.soabase.stages.tracing.Cancelable}). All tasks of the chain share one trace id and each task
+ * gets its own span id whose parent is the span of the previous task. i.e. the chain is one connected
+ * trace across all of the executor threads it runs on.
+ * </p>
+ *
+ * <p>
+ * While a task runs, its span is the current span for the thread. A chain started from within a task
+ * joins the current trace as a child of the current span.
+ * </p>
+ *
+ * <pre>
+ * SpanBatcher batcher = new SpanBatcher(new FileSpanExporter(path));
+ * ...
+ * StagedFuture.async(executor, new SpanTracing(batcher, "lookup"))
+ *     .thenIf(...)
+ * </pre>
+ */
+public class SpanTracing implements Tracing {
+    private final SpanBatcher batcher;
+    private final Tracing next;
+    private final String name;
+    private final String traceId;
+    private final AtomicInteger stageIndex = new AtomicInteger(0);
+    private volatile String lastSpanId;
+
+    private static final ThreadLocal<ActiveSpan> current = new ThreadLocal<>();
+
+    private static class ActiveSpan {
+        private final String traceId;
+        private final String spanId;
+        private final String parentSpanId;
+        private final String name;
+        private final long startEpochNanos;
+        private final ActiveSpan previous;
+
+        ActiveSpan(String traceId, String spanId, String parentSpanId, String name, long startEpochNanos, ActiveSpan previous) {
+            this.traceId = traceId;
+            this.spanId = spanId;
+            this.parentSpanId = parentSpanId;
+            this.name = name;
+            this.startEpochNanos = startEpochNanos;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * @param batcher where completed spans are sent
+     * @param name name of the chain - spans are named <code>name-N</code> where <code>N</code> is the task index
+     */
+    public SpanTracing(SpanBatcher batcher, String name) {
+        this(batcher, name, null);
+    }
+
+    /**
+     * @param batcher where completed spans are sent
+     * @param name name of the chain - spans are named <code>name-N</code> where <code>N</code> is the task index
+     * @param next next tracer to call
+     */
+    public SpanTracing(SpanBatcher batcher, String name, Tracing next) {
+        this.batcher = Objects.requireNonNull(batcher, "batcher cannot be null");
+        this.name = Objects.requireNonNull(name, "name cannot be null");
+        this.next = next;
+
+        ActiveSpan parent = current.get();
+        if ( parent != null ) {
+            traceId = parent.traceId;
+            lastSpanId = parent.spanId;
+        } else {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            traceId = toHex(random.nextLong()) + toHex(random.nextLong());
+            lastSpanId = null;
+        }
+    }
+
+    /**
+     * @return the trace id of the task running in the current thread or <code>null</code>
+     */
+    public static String currentTraceId() {
+        ActiveSpan span = current.get();
+        return (span != null) ? span.traceId : null;
+    }
+
+    /**
+     * @return the span id of the task running in the current thread or <code>null</code>
+     */
+    public static String currentSpanId() {
+        ActiveSpan span = current.get();
+        return (span != null) ? span.spanId : null;
+    }
+
+    /**
+     * @return this chain's trace id
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    @Override
+    public void startProc() {
+        if ( next != null ) {
+            next.startProc();
+        }
+        start();
+    }
+
+    @Override
+    public void startProc(Duration queueWait) {
+        if ( next != null ) {
+            next.startProc(queueWait);
+        }
+        start();
+    }
+
+    private void start() {
+        String spanId = toHex(ThreadLocalRandom.current().nextLong());
+        String spanName = name + "-" + stageIndex.getAndIncrement();
+        current.set(new ActiveSpan(traceId, spanId, lastSpanId, spanName, epochNanos(), current.get()));
+    }
+
+    @Override
+    public void endProcSuccess(Duration duration) {
+        end(null, duration);
+
+        if ( next != null ) {
+            next.endProcSuccess(duration);
+        }
+    }
+
+    @Override
+    public void endProcFail(Throwable e, Duration duration) {
+        end(e, duration);
+
+        if ( next != null ) {
+            next.endProcFail(e, duration);
+        }
+    }
+
+    @Override
+    public void blockingDetected(Duration duration, Duration cpuTime) {
+        if ( next != null ) {
+            next.blockingDetected(duration, cpuTime);
+        }
+    }
+
+    @Override
+    public void timedOut(Duration timeout, boolean usedDefaultValue) {
+        if ( next != null ) {
+            next.timedOut(timeout, usedDefaultValue);
+        }
+    }
+
+    @Override
+    public void aborted() {
+        if ( next != null ) {
+            next.aborted();
+        }
+    }
+
+    @Override
+    public void skipped() {
+        if ( next != null ) {
+            next.skipped();
+        }
+    }
+
+    @Override
+    public void canceled(boolean mayInterruptIfRunning) {
+        if ( next != null ) {
+            next.canceled(mayInterruptIfRunning);
+        }
+    }
+
+    private void end(Throwable e, Duration duration) {
+        ActiveSpan span = current.get();
+        if ( span == null ) {
+            return;
+        }
+        if ( span.previous != null ) {
+            current.set(span.previous);
+        } else {
+            current.remove();
+        }
+
+        lastSpanId = span.spanId;
+        long endEpochNanos = span.startEpochNanos + duration.toNanos();
+        batcher.add(new Span(span.traceId, span.spanId, span.parentSpanId, span.name, Thread.currentThread().getName(), span.startEpochNanos, endEpochNanos, e));
+    }
+
+    private static long epochNanos() {
+        Instant now = Instant.now();
+        return (now.getEpochSecond() * 1_000_000_000L) + now.getNano();
+    }
+
+    private static String toHex(long value) {
+        String hex = Long.toHexString(value);
+        return (hex.length() < 16) ? ("0000000000000000".substring(hex.length()) + hex) : hex;
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages;
+
+import io.soabase.stages.time.VirtualScheduler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestCompactChain {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testBasic() throws Exception {
+        List<String> events = new CopyOnWriteArrayList<>();
+        CompactChain<Integer, String> chain = CompactChain.<Integer>builder()
+            .thenIf(i -> Optional.of(i * 2))
+            .thenStageIf(i -> CompletableFuture.supplyAsync(() -> Optional.of("#" + i), executor))
+            .thenIf(s -> (s.length() > 2) ? Optional.<String>empty() : Optional.of(s))
+            .whenSucceeded(s -> events.add("succeeded " + s))
+            .whenAborted(() -> events.add("aborted"))
+            .whenFailed(e -> events.add("failed " + e.getMessage()))
+            .build();
+
+        assertThat(get(chain.start(2, executor))).contains("#4");
+        assertThat(get(chain.start(50, executor))).isEmpty();
+        assertThat(events).containsExactly("succeeded #4", "aborted");
+
+        CompactChain<String, Long> failing = CompactChain.<String>builder()
+            .thenIf(s -> Optional.of(Long.parseLong(s)))
+            .whenFailed(e -> events.add("failed " + e.getClass().getSimpleName()))
+            .build();
+        CompactRun<Long> run = failing.start("not a number", executor);
+        try {
+            get(run);
+            Assert.fail("should have failed");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(NumberFormatException.class);
+        }
+        assertThat(run.isDone()).isTrue();
+        assertThat(events).contains("failed NumberFormatException");
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        CompletableFuture<Optional<String>> never = new CompletableFuture<>();
+        CompactChain<String, String> withDefault = CompactChain.<String>builder()
+            .withScheduler(scheduler)
+            .thenStageIf(s -> never)
+            .withTimeout(Duration.ofMinutes(1), () -> "default")
+            .thenIf(s -> Optional.of(s + "!"))
+            .build();
+        CompactRun<String> run = withDefault.start("x", Runnable::run);
+        scheduler.advance(Duration.ofSeconds(59));
+        assertThat(run.isDone()).isFalse();
+        scheduler.advance(Duration.ofSeconds(1));
+        assertThat(get(run)).contains("default!");
+
+        CompactChain<String, String> failing = CompactChain.<String>builder()
+            .withScheduler(scheduler)
+            .thenStageIf(s -> never)
+            .withTimeout(Duration.ofMinutes(1))
+            .build();
+        run = failing.start("x", Runnable::run);
+        scheduler.advance(Duration.ofMinutes(1));
+        try {
+            get(run);
+            Assert.fail("should have timed out");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+        }
+
+        // a late result from the timed out stage is ignored
+        never.complete(Optional.of("late"));
+        assertThat(run.toCompletionStage().toCompletableFuture().isCompletedExceptionally()).isTrue();
+        assertThat(scheduler.getPendingCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testTimeoutWhileQueued() throws Exception {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        Queue<Runnable> queue = new ArrayDeque<>();
+        List<String> inputs = new ArrayList<>();
+        CompletableFuture<Optional<String>> second = new CompletableFuture<>();
+        CompactRun<String> run = CompactChain.<String>builder()
+            .withScheduler(scheduler)
+            .thenIf(s -> Optional.of("first " + s))
+            .withTimeout(Duration.ofMinutes(1), () -> "default")
+            .thenStageIf(s -> {
+                inputs.add(s);
+                return second;
+            })
+            .build()
+            .start("x", queue::add);
+
+        // the timer fires while the first stage is still waiting for a thread
+        scheduler.advance(Duration.ofMinutes(1));
+        assertThat(queue).hasSize(2);
+        Runnable stale = queue.remove();
+        queue.remove().run();   // timeout - submits the second stage
+        stale.run();
+        while ( !queue.isEmpty() ) {
+            queue.remove().run();
+        }
+
+        assertThat(inputs).containsExactly("default");
+        second.complete(Optional.of("done"));
+        assertThat(get(run)).contains("done");
+    }
+
+    @Test
+    public void testNullValues() throws Exception {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        CompactRun<String> nullDefault = CompactChain.<String>builder()
+            .withScheduler(scheduler)
+            .thenStageIf(s -> new CompletableFuture<Optional<String>>())
+            .withTimeout(Duration.ofMinutes(1), () -> null)
+            .build()
+            .start("x", Runnable::run);
+        scheduler.advance(Duration.ofMinutes(1));
+        assertFailedWithNullValue(nullDefault);
+
+        CompactRun<String> nullOptional = CompactChain.<String>builder()
+            .thenStageIf(s -> CompletableFuture.<Optional<String>>completedFuture(null))
+            .build()
+            .start("x", Runnable::run);
+        assertFailedWithNullValue(nullOptional);
+    }
+
+    private void assertFailedWithNullValue(CompactRun<String> run) throws Exception {
+        assertThat(run.isDone()).isTrue();
+        try {
+            get(run);
+            Assert.fail("should have failed");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).hasMessage("Stages does not support null values");
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        CompletableFuture<Optional<String>> never = new CompletableFuture<>();
+        CompactRun<String> run = CompactChain.<String>builder()
+            .thenStageIf(s -> never)
+            .build()
+            .start("x", executor);
+        assertThat(run.cancel()).isTrue();
+        assertThat(run.cancel()).isFalse();
+        assertThat(run.isDone()).isTrue();
+        try {
+            get(run);
+            Assert.fail("should have been canceled");
+        } catch (CancellationException ignore) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIntermediateResultsReleased() throws Exception {
+        CompletableFuture<Optional<String>> waiting = new CompletableFuture<>();
+        List<WeakReference<byte[]>> intermediate = new CopyOnWriteArrayList<>();
+        CompactRun<String> run = CompactChain.<String>builder()
+            .thenIf(s -> {
+                byte[] large = new byte[1024 * 1024];
+                intermediate.add(new WeakReference<>(large));
+                return Optional.of(large);
+            })
+            .thenStageIf(bytes -> waiting)   // the run now waits on "I/O"
+            .build()
+            .start("x", executor);
+        for ( int i = 0; (i < 100) && (intermediate.isEmpty() || (intermediate.get(0).get() != null)); ++i ) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertThat(intermediate).hasSize(1);
+        assertThat(intermediate.get(0).get()).isNull();
+        assertThat(run.isDone()).isFalse();
+        waiting.complete(Optional.of("done"));
+        assertThat(get(run)).contains("done");
+    }
+
+    private static <T> Optional<T> get(CompactRun<T> run) throws Exception {
+        return run.toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+}
@@ -15,18 +15,31 @@
  */
 package io.soabase.stages;
 
+import io.soabase.stages.context.ContextPropagation;
+import io.soabase.stages.time.Scheduler;
+import io.soabase.stages.time.VirtualScheduler;
 import io.soabase.stages.tracing.Cancelable;
+import io.soabase.stages.tracing.TailSamplingTracing;
+import io.soabase.stages.tracing.Tracing;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -221,6 +234,845 @@ public class TestStaged {
         }
     }
 
+    @Test
+    public void testScopeJoin() throws Exception {
+        try ( StagedScope scope = new StagedScope() ) {
+            CountDownLatch latch = new CountDownLatch(1);
+            StagedFuture<String> quick = scope.async(executor)
+                .thenIf(() -> Optional.of("1"));
+            StagedFuture<String> slow = scope.async(executor)
+                .thenIf(() -> {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    }
+                    return Optional.of("2");
+                })
+                .thenIf(s -> Optional.of("3"));
+
+            assertThat(scope.joinAny(Duration.ofSeconds(5))).isTrue();
+            assertThat(quick.unwrap().toCompletableFuture().isDone()).isTrue();
+            assertThat(scope.joinAll(Duration.ofMillis(100))).isFalse();
+            // the quick chain was already reported - joinAny() waits for the next completion
+            assertThat(scope.joinAny(Duration.ofMillis(100))).isFalse();
+
+            latch.countDown();
+            assertThat(scope.joinAny(Duration.ofSeconds(5))).isTrue();
+            assertThat(scope.joinAll(Duration.ofSeconds(5))).isTrue();
+            assertThat(complete(slow)).contains("3");
+        }
+    }
+
+    @Test
+    public void testScopeChainIdleBetweenStages() throws Exception {
+        try ( StagedScope scope = new StagedScope() ) {
+            // the first stage completes before the second is added - the chain has not completed
+            StagedFuture<String> first = scope.sync().thenIf(() -> Optional.of("1"));
+            CompletableFuture<Optional<String>> second = new CompletableFuture<>();
+            StagedFuture<String> chain = first.thenStageIf(s -> second);
+
+            assertThat(scope.joinAny(Duration.ofMillis(100))).isFalse();
+            assertThat(scope.joinAll(Duration.ofMillis(100))).isFalse();
+
+            second.complete(Optional.of("2"));
+            assertThat(scope.joinAny(Duration.ofSeconds(5))).isTrue();
+            assertThat(scope.joinAll(Duration.ofSeconds(5))).isTrue();
+            assertThat(complete(chain)).contains("2");
+        }
+    }
+
+    @Test
+    public void testScopeReleasesIdleChains() throws Exception {
+        try ( StagedScope scope = new StagedScope() ) {
+            WeakReference<Tracing> released = startAndComplete(scope);
+            for ( int i = 0; (i < 100) && (released.get() != null); ++i ) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertThat(released.get()).isNull();
+            assertThat(scope.joinAny(Duration.ofSeconds(5))).isTrue();
+        }
+    }
+
+    private WeakReference<Tracing> startAndComplete(StagedScope scope) throws Exception {
+        Tracing chainTracing = new TestTracing();
+        assertThat(complete(scope.async(executor, chainTracing).thenIf(() -> Optional.of("1")))).contains("1");
+        return new WeakReference<>(chainTracing);
+    }
+
+    @Test
+    public void testScopeCancel() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicBoolean wasInterrupted = new AtomicBoolean(false);
+        AtomicBoolean ranNext = new AtomicBoolean(false);
+        StagedFuture<String> staged;
+        try ( StagedScope scope = new StagedScope() ) {
+            staged = scope.async(executor, tracing)
+                .thenIf(() -> {
+                    latch.countDown();
+                    try {
+                        return hangingWorker("1");
+                    } catch (RuntimeException e) {
+                        wasInterrupted.set(Thread.currentThread().isInterrupted());
+                        throw e;
+                    }
+                }).withTimeout(Duration.ofMinutes(1))
+                .thenIf(s -> {
+                    ranNext.set(true);
+                    return Optional.of("2");
+                });
+
+            latch.await();
+        }
+
+        try {
+            complete(staged);
+            Assert.fail("Should have thrown");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(CancellationException.class);
+        } catch (CancellationException e) {
+            // expected
+        }
+        assertThat(ranNext.get()).isFalse();
+    }
+
+    @Test
+    public void testAllOf() throws Exception {
+        List<StagedFuture<Integer>> futures = new ArrayList<>();
+        for ( int i = 0; i < 10; ++i ) {
+            int value = i;
+            futures.add(StagedFuture.async(executor).thenIf(() -> Optional.of(value)));
+        }
+        Optional<List<Integer>> all = complete(StagedFuture.allOf(futures));
+        assertThat(all).isPresent();
+        //noinspection ConstantConditions
+        assertThat(all.get()).containsExactly(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+
+        futures.add(StagedFuture.async(executor).thenIf(Optional::empty));
+        assertThat(complete(StagedFuture.allOf(futures))).isEmpty();
+
+        CountDownLatch neverCompletes = new CountDownLatch(1);
+        List<StagedFuture<Integer>> withFailure = Arrays.asList(
+            StagedFuture.async(executor).thenIf(() -> {
+                try {
+                    neverCompletes.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Optional.of(1);
+            }),
+            StagedFuture.async(executor).thenIf(() -> {
+                throw new RuntimeException("fail");
+            })
+        );
+        try {
+            complete(StagedFuture.allOf(withFailure));
+            Assert.fail("Should have thrown");
+        } catch (ExecutionException e) {
+            // expected - without waiting for the hung future
+        }
+
+        assertThat(complete(StagedFuture.allOf(Collections.<StagedFuture<Integer>>emptyList()))).contains(Collections.emptyList());
+    }
+
+    @Test
+    public void testAnyOf() throws Exception {
+        List<StagedFuture<String>> futures = Arrays.asList(
+            StagedFuture.async(executor).thenIf(Optional::empty),
+            StagedFuture.async(executor).thenIf(() -> {
+                throw new RuntimeException("fail");
+            }),
+            StagedFuture.async(executor).thenIf(() -> Optional.of("value"))
+        );
+        assertThat(complete(StagedFuture.anyOf(futures).thenIf(s -> Optional.of(s + "!")))).contains("value!");
+
+        List<StagedFuture<String>> aborted = Arrays.asList(
+            StagedFuture.async(executor).thenIf(Optional::empty),
+            StagedFuture.async(executor).thenIf(Optional::empty)
+        );
+        assertThat(complete(StagedFuture.anyOf(aborted))).isEmpty();
+    }
+
+    @Test
+    public void testContextPropagation() throws Exception {
+        ThreadLocal<String> requestId = new ThreadLocal<>();
+        ContextPropagation propagation = ContextPropagation.builder().withThreadLocal(requestId).build();
+
+        requestId.set("request-1");
+        StagedFuture<String> future;
+        try {
+            future = StagedFuture.async(executor).withContextPropagation(propagation)
+                .thenIf(() -> Optional.of(requestId.get()))
+                .thenIf(s -> Optional.of(s + "," + requestId.get()))
+                .whenSucceededYield(s -> s + "," + requestId.get());
+        } finally {
+            requestId.remove();
+        }
+        assertThat(complete(future)).contains("request-1,request-1,request-1");
+
+        // the executor's threads get their own values back
+        Future<String> afterwards = executor.submit(requestId::get);
+        assertThat(afterwards.get(5, TimeUnit.SECONDS)).isNull();
+
+        // a wrapped task reuses its restore storage - each run restores the running thread's own value
+        requestId.set("request-2");
+        List<String> seen = new ArrayList<>();
+        Runnable[] task = new Runnable[1];
+        try {
+            task[0] = propagation.capture().wrap(() -> {
+                seen.add(requestId.get());
+                if ( seen.size() == 2 ) {
+                    requestId.set("changed");
+                    task[0].run();  // nested run while the storage is in use
+                    seen.add(requestId.get());
+                }
+            });
+        } finally {
+            requestId.remove();
+        }
+        for ( String value : Arrays.asList("a", "b") ) {
+            requestId.set(value);
+            task[0].run();
+            assertThat(requestId.get()).isEqualTo(value);
+        }
+        requestId.remove();
+        assertThat(seen).containsExactly("request-2", "request-2", "request-2", "changed");
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        RateLimiter limiter = new RateLimiter(20, 1);
+        long start = System.nanoTime();
+        List<StagedFuture<String>> futures = new ArrayList<>();
+        for ( int i = 0; i < 5; ++i ) {
+            String value = Integer.toString(i);
+            futures.add(StagedFuture.async(executor)
+                .thenIf(() -> Optional.of(value))
+                .thenRateLimit(limiter, Duration.ofSeconds(5))
+                .thenIf(Optional::of));
+        }
+        assertThat(complete(StagedFuture.allOf(futures))).contains(Arrays.asList("0", "1", "2", "3", "4"));
+        // 1 immediate permit + 4 permits 50ms apart
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isGreaterThanOrEqualTo(Duration.ofMillis(190));
+
+        AtomicBoolean aborted = new AtomicBoolean();
+        StagedFuture<String> future = StagedFuture.sync()
+            .thenIf(() -> Optional.of("x"))
+            .thenRateLimit(new RateLimiter(1, 1), Duration.ZERO)
+            .thenRateLimit(new RateLimiter(0.1, 1), Duration.ZERO);
+        assertThat(complete(future)).contains("x");
+        RateLimiter exhausted = new RateLimiter(0.1, 1);
+        assertThat(exhausted.tryAcquire()).isTrue();
+        future = StagedFuture.sync()
+            .thenIf(() -> Optional.of("x"))
+            .thenRateLimit(exhausted, Duration.ofMillis(10))
+            .whenAborted(() -> aborted.set(true));
+        assertThat(complete(future)).isEmpty();
+        assertThat(aborted.get()).isTrue();
+    }
+
+    @Test
+    public void testAdmission() throws Exception {
+        AdmissionController controller = new AdmissionController(Duration.ofMillis(5), Duration.ofMillis(20));
+        assertThat(complete(StagedFuture.async(executor).withAdmission(controller).thenIf(() -> Optional.of("1")))).contains("1");
+
+        // queue time above target for longer than the interval
+        long slow = TimeUnit.MILLISECONDS.toNanos(50);
+        controller.record(slow);
+        Thread.sleep(30);
+        controller.record(slow);
+        assertThat(controller.isOverloaded()).isTrue();
+
+        AtomicBoolean ran = new AtomicBoolean();
+        StagedFuture<String> rejected = StagedFuture.async(executor).withAdmission(controller)
+            .thenIf(() -> {
+                ran.set(true);
+                return Optional.of("2");
+            });
+        try {
+            complete(rejected);
+            Assert.fail("should have been rejected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(Aborted.OverloadException.class);
+        }
+        assertThat(ran.get()).isFalse();
+        assertThat(controller.getRejectedCount()).isEqualTo(1);
+
+        // queue time back under target
+        controller.record(0);
+        assertThat(controller.isOverloaded()).isFalse();
+        assertThat(complete(StagedFuture.async(executor).withAdmission(controller).thenIf(() -> Optional.of("3")))).contains("3");
+        assertThat(controller.getAdmittedCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        AtomicReference<String> defaultThread = new AtomicReference<>();
+        StagedFuture<String> timeoutDefault = StagedFuture.sync()
+            .thenIf(() -> Optional.of("1"))
+            .thenStageIf(s -> new CompletableFuture<Optional<String>>())  // never completes
+            .withTimeout(Duration.ofMillis(10), () -> {
+                defaultThread.set(Thread.currentThread().getName());
+                return "default";
+            });
+        assertThat(complete(timeoutDefault)).contains("default");
+        assertThat(defaultThread.get()).isNotEqualTo("Timeout.FailAfter thread");
+
+        AtomicReference<Throwable> cause = new AtomicReference<>();
+        StagedFuture<String> fallback = StagedFuture.async(executor, tracing)
+            .thenIf(() -> failureWorker("1"))
+            .thenIf(s -> Optional.of("not called"))
+            .withFallback(e -> {
+                cause.set(e);
+                return CompletableFuture.completedFuture(Optional.of("fallback"));
+            });
+        assertThat(complete(fallback)).contains("fallback");
+        assertThat(cause.get()).isInstanceOf(RuntimeException.class).hasMessage("1");
+
+        StagedFuture<String> timeoutFallback = StagedFuture.sync()
+            .thenStageIf(new CompletableFuture<Optional<String>>())
+            .withTimeout(Duration.ofMillis(10))
+            .withFallback(e -> CompletableFuture.completedFuture(Optional.of(e.getClass().getSimpleName() + "@" + Thread.currentThread().getName())));
+        assertThat(complete(timeoutFallback).orElse("")).startsWith("TimeoutException@").doesNotContain("Timeout.FailAfter thread");
+
+        StagedFuture<String> succeeded = StagedFuture.sync()
+            .thenIf(() -> Optional.of("ok"))
+            .withFallback(e -> CompletableFuture.completedFuture(Optional.of("fallback")));
+        assertThat(complete(succeeded)).contains("ok");
+    }
+
+    @Test
+    public void testVirtualTime() throws Exception {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        StagedFuture<String> timedOut = StagedFuture.sync().withScheduler(scheduler)
+            .thenStageIf(new CompletableFuture<Optional<String>>())  // never completes
+            .withTimeout(Duration.ofHours(1), () -> "default");
+        scheduler.advance(Duration.ofMinutes(59));
+        assertThat(timedOut.unwrap().toCompletableFuture().isDone()).isFalse();
+        scheduler.advance(Duration.ofMinutes(1));
+        assertThat(timedOut.unwrap().toCompletableFuture().getNow(null)).contains("default");
+
+        RateLimiter limiter = new RateLimiter(1, 1, scheduler);
+        List<StagedFuture<Integer>> futures = new ArrayList<>();
+        for ( int i = 0; i < 3; ++i ) {
+            int value = i;
+            futures.add(StagedFuture.sync().withScheduler(scheduler)
+                .thenIf(() -> Optional.of(value))
+                .thenRateLimit(limiter, Duration.ofMinutes(1)));
+        }
+        assertThat(futures.get(0).unwrap().toCompletableFuture().isDone()).isTrue();
+        assertThat(futures.get(2).unwrap().toCompletableFuture().isDone()).isFalse();
+        long start = scheduler.nanoTime();
+        scheduler.runUntilIdle();
+        assertThat(Duration.ofNanos(scheduler.nanoTime() - start)).isEqualTo(Duration.ofSeconds(2));
+        assertThat(complete(StagedFuture.allOf(futures))).contains(Arrays.asList(0, 1, 2));
+        assertThat(scheduler.getPendingCount()).isEqualTo(0);
+
+        // canceled timers are skipped (and purged) rather than removed one by one
+        AtomicInteger ran = new AtomicInteger();
+        List<Scheduler.Task> timers = new ArrayList<>();
+        for ( int i = 0; i < 100_000; ++i ) {
+            timers.add(scheduler.schedule(ran::incrementAndGet, Duration.ofSeconds(1 + (i % 100))));
+        }
+        assertThat(scheduler.getPendingCount()).isEqualTo(100_000);
+        for ( int i = 0; i < timers.size(); i += 2 ) {
+            timers.get(i).cancel();
+        }
+        timers.get(0).cancel();     // canceling twice is harmless
+        assertThat(scheduler.getPendingCount()).isEqualTo(50_000);
+        scheduler.runUntilIdle();
+        assertThat(ran.get()).isEqualTo(50_000);
+        assertThat(scheduler.getPendingCount()).isEqualTo(0);
+        timers.get(1).cancel();     // canceling after running is harmless
+        assertThat(scheduler.getPendingCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testHistograms() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for ( long i = 1; i <= 10_000; ++i ) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        assertThat(histogram.getCount()).isEqualTo(10_000);
+        assertThat(histogram.getMax()).isEqualTo(Duration.ofMillis(10));
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(Duration.ofMillis(10));
+        assertWithin(histogram.getValueAtPercentile(50), Duration.ofMillis(5));
+        assertWithin(histogram.getValueAtPercentile(99), Duration.ofNanos(9_900_000));
+        assertWithin(histogram.getMean(), Duration.ofNanos(5_000_500));
+
+        StripedHistogram striped = new StripedHistogram();
+        for ( long i = 1; i <= 1000; ++i ) {
+            striped.record(i);
+        }
+        assertThat(striped.getCount()).isEqualTo(1000);
+        assertThat(striped.getValueAtPercentile(100)).isEqualTo(Duration.ofNanos(1023));
+
+        for ( int subBucketBits : new int[]{0, 3, 6} ) {
+            for ( long value : new long[]{0, 1, 127, 128, 129, 1000, 123_456_789, Long.MAX_VALUE} ) {
+                int index = LogLinearBuckets.indexOf(value, subBucketBits);
+                assertThat(index).isLessThan(LogLinearBuckets.bucketQty(subBucketBits));
+                assertThat(LogLinearBuckets.highestValueOf(index, subBucketBits)).isGreaterThanOrEqualTo(value);
+                assertThat(LogLinearBuckets.indexOf(LogLinearBuckets.highestValueOf(index, subBucketBits), subBucketBits)).isEqualTo(index);
+            }
+        }
+        // one bucket per power of two - bucket N counts 2^(N-1) to 2^N - 1
+        assertThat(LogLinearBuckets.indexOf(-1, 0)).isEqualTo(0);
+        assertThat(LogLinearBuckets.indexOf(1L << 40, 0)).isEqualTo(41);
+        assertThat(LogLinearBuckets.highestValueOf(41, 0)).isEqualTo((1L << 41) - 1);
+    }
+
+    @Test
+    public void testAdaptiveTimeout() throws Exception {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        LatencyTracker tracker = new LatencyTracker(Duration.ofMinutes(1), 6, scheduler);
+
+        // no latencies yet - the ceiling is used
+        StagedFuture<String> noHistory = StagedFuture.sync().withScheduler(scheduler)
+            .thenStageIf(new CompletableFuture<Optional<String>>())  // never completes
+            .withAdaptiveTimeout(tracker, 99, 2.0, Duration.ofMillis(10), Duration.ofSeconds(10), () -> "default");
+        scheduler.advance(Duration.ofMillis(9999));
+        assertThat(noHistory.unwrap().toCompletableFuture().isDone()).isFalse();
+        scheduler.advance(Duration.ofMillis(1));
+        assertThat(noHistory.unwrap().toCompletableFuture().getNow(null)).contains("default");
+        // the timeout is recorded at the time it elapsed
+        assertThat(tracker.getCount()).isEqualTo(1);
+        assertThat(tracker.getValueAtPercentile(100)).isGreaterThanOrEqualTo(Duration.ofSeconds(10));
+
+        // completed stages are recorded
+        CompletableFuture<Optional<String>> stage = new CompletableFuture<>();
+        StagedFuture<String> recorded = StagedFuture.sync().withScheduler(scheduler)
+            .thenStageIf(stage)
+            .withAdaptiveTimeout(tracker, 99, 2.0, Duration.ofMillis(10), Duration.ofSeconds(10));
+        scheduler.advance(Duration.ofMillis(100));
+        stage.complete(Optional.of("done"));
+        assertThat(complete(recorded)).contains("done");
+        assertThat(tracker.getCount()).isEqualTo(2);
+
+        // failures are recorded, aborted stages are not
+        CompletableFuture<Optional<String>> failing = new CompletableFuture<>();
+        StagedFuture<String> failed = StagedFuture.sync().withScheduler(scheduler)
+            .thenStageIf(failing)
+            .withAdaptiveTimeout(tracker, 99, 2.0, Duration.ofMillis(10), Duration.ofSeconds(10));
+        scheduler.advance(Duration.ofMillis(100));
+        failing.completeExceptionally(new IOException("backend down"));
+        assertThat(failed.unwrap().toCompletableFuture().isCompletedExceptionally()).isTrue();
+        assertThat(tracker.getCount()).isEqualTo(3);
+        StagedFuture<String> aborted = StagedFuture.sync().withScheduler(scheduler)
+            .thenIf(() -> Optional.<String>empty())
+            .withAdaptiveTimeout(tracker, 99, 2.0, Duration.ofMillis(10), Duration.ofSeconds(10));
+        assertThat(complete(aborted)).isEmpty();
+        assertThat(tracker.getCount()).isEqualTo(3);
+
+        // the percentile is checked even before the tracker has values
+        try {
+            StagedFuture.sync().withScheduler(scheduler)
+                .thenIf(() -> Optional.of("x"))
+                .withAdaptiveTimeout(new LatencyTracker(), 101, 2.0, Duration.ofMillis(10), Duration.ofSeconds(10));
+            Assert.fail("should have rejected the percentile");
+        } catch (IllegalArgumentException ignore) {
+            // expected
+        }
+
+        // p99 of ~100ms times 2
+        for ( int i = 0; i < 99; ++i ) {
+            tracker.record(Duration.ofMillis(100));
+        }
+        StagedFuture<String> adaptive = StagedFuture.sync().withScheduler(scheduler)
+            .thenStageIf(new CompletableFuture<Optional<String>>())
+            .withAdaptiveTimeout(tracker, 99, 2.0, Duration.ofMillis(10), Duration.ofSeconds(10), () -> "default");
+        scheduler.advance(Duration.ofMillis(199));
+        assertThat(adaptive.unwrap().toCompletableFuture().isDone()).isFalse();
+        scheduler.advance(Duration.ofMillis(30));
+        assertThat(adaptive.unwrap().toCompletableFuture().getNow(null)).contains("default");
+
+        // bounded by the floor
+        StagedFuture<String> floored = StagedFuture.sync().withScheduler(scheduler)
+            .thenStageIf(new CompletableFuture<Optional<String>>())
+            .withAdaptiveTimeout(tracker, 50, 0.1, Duration.ofMillis(50), Duration.ofSeconds(10), () -> "default");
+        scheduler.advance(Duration.ofMillis(49));
+        assertThat(floored.unwrap().toCompletableFuture().isDone()).isFalse();
+        scheduler.advance(Duration.ofMillis(1));
+        assertThat(floored.unwrap().toCompletableFuture().getNow(null)).contains("default");
+
+        // latencies expire with the window
+        scheduler.advance(Duration.ofMinutes(2));
+        assertThat(tracker.getCount()).isEqualTo(0);
+        assertThat(tracker.getValueAtPercentile(99)).isEqualTo(Duration.ZERO);
+        assertThat(tracker.nanosAtPercentile(99)).isEqualTo(-1);
+    }
+
+    @Test
+    public void testBlocking() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            // every task waits for all of them to be running - only possible if the pool compensates
+            CountDownLatch running = new CountDownLatch(4);
+            List<StagedFuture<String>> futures = new ArrayList<>();
+            for ( int i = 0; i < 2; ++i ) {
+                futures.add(StagedFuture.async(pool)
+                    .thenIf(() -> Optional.of("x"))
+                    .thenIfBlocking(s -> {
+                        running.countDown();
+                        await(running);
+                        return Optional.of(s);
+                    }));
+                futures.add(StagedFuture.async(pool).withBlocking()
+                    .thenIf(() -> {
+                        running.countDown();
+                        await(running);
+                        return Optional.of("y");
+                    }));
+            }
+            assertThat(complete(StagedFuture.allOf(futures))).contains(Arrays.asList("x", "y", "x", "y"));
+        } finally {
+            pool.shutdownNow();
+        }
+
+        List<Duration> detected = new CopyOnWriteArrayList<>();
+        Tracing detector = new Tracing() {
+            @Override
+            public void startProc() {
+            }
+
+            @Override
+            public void endProcSuccess(Duration duration) {
+            }
+
+            @Override
+            public void endProcFail(Throwable e, Duration duration) {
+            }
+
+            @Override
+            public void blockingDetected(Duration duration, Duration cpuTime) {
+                detected.add(duration);
+            }
+        };
+        StagedFuture<String> future = StagedFuture.async(executor, detector)
+            .thenIf(() -> {
+                sleep(50);
+                return Optional.of("slept");
+            })
+            .thenIfBlocking(s -> {
+                sleep(50);
+                return Optional.of(s);
+            });
+        assertThat(complete(future)).contains("slept");
+        assertThat(detected).hasSize(1);
+        assertThat(detected.get(0)).isGreaterThanOrEqualTo(Duration.ofMillis(50));
+    }
+
+    @Test
+    public void testRejectionPolicy() throws Exception {
+        try {
+            complete(StagedFuture.async(rejecting(1)).thenIf(() -> Optional.of("x")));
+            Assert.fail("should have been rejected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(RejectedExecutionException.class);
+        }
+
+        RejectionPolicy abort = RejectionPolicy.abort();
+        StagedFuture<String> aborted = StagedFuture.async(rejecting(1)).withRejectionPolicy(abort)
+            .thenIf(() -> Optional.of("x"));
+        try {
+            complete(aborted);
+            Assert.fail("should have been rejected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(Aborted.OverloadException.class);
+        }
+        assertThat(abort.getRejectedCount()).isEqualTo(1);
+        assertThat(abort.getOverloadedCount()).isEqualTo(1);
+
+        RejectionPolicy callerRuns = RejectionPolicy.callerRuns();
+        String thisThread = Thread.currentThread().getName();
+        StagedFuture<String> inline = StagedFuture.async(rejecting(1)).withRejectionPolicy(callerRuns)
+            .thenIf(() -> Optional.of(Thread.currentThread().getName()));
+        assertThat(complete(inline)).contains(thisThread);
+        assertThat(callerRuns.getRejectedCount()).isEqualTo(1);
+
+        VirtualScheduler scheduler = new VirtualScheduler();
+        RejectionPolicy retry = RejectionPolicy.retry(Duration.ofMillis(10), Duration.ofMillis(15), 4);
+        StagedFuture<String> retried = StagedFuture.async(rejecting(3)).withScheduler(scheduler).withRejectionPolicy(retry)
+            .thenIf(() -> Optional.of("x"));
+        scheduler.advance(Duration.ofMillis(10));
+        scheduler.advance(Duration.ofMillis(15));
+        assertThat(retried.unwrap().toCompletableFuture().isDone()).isFalse();
+        scheduler.advance(Duration.ofMillis(15));   // backoff capped at 15ms
+        assertThat(complete(retried)).contains("x");
+        assertThat(retry.getRejectedCount()).isEqualTo(3);
+
+        StagedFuture<String> exhausted = StagedFuture.async(rejecting(4)).withScheduler(scheduler).withRejectionPolicy(retry)
+            .thenIf(() -> Optional.of("x"));
+        scheduler.runUntilIdle();
+        try {
+            complete(exhausted);
+            Assert.fail("should have been rejected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(Aborted.OverloadException.class);
+        }
+        assertThat(retry.getRejectedCount()).isEqualTo(7);
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        List<String> events = new CopyOnWriteArrayList<>();
+        AtomicBoolean closed = new AtomicBoolean();
+        StagedFuture<Integer> future = StagedFuture.async(executor)
+            .thenIf(() -> Optional.of(3))
+            .thenStreamIf(count -> IntStream.range(0, count).peek(i -> events.add("produce " + i)).boxed().onClose(() -> closed.set(true)))
+            .thenEachIf(i -> {
+                events.add("process " + i);
+                return Optional.of(i * 10);
+            })
+            .thenCollect(Collectors.summingInt(i -> i));
+        assertThat(complete(future)).contains(30);
+        // each element is processed as soon as it's produced
+        assertThat(events).containsExactly("produce 0", "process 0", "produce 1", "process 1", "produce 2", "process 2");
+        assertThat(closed.get()).isTrue();
+
+        AtomicBoolean aborted = new AtomicBoolean();
+        StagedFuture<List<Integer>> abortedFuture = StagedFuture.async(executor)
+            .thenIf(() -> Optional.of(10))
+            .thenStreamIf(count -> IntStream.range(0, count).boxed())
+            .thenEachIf(i -> (i < 5) ? Optional.of(i) : Optional.<Integer>empty())
+            .thenCollect(Collectors.toList())
+            .whenAborted(() -> aborted.set(true));
+        assertThat(complete(abortedFuture)).isEmpty();
+        assertThat(aborted.get()).isTrue();
+    }
+
+    @Test
+    public void testBranchZip() throws Exception {
+        AtomicInteger upstreamCount = new AtomicInteger();
+        CountDownLatch bothRunning = new CountDownLatch(2);
+        StagedFuture<String> upstream = StagedFuture.async(executor)
+            .thenIf(() -> {
+                upstreamCount.incrementAndGet();
+                return Optional.of("user");
+            });
+        StagedFuture<String> orders = upstream.thenIf(s -> {
+            bothRunning.countDown();
+            await(bothRunning);     // only completes if the branches run in parallel
+            return Optional.of(s + "-orders");
+        });
+        StagedFuture<Integer> prefs = upstream.thenIf(s -> {
+            bothRunning.countDown();
+            await(bothRunning);
+            return Optional.of(s.length());
+        });
+        assertThat(complete(StagedFuture.zip(orders, prefs, (o, p) -> o + ":" + p))).contains("user-orders:4");
+        assertThat(upstreamCount.get()).isEqualTo(1);
+
+        StagedFuture<String> aborted = upstream.thenIf(s -> Optional.empty());
+        StagedFuture<String> hanging = upstream.thenStageIf(s -> new CompletableFuture<Optional<String>>());
+        assertThat(complete(StagedFuture.zip(aborted, hanging, (a, b) -> a + b))).isEmpty();
+
+        StagedFuture<String> zipIf = StagedFuture.zipIf(orders, prefs, (o, p) -> (p > 10) ? Optional.of(o) : Optional.empty());
+        assertThat(complete(zipIf)).isEmpty();
+    }
+
+    @Test
+    public void testQueueWait() throws Exception {
+        List<Duration> queueWaits = new CopyOnWriteArrayList<>();
+        List<Duration> durations = new CopyOnWriteArrayList<>();
+        Tracing queueTracing = new Tracing() {
+            @Override
+            public void startProc() {
+                Assert.fail("startProc(Duration) should be called");
+            }
+
+            @Override
+            public void startProc(Duration queueWait) {
+                queueWaits.add(queueWait);
+            }
+
+            @Override
+            public void endProcSuccess(Duration duration) {
+                durations.add(duration);
+            }
+
+            @Override
+            public void endProcFail(Throwable e, Duration duration) {
+                durations.add(duration);
+            }
+        };
+
+        ExecutorService singleThread = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch blocker = new CountDownLatch(1);
+            singleThread.execute(() -> await(blocker));
+            StagedFuture<String> future = StagedFuture.async(singleThread, queueTracing)
+                .thenIf(() -> Optional.of("1"))
+                .thenIf(s -> Optional.of(s + "2"));
+            Thread.sleep(100);
+            blocker.countDown();
+            assertThat(complete(future)).contains("12");
+        } finally {
+            singleThread.shutdownNow();
+        }
+
+        assertThat(queueWaits).hasSize(2);
+        assertThat(queueWaits.get(0)).isGreaterThanOrEqualTo(Duration.ofMillis(100));
+        assertThat(durations).hasSize(2).allMatch(duration -> duration.compareTo(Duration.ofMillis(100)) < 0);
+    }
+
+    @Test
+    public void testTailSampling() throws Exception {
+        TailSamplingTracing fast = new TailSamplingTracing(tracing, Duration.ofSeconds(10));
+        StagedFuture<String> future = StagedFuture.async(executor, fast)
+            .thenIf(() -> Optional.of("1"))
+            .thenIf(s -> Optional.of("2"));
+        assertThat(complete(future)).contains("2");
+        assertThat(fast.isEmitting()).isFalse();
+        assertThat(tracing.getTracing()).isEmpty();
+
+        TailSamplingTracing failing = new TailSamplingTracing(tracing, Duration.ofSeconds(10));
+        StagedFuture<String> failed = StagedFuture.async(executor, failing)
+            .thenIf(() -> Optional.of("1"))
+            .thenIf(s -> {
+                throw new RuntimeException("2");
+            });
+        try {
+            complete(failed);
+            Assert.fail("should have failed");
+        } catch (ExecutionException e) {
+            // expected
+        }
+        // the events buffered before the failure are forwarded too
+        assertThat(tracing.getTracing()).extracting(trace -> trace.status).containsExactly("start", "success", "start", "fail");
+
+        List<String> abortedEvents = new CopyOnWriteArrayList<>();
+        Tracing abortedRecorder = new Tracing() {
+            @Override
+            public void startProc() {
+                abortedEvents.add("start");
+            }
+
+            @Override
+            public void endProcSuccess(Duration duration) {
+                abortedEvents.add("success");
+            }
+
+            @Override
+            public void endProcFail(Throwable e, Duration duration) {
+                abortedEvents.add("fail");
+            }
+
+            @Override
+            public void aborted() {
+                abortedEvents.add("aborted");
+            }
+        };
+        TailSamplingTracing aborted = new TailSamplingTracing(abortedRecorder, Duration.ofSeconds(10));
+        StagedFuture<String> abortedFuture = StagedFuture.async(executor, aborted)
+            .thenIf(() -> Optional.of("1"))
+            .thenIf(s -> Optional.<String>empty());
+        assertThat(complete(abortedFuture)).isEmpty();
+        // an aborted chain is emitted without calling emit()
+        assertThat(aborted.isEmitting()).isTrue();
+        assertThat(abortedEvents).containsExactly("start", "success", "start", "success", "aborted");
+
+        TailSamplingTracing slow = new TailSamplingTracing(new TestTracing(), Duration.ofMillis(10));
+        complete(StagedFuture.async(executor, slow).thenIf(() -> {
+            sleep(20);
+            return Optional.of("slow");
+        }));
+        assertThat(slow.isEmitting()).isTrue();
+
+        assertThat(new TailSamplingTracing(tracing, Duration.ofSeconds(1), 1.0, 8).isEmitting()).isTrue();
+    }
+
+    @Test
+    public void testTailSamplingOrder() throws Exception {
+        AtomicReference<TailSamplingTracing> holder = new AtomicReference<>();
+        AtomicReference<Thread> other = new AtomicReference<>();
+        TestTracing next = new TestTracing() {
+            @Override
+            public void startProc() {
+                super.startProc();
+                if ( other.get() == null ) {
+                    // while the buffer is being replayed, another thread reports an event
+                    Thread thread = new Thread(() -> holder.get().endProcSuccess(Duration.ofMillis(1)));
+                    other.set(thread);
+                    thread.start();
+                    try {
+                        thread.join(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        TailSamplingTracing tailSampling = new TailSamplingTracing(next, Duration.ofSeconds(10));
+        holder.set(tailSampling);
+        tailSampling.startProc();
+        tailSampling.endProcFail(new RuntimeException(), Duration.ofMillis(1));  // emits
+        other.get().join(5000);
+
+        assertThat(next.getTracing()).extracting(trace -> trace.status).containsExactly("start", "fail", "success");
+    }
+
+    @Test
+    public void testLifecycleEvents() throws Exception {
+        List<String> events = new CopyOnWriteArrayList<>();
+        Tracing recorder = new Tracing() {
+            @Override
+            public void startProc() {
+            }
+
+            @Override
+            public void endProcSuccess(Duration duration) {
+            }
+
+            @Override
+            public void endProcFail(Throwable e, Duration duration) {
+            }
+
+            @Override
+            public void timedOut(Duration timeout, boolean usedDefaultValue) {
+                events.add("timedOut-" + usedDefaultValue);
+            }
+
+            @Override
+            public void aborted() {
+                events.add("aborted");
+            }
+
+            @Override
+            public void skipped() {
+                events.add("skipped");
+            }
+
+            @Override
+            public void canceled(boolean mayInterruptIfRunning) {
+                events.add("canceled-" + mayInterruptIfRunning);
+            }
+        };
+
+        complete(StagedFuture.async(executor, recorder)
+            .thenIf(() -> Optional.of("1"))
+            .thenIf(s -> Optional.<String>empty())
+            .thenIf(s -> Optional.of("3"))
+            .thenIf(s -> Optional.of("4")));
+        assertThat(events).containsExactly("aborted", "skipped", "skipped");
+
+        events.clear();
+        complete(StagedFuture.async(executor, recorder)
+            .thenIf(() -> Optional.of("1"))
+            .thenStageIf(s -> new CompletableFuture<Optional<String>>()).withTimeout(Duration.ofMillis(10), () -> "default"));
+        assertThat(events).containsExactly("timedOut-true");
+
+        events.clear();
+        new Cancelable(recorder).cancelChain(false);
+        assertThat(events).containsExactly("canceled-false");
+    }
+
+    private static void assertWithin(Duration actual, Duration expected) {
+        long tolerance = expected.toNanos() / 50;
+        assertThat(actual.toNanos()).isBetween(expected.toNanos() - tolerance, expected.toNanos() + tolerance);
+    }
+
     private <T> Optional<T> complete(StagedFuture<T> stagedFuture) throws Exception {
         return complete(stagedFuture.unwrap());
     }
@@ -229,6 +1081,37 @@ public class TestStaged {
         return stage.toCompletableFuture().get(5, TimeUnit.SECONDS);
     }
 
+    // rejects the first "count" submissions and runs the rest inline
+    private static Executor rejecting(int count) {
+        AtomicInteger remaining = new AtomicInteger(count);
+        return command -> {
+            if ( remaining.getAndDecrement() > 0 ) {
+                throw new RejectedExecutionException("full");
+            }
+            command.run();
+        };
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if ( !latch.await(5, TimeUnit.SECONDS) ) {
+                throw new RuntimeException("Timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
     private Optional<String> worker(String context) {
         TestTracing.setContext(context);
         tracing.resetLastContext(context);
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.checkpoint;
+
+import io.soabase.stages.StagedFuture;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class TestCheckpointJournal {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testResume() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("journal");
+        AtomicInteger loads = new AtomicInteger();
+        AtomicInteger scores = new AtomicInteger();
+        AtomicBoolean crash = new AtomicBoolean(true);
+
+        try ( CheckpointJournal journal = new CheckpointJournal(path) ) {
+            try {
+                run(journal, loads, scores, crash);
+                fail("should have failed");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause()).hasMessage("crash");
+            }
+            assertThat(journal.getIncompleteChains()).containsExactly("report-1");
+            assertThat(journal.getLastStage("report-1")).contains("load");
+        }
+
+        crash.set(false);
+        try ( CheckpointJournal journal = new CheckpointJournal(path) ) {
+            // "restarted" - load isn't run again
+            assertThat(journal.getIncompleteChains()).containsExactly("report-1");
+            assertThat(run(journal, loads, scores, crash)).contains("score of data");
+            assertThat(loads.get()).isEqualTo(1);
+            assertThat(scores.get()).isEqualTo(2);
+            assertThat(journal.getIncompleteChains()).isEmpty();
+        }
+    }
+
+    @Test
+    public void testTornWrite() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("journal");
+        long size;
+        try ( CheckpointJournal journal = new CheckpointJournal(path) ) {
+            journal.checkpoint("a", "one", new byte[]{1, 2, 3});
+            journal.checkpoint("a", "two", new byte[]{4, 5, 6});
+            size = journal.getSize();
+        }
+        try ( RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw") ) {
+            // a partially written record: a length but a bad crc and body
+            file.seek(size);
+            file.writeInt(100);
+            file.writeInt(12345);
+            file.write(new byte[]{1, 9, 9, 9});
+        }
+        try ( CheckpointJournal journal = new CheckpointJournal(path) ) {
+            assertThat(journal.getSize()).isEqualTo(size);
+            assertThat(journal.read("a", "two")).containsExactly(4, 5, 6);
+            journal.checkpoint("a", "three", new byte[]{7});
+        }
+        try ( CheckpointJournal journal = new CheckpointJournal(path) ) {
+            assertThat(journal.getLastStage("a")).contains("three");
+            assertThat(journal.read("a", "one")).containsExactly(1, 2, 3);
+        }
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("journal");
+        byte[] payload = new byte[10_000];
+        try ( CheckpointJournal journal = new CheckpointJournal(path) ) {
+            for ( int i = 0; i < 200; ++i ) {   // grows past the initial mapping
+                journal.checkpoint("chain-" + i, "stage", payload);
+                journal.checkpoint("chain-" + i, "stage", payload);    // supersedes the first
+                if ( i != 7 ) {
+                    journal.forChain("chain-" + i).complete();
+                }
+            }
+            assertThat(journal.getGarbageBytes()).isGreaterThan(journal.getSize() - 20_000);
+            journal.compact();
+            assertThat(journal.getGarbageBytes()).isEqualTo(0);
+            assertThat(journal.getSize()).isLessThan(11_000);
+            assertThat(journal.getIncompleteChains()).containsExactly("chain-7");
+            journal.checkpoint("chain-8", "stage", new byte[]{1});
+        }
+        try ( CheckpointJournal journal = new CheckpointJournal(path) ) {
+            assertThat(journal.getIncompleteChains()).containsExactly("chain-7", "chain-8");
+            assertThat(journal.read("chain-7", "stage")).hasSize(payload.length);
+        }
+    }
+
+    private static Optional<String> run(CheckpointJournal journal, AtomicInteger loads, AtomicInteger scores, AtomicBoolean crash) throws Exception {
+        ChainCheckpoints checkpoints = journal.forChain("report-1");
+        StagedFuture<String> future = StagedFuture.sync()
+            .thenIf(checkpoints.initialStage("load", Serializer.string(), () -> {
+                loads.incrementAndGet();
+                return Optional.of("data");
+            }))
+            .thenIf(checkpoints.stage("score", Serializer.string(), data -> {
+                scores.incrementAndGet();
+                if ( crash.get() ) {
+                    throw new RuntimeException("crash");
+                }
+                return Optional.of("score of " + data);
+            }))
+            .whenSucceeded(__ -> checkpoints.complete());
+        return future.unwrap().toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+}
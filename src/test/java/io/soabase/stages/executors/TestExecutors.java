@@ -0,0 +1,248 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.executors;
+
+import io.soabase.stages.StagedFuture;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestExecutors {
+    @Test
+    public void testAffinity() throws Exception {
+        try ( AffinityExecutor executor = StagedExecutors.affinity(4) ) {
+            for ( int i = 0; i < 10; ++i ) {
+                Set<String> threadNames = ConcurrentHashMap.newKeySet();
+                CountDownLatch latch = new CountDownLatch(1);
+                StagedFuture<String> future = StagedFuture.async(executor)
+                    .thenIf(() -> {
+                        await(latch);   // don't complete until the entire chain has been built
+                        return record(threadNames);
+                    })
+                    .thenIf(s -> record(threadNames))
+                    .thenIf(s -> record(threadNames))
+                    .thenIf(s -> record(threadNames));
+                latch.countDown();
+
+                assertThat(future.unwrap().toCompletableFuture().get(5, TimeUnit.SECONDS)).isPresent();
+                assertThat(threadNames).hasSize(1);
+            }
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        try ( DeadlineExecutor executor = StagedExecutors.deadline(1) ) {
+            CountDownLatch blocker = new CountDownLatch(1);
+            CountDownLatch blocked = new CountDownLatch(1);
+            executor.execute(() -> {
+                blocked.countDown();
+                await(blocker);    // hold the only worker so that everything below queues
+            });
+            assertThat(blocked.await(5, TimeUnit.SECONDS)).isTrue();
+
+            List<String> order = new CopyOnWriteArrayList<>();
+            StagedFuture<String> batch = StagedFuture.async(executor)
+                .thenIf(() -> add(order, "batch"));
+            StagedFuture<String> late = StagedFuture.async(executor).withDeadline(Duration.ofSeconds(10))
+                .thenIf(() -> add(order, "late"));
+            StagedFuture<String> early = StagedFuture.async(executor).withDeadline(Duration.ofSeconds(1))
+                .thenIf(() -> add(order, "early"))
+                .thenIf(s -> add(order, "early-continuation"));
+            StagedFuture<String> interactive = StagedFuture.async(executor).withPriority(1)
+                .thenIf(() -> add(order, "interactive"));
+            blocker.countDown();
+
+            for ( StagedFuture<String> future : Arrays.asList(batch, late, early, interactive) ) {
+                assertThat(future.unwrap().toCompletableFuture().get(5, TimeUnit.SECONDS)).isPresent();
+            }
+            // the continuation inherits the chain's deadline so it runs before the later deadline and the batch chain
+            assertThat(order).containsExactly("interactive", "early", "early-continuation", "late", "batch");
+        }
+    }
+
+    @Test
+    public void testDeadlineThroughWrappers() throws Exception {
+        try ( DeadlineExecutor deadline = StagedExecutors.deadline(1) ) {
+            InstrumentedExecutor executor = StagedExecutors.instrumented(StagedExecutors.managedBlocking(deadline));
+            CountDownLatch blocker = new CountDownLatch(1);
+            CountDownLatch blocked = new CountDownLatch(1);
+            deadline.execute(() -> {
+                blocked.countDown();
+                await(blocker);
+            });
+            assertThat(blocked.await(5, TimeUnit.SECONDS)).isTrue();
+
+            List<String> order = new CopyOnWriteArrayList<>();
+            StagedFuture<String> batch = StagedFuture.async(executor)
+                .thenIf(() -> add(order, "batch"));
+            StagedFuture<String> interactive = StagedFuture.async(executor).withPriority(1)
+                .thenIf(() -> add(order, "interactive"));
+            blocker.countDown();
+
+            for ( StagedFuture<String> future : Arrays.asList(batch, interactive) ) {
+                assertThat(future.unwrap().toCompletableFuture().get(5, TimeUnit.SECONDS)).isPresent();
+            }
+            // the wrappers pass the chain's priority through to the deadline executor
+            assertThat(order).containsExactly("interactive", "batch");
+            assertThat(executor.snapshot().getCompletedCount()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void testDeadlineWorkerSurvivesInterrupts() throws Exception {
+        try ( DeadlineExecutor executor = StagedExecutors.deadline(1) ) {
+            List<Thread> worker = new CopyOnWriteArrayList<>();
+            CountDownLatch first = new CountDownLatch(1);
+            executor.execute(() -> {
+                worker.add(Thread.currentThread());
+                Thread.currentThread().interrupt();     // e.g. Cancelable interrupting a task as it finishes
+                first.countDown();
+            });
+            assertThat(first.await(5, TimeUnit.SECONDS)).isTrue();
+
+            // interrupt the worker while it waits for work
+            Thread thread = worker.get(0);
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while ( (thread.getState() != Thread.State.WAITING) && ((System.nanoTime() - end) < 0) ) {
+                Thread.yield();
+            }
+            thread.interrupt();
+
+            CountDownLatch second = new CountDownLatch(1);
+            executor.execute(second::countDown);
+            assertThat(second.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(thread.isAlive()).isTrue();
+        }
+    }
+
+    @Test
+    public void testManyTasks() throws Exception {
+        try ( AffinityExecutor executor = StagedExecutors.affinity(4) ) {
+            int qty = 1000;
+            CountDownLatch latch = new CountDownLatch(qty);
+            for ( int i = 0; i < qty; ++i ) {
+                executor.execute(() -> executor.execute(() -> executor.execute(latch::countDown)));
+            }
+            assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        }
+    }
+
+    @Test
+    public void testStealFromBusyOwner() throws Exception {
+        try ( AffinityExecutor executor = StagedExecutors.affinity(2) ) {
+            for ( int i = 0; i < 5; ++i ) {
+                Thread.sleep(50);   // let the workers go fully idle
+                CountDownLatch stolen = new CountDownLatch(1);
+                CountDownLatch release = new CountDownLatch(1);
+                long[] queuedAt = new long[1];
+                long[] ranAt = new long[1];
+                executor.execute(() -> {
+                    queuedAt[0] = System.nanoTime();
+                    executor.execute(() -> {
+                        ranAt[0] = System.nanoTime();
+                        stolen.countDown();
+                    });
+                    await(release); // the owner stays busy - the follow-up must be stolen
+                });
+                assertThat(stolen.await(5, TimeUnit.SECONDS)).isTrue();
+                release.countDown();
+                assertThat(TimeUnit.NANOSECONDS.toMillis(ranAt[0] - queuedAt[0])).isLessThan(50);
+            }
+        }
+    }
+
+    @Test
+    public void testInstrumented() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            InstrumentedExecutor executor = StagedExecutors.instrumented(pool);
+            InstrumentedExecutor.Snapshot before = executor.snapshot();
+            CountDownLatch blocker = new CountDownLatch(1);
+            CountDownLatch blocked = new CountDownLatch(1);
+            executor.execute(() -> {
+                blocked.countDown();
+                await(blocker);
+            });
+            assertThat(blocked.await(5, TimeUnit.SECONDS)).isTrue();
+
+            List<StagedFuture<String>> futures = new ArrayList<>();
+            for ( int i = 0; i < 3; ++i ) {
+                futures.add(StagedFuture.async(executor).thenIf(() -> Optional.of("x")));
+            }
+            assertThat(executor.getActiveCount()).isEqualTo(1);
+            assertThat(executor.getQueueDepth()).isEqualTo(3);
+            Thread.sleep(10);
+            blocker.countDown();
+
+            for ( StagedFuture<String> future : futures ) {
+                assertThat(future.unwrap().toCompletableFuture().get(5, TimeUnit.SECONDS)).contains("x");
+            }
+            InstrumentedExecutor.Snapshot after = executor.snapshot();
+            assertThat(after.getSubmittedCount()).isEqualTo(4);
+            assertThat(after.getSubmitRate(before)).isGreaterThan(0);
+            assertThat(executor.getWaitTime().getCount()).isEqualTo(4);
+            assertThat(executor.getWaitTime().getValueAtPercentile(100)).isGreaterThanOrEqualTo(Duration.ofMillis(10));
+            assertThat(executor.getRunTime().getValueAtPercentile(0)).isLessThan(Duration.ofMillis(10));
+
+            pool.shutdown();
+            try {
+                executor.execute(() -> {});
+                Assert.fail("should have been rejected");
+            } catch (RejectedExecutionException ignore) {
+                // expected
+            }
+            assertThat(executor.getRejectedCount()).isEqualTo(1);
+            assertThat(executor.snapshot().getSubmittedCount()).isEqualTo(4);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static Optional<String> record(Set<String> threadNames) {
+        threadNames.add(Thread.currentThread().getName());
+        return Optional.of(Thread.currentThread().getName());
+    }
+
+    private static Optional<String> add(List<String> order, String value) {
+        order.add(value);
+        return Optional.of(value);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.jfr;
+
+import io.soabase.stages.StagedFuture;
+import io.soabase.stages.tracing.Cancelable;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestStageEvents {
+    @Test
+    public void testEvents() throws Exception {
+        assertThat(StageEvents.isAvailable()).isTrue();
+
+        List<RecordedEvent> events;
+        Path path = Files.createTempFile("stages", ".jfr");
+        try {
+            try ( Recording recording = new Recording() ) {
+                recording.enable("io.soabase.stages.Stage");
+                recording.enable("io.soabase.stages.Timeout");
+                recording.enable("io.soabase.stages.Aborted");
+                recording.enable("io.soabase.stages.Canceled");
+                recording.start();
+
+                StagedFuture.sync()
+                    .thenIf(() -> Optional.of("1"))
+                    .thenIf(s -> Optional.empty());
+                StagedFuture<String> timeout = StagedFuture.asyncPool()
+                    .thenIf(this::sleep)
+                    .withTimeout(Duration.ofMillis(10), () -> "default");
+                timeout.unwrap().toCompletableFuture().get(5, TimeUnit.SECONDS);
+                new Cancelable().cancelChain(false);
+
+                recording.stop();
+                recording.dump(path);
+            }
+            events = RecordingFile.readAllEvents(path);
+        } finally {
+            Files.deleteIfExists(path);
+        }
+
+        List<String> outcomes = events.stream()
+            .filter(event -> event.getEventType().getName().equals("io.soabase.stages.Stage"))
+            .map(event -> event.getString("outcome"))
+            .collect(Collectors.toList());
+        assertThat(outcomes).contains("SUCCEEDED", "ABORTED");
+        assertThat(events).extracting(event -> event.getEventType().getName())
+            .contains("io.soabase.stages.Timeout", "io.soabase.stages.Aborted", "io.soabase.stages.Canceled");
+    }
+
+    private Optional<String> sleep() {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Optional.of("done");
+    }
+}
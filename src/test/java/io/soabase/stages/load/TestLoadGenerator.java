@@ -0,0 +1,177 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.load;
+
+import io.soabase.stages.RejectionPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestLoadGenerator {
+    @Test
+    public void testServiceTimes() {
+        Random random = new Random(1);
+        ServiceTime exponential = ServiceTime.exponential(Duration.ofMillis(10));
+        long sum = 0;
+        for ( int i = 0; i < 10_000; ++i ) {
+            sum += exponential.nextNanos(random);
+        }
+        assertThat(sum / 10_000).isBetween(TimeUnit.MILLISECONDS.toNanos(9), TimeUnit.MILLISECONDS.toNanos(11));
+
+        ServiceTime uniform = ServiceTime.uniform(Duration.ofMillis(1), Duration.ofMillis(2));
+        for ( int i = 0; i < 1000; ++i ) {
+            assertThat(uniform.nextNanos(random)).isBetween(TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(2));
+        }
+    }
+
+    @Test
+    public void testRun() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            LoadReport report = LoadGenerator.builder()
+                .withRate(200)
+                .withDuration(Duration.ofMillis(250))
+                .withExecutor(executor)
+                .withStage(ServiceTime.fixed(Duration.ofMillis(1)))
+                .withBusyStage(ServiceTime.uniform(Duration.ZERO, Duration.ofMillis(1)))
+                .withTimeout(Duration.ofSeconds(5))
+                .withSeed(1)
+                .build()
+                .run();
+            assertThat(report.getIntendedCount()).isEqualTo(50);
+            assertThat(report.getSucceededCount()).isEqualTo(50);
+            assertThat(report.getLatency().getCount()).isEqualTo(50);
+            assertThat(report.getLatency().getValueAtPercentile(50)).isGreaterThanOrEqualTo(Duration.ofMillis(1));
+            assertThat(report.getThroughput()).isGreaterThan(0);
+            assertThat(report.toString()).contains("p99.9");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCoordinatedOmission() throws Exception {
+        // chains run in the generator's thread so the generator falls behind its schedule
+        LoadReport report = LoadGenerator.builder()
+            .withRate(200)
+            .withDuration(Duration.ofMillis(200))
+            .withExecutor(Runnable::run)
+            .withStage(ServiceTime.fixed(Duration.ofMillis(10)))
+            .build()
+            .run();
+        assertThat(report.getSucceededCount()).isEqualTo(40);
+        // the last chain was due at ~200ms but couldn't start until ~400ms
+        assertThat(report.getLatency().getMax()).isGreaterThan(Duration.ofMillis(150));
+        assertThat(report.getServiceLatency().getValueAtPercentile(90)).isLessThan(Duration.ofMillis(100));
+    }
+
+    @Test
+    public void testMaxOutstanding() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            LoadReport report = LoadGenerator.builder()
+                .withRate(500)
+                .withDuration(Duration.ofMillis(100))
+                .withExecutor(executor)
+                .withStage(ServiceTime.fixed(Duration.ofMillis(200)))
+                .withMaxOutstanding(2)
+                .build()
+                .run();
+            assertThat(report.getSucceededCount()).isEqualTo(2);
+            assertThat(report.getRejectedCount()).isEqualTo(report.getIntendedCount() - 2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExecutorRejections() throws Exception {
+        Executor rejecting = command -> {
+            throw new RejectedExecutionException("full");
+        };
+        LoadReport report = LoadGenerator.builder()
+            .withRate(200)
+            .withDuration(Duration.ofMillis(100))
+            .withExecutor(rejecting)
+            .withStage(ServiceTime.fixed(Duration.ofMillis(1)))
+            .build()
+            .run();
+        assertThat(report.getRejectedCount()).isEqualTo(report.getIntendedCount());
+        assertThat(report.getFailedCount()).isEqualTo(0);
+        assertThat(report.getLatency().getCount()).isEqualTo(0);
+
+        report = LoadGenerator.builder()
+            .withRate(200)
+            .withDuration(Duration.ofMillis(100))
+            .withExecutor(rejecting)
+            .withChainBuilder(builder -> builder.withRejectionPolicy(RejectionPolicy.abort()))
+            .withStage(ServiceTime.fixed(Duration.ofMillis(1)))
+            .build()
+            .run();
+        assertThat(report.getRejectedCount()).isEqualTo(report.getIntendedCount());
+        assertThat(report.getFailedCount()).isEqualTo(0);
+
+        // a chain rejected after it started is a failure
+        AtomicInteger submits = new AtomicInteger(0);
+        Executor rejectsSecondStage = command -> {
+            if ( (submits.incrementAndGet() % 2) == 0 ) {
+                throw new RejectedExecutionException("full");
+            }
+            command.run();
+        };
+        report = LoadGenerator.builder()
+            .withRate(200)
+            .withDuration(Duration.ofMillis(100))
+            .withExecutor(rejectsSecondStage)
+            .withStage(ServiceTime.fixed(Duration.ZERO))
+            .withStage(ServiceTime.fixed(Duration.ZERO))
+            .build()
+            .run();
+        assertThat(report.getFailedCount()).isEqualTo(report.getIntendedCount());
+        assertThat(report.getRejectedCount()).isEqualTo(0);
+        assertThat(report.getLatency().getCount()).isEqualTo(report.getIntendedCount());
+    }
+
+    @Test
+    public void testRateLimits() throws Exception {
+        try {
+            LoadGenerator.builder().withRate(2e9);
+            Assert.fail("should have rejected the rate");
+        } catch (IllegalArgumentException ignore) {
+            // expected
+        }
+
+        // fractional intervals aren't truncated - 3 chains per 10ns
+        LoadReport report = LoadGenerator.builder()
+            .withRate(3e8)
+            .withDuration(Duration.ofNanos(1000))
+            .withExecutor(Runnable::run)
+            .withStage(ServiceTime.fixed(Duration.ZERO))
+            .build()
+            .run();
+        assertThat(report.getIntendedCount()).isEqualTo(300);
+    }
+}
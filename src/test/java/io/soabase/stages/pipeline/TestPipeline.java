@@ -0,0 +1,144 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.pipeline;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestPipeline {
+    @Test
+    public void testBasic() throws Exception {
+        List<String> results = new CopyOnWriteArrayList<>();
+        AtomicInteger aborts = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        Pipeline<String> pipeline = Pipeline.<String>builder()
+            .thenIf("parse", 2, 10, s -> Optional.of(Integer.parseInt(s)))
+            .thenIf("evens", 3, 5, i -> ((i % 2) == 0) ? Optional.of(i) : Optional.<Integer>empty())
+            .thenIf("format", 1, 5, i -> Optional.of("#" + i))
+            .whenSucceeded(results::add)
+            .whenAborted(aborts::incrementAndGet)
+            .whenFailed(e -> failures.incrementAndGet())
+            .build();
+
+        for ( int i = 0; i < 100; ++i ) {
+            pipeline.submit(Integer.toString(i));
+        }
+        pipeline.submit("not a number");
+        pipeline.shutdown();
+        assertThat(pipeline.awaitTermination(Duration.ofSeconds(5))).isTrue();
+
+        assertThat(results).hasSize(50);
+        assertThat(results).contains("#0", "#50", "#98");
+        assertThat(aborts.get()).isEqualTo(50);
+        assertThat(failures.get()).isEqualTo(1);
+
+        List<PipelineStage> stages = pipeline.getStages();
+        assertThat(stages).hasSize(3);
+        assertThat(stages.get(0).getName()).isEqualTo("parse");
+        assertThat(stages.get(0).getProcessedCount()).isEqualTo(101);
+        assertThat(stages.get(0).getFailedCount()).isEqualTo(1);
+        assertThat(stages.get(1).getProcessedCount()).isEqualTo(100);
+        assertThat(stages.get(1).getAbortedCount()).isEqualTo(50);
+        assertThat(stages.get(2).getProcessedCount()).isEqualTo(50);
+        assertThat(stages.get(2).getQueueDepth()).isEqualTo(0);
+        assertThat(stages.get(2).getThroughput()).isGreaterThan(0);
+    }
+
+    @Test
+    public void testBackPressure() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(1);
+        Pipeline<Integer> pipeline = Pipeline.<Integer>builder()
+            .thenIf("blocked", 1, 2, i -> {
+                started.countDown();
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                return Optional.of(i);
+            })
+            .build();
+
+        pipeline.submit(0);
+        started.await();
+
+        int accepted = 1;
+        while ( pipeline.offer(accepted) ) {
+            ++accepted;
+        }
+        assertThat(accepted).isEqualTo(3);   // queue capacity plus the item being processed
+        assertThat(pipeline.getStages().get(0).getQueueDepth()).isEqualTo(2);
+
+        latch.countDown();
+        pipeline.shutdown();
+        assertThat(pipeline.awaitTermination(Duration.ofSeconds(5))).isTrue();
+        assertThat(pipeline.getStages().get(0).getProcessedCount()).isEqualTo(accepted);
+    }
+
+    @Test
+    public void testWorkerSurvivesMisbehavingTasksAndHandlers() throws Exception {
+        List<Throwable> failures = new CopyOnWriteArrayList<>();
+        AtomicInteger succeeded = new AtomicInteger();
+        Pipeline<Integer> pipeline = Pipeline.<Integer>builder()
+            .thenIf("misbehave", 1, 10, i -> {
+                switch ( i % 4 ) {
+                    case 0:
+                        return Optional.empty();    // the abort handler throws
+
+                    case 1:
+                        return null;
+
+                    case 2:
+                        Thread.currentThread().interrupt();
+                        return Optional.of(i);
+
+                    default:
+                        return Optional.of(i);
+                }
+            })
+            .whenSucceeded(i -> succeeded.incrementAndGet())
+            .whenAborted(() -> {
+                throw new IllegalStateException("abort handler");
+            })
+            .whenFailed(e -> {
+                failures.add(e);
+                throw new IllegalStateException("failure handler");
+            })
+            .build();
+
+        for ( int i = 0; i < 20; ++i ) {
+            pipeline.submit(i);
+        }
+        pipeline.shutdown();
+        assertThat(pipeline.awaitTermination(Duration.ofSeconds(5))).isTrue();
+
+        assertThat(succeeded.get()).isEqualTo(10);
+        assertThat(failures).hasSize(10);
+        assertThat(failures).filteredOn(e -> e instanceof NullPointerException).hasSize(5);
+        assertThat(failures).filteredOn(e -> e instanceof IllegalStateException).hasSize(5);
+        assertThat(pipeline.getStages().get(0).getProcessedCount()).isEqualTo(20);
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.tracing;
+
+import io.soabase.stages.StagedFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestAsyncTracing {
+    private ExecutorService executor;
+    private List<String> lines;
+    private AsyncTraceWriter writer;
+
+    @Before
+    public void setup() {
+        executor = Executors.newCachedThreadPool();
+        lines = new CopyOnWriteArrayList<>();
+        writer = new AsyncTraceWriter(lines::add, 16, Duration.ofMinutes(1));
+    }
+
+    @After
+    public void tearDown() {
+        writer.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testChain() throws Exception {
+        AsyncTracing tracing = writer.newTracing();
+        StagedFuture<String> future = StagedFuture.async(executor, tracing)
+            .thenIf(() -> Optional.of("1"))
+            .thenIf(s -> {
+                throw new IllegalStateException("boom");
+            });
+        future.unwrap().toCompletableFuture().handle((v, e) -> null).get(5, TimeUnit.SECONDS);
+
+        writer.flush();
+        assertThat(lines).hasSize(4);
+        String prefix = " chain (" + tracing.getChainId() + ") ";
+        assertThat(lines.get(0)).contains(prefix + "stage (0)").contains("Start - queued");
+        assertThat(lines.get(1)).contains(prefix + "stage (0)").contains("Success");
+        assertThat(lines.get(2)).contains(prefix + "stage (1)").contains("Start - queued");
+        assertThat(lines.get(3)).contains(prefix + "stage (1)").contains("Failure").contains("IllegalStateException").contains("boom");
+        assertThat(writer.getDroppedCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testConcurrentStages() throws Exception {
+        // fanned out tasks of one chain - each end event is tagged with the task that started on its thread
+        AsyncTracing tracing = writer.newTracing();
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch secondStarted = new CountDownLatch(1);
+        Thread first = new Thread(() -> {
+            tracing.startProc();
+            firstStarted.countDown();
+            try {
+                secondStarted.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Thread.currentThread().setName("renamed");
+            tracing.endProcSuccess(Duration.ofMillis(1));
+        }, "first");
+        first.start();
+        assertThat(firstStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        Thread second = new Thread(tracing::startProc, "second");
+        second.start();
+        second.join();
+        secondStarted.countDown();
+        first.join();
+
+        writer.flush();
+        assertThat(lines).hasSize(3);
+        assertThat(lines.get(0)).contains("stage (0) thread (first) Start");
+        assertThat(lines.get(1)).contains("stage (1) thread (second) Start");
+        // tagged with the first task and the thread's name when the event was recorded
+        assertThat(lines.get(2)).contains("stage (0) thread (renamed) Success");
+    }
+
+    @Test
+    public void testRecordAfterClose() {
+        AsyncTraceWriter closed = new AsyncTraceWriter(line -> {}, 4, Duration.ofMinutes(1));
+        AsyncTracing tracing = closed.newTracing();
+        closed.close();
+        tracing.startProc();
+        assertThat(closed.getDroppedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testDropWhenFull() {
+        List<String> smallLines = new CopyOnWriteArrayList<>();
+        AsyncTraceWriter small = new AsyncTraceWriter(smallLines::add, 2, Duration.ofMinutes(1));
+        try {
+            AsyncTracing tracing = small.newTracing();
+            for ( int i = 0; i < 10; ++i ) {
+                tracing.endProcSuccess(Duration.ofMillis(i));
+            }
+            assertThat(small.getDroppedCount()).isGreaterThan(0);
+        } finally {
+            small.close();
+        }
+        assertThat(smallLines).hasSize(10 - (int)small.getDroppedCount());
+    }
+
+    @Test
+    public void testSinkFailures() {
+        AsyncTraceWriter failing = new AsyncTraceWriter(line -> {
+            throw new Exception("sink");
+        }, 4, Duration.ofMinutes(1));
+        try {
+            failing.newTracing().startProc();
+            failing.flush();
+            assertThat(failing.getSinkFailureCount()).isEqualTo(1);
+        } finally {
+            failing.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2017 Jordan Zimmerman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.soabase.stages.tracing.otlp;
+
+import io.soabase.stages.StagedFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestSpanTracing {
+    private ExecutorService executor;
+    private InMemorySpanExporter exporter;
+    private SpanBatcher batcher;
+
+    @Before
+    public void setup() {
+        executor = Executors.newCachedThreadPool();
+        exporter = new InMemorySpanExporter();
+        batcher = new SpanBatcher(exporter, 16, 4, Duration.ofMinutes(1));
+    }
+
+    @After
+    public void tearDown() {
+        batcher.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testChain() throws Exception {
+        SpanTracing tracing = new SpanTracing(batcher, "test");
+        StagedFuture<String> future = StagedFuture.async(executor, tracing)
+            .thenIf(() -> Optional.of(SpanTracing.currentTraceId()))
+            .thenIf(s -> Optional.of(s + "-2"))
+            .thenIf(s -> {
+                throw new IllegalStateException("boom");
+            });
+        future.unwrap().toCompletableFuture().handle((v, e) -> null).get(5, TimeUnit.SECONDS);
+        batcher.flush();
+
+        List<Span> spans = exporter.getSpans();
+        assertThat(spans).hasSize(3);
+        assertThat(spans).extracting(Span::getTraceId).containsOnly(tracing.getTraceId());
+        assertThat(spans).extracting(Span::getName).containsExactly("test-0", "test-1", "test-2");
+        assertThat(spans.get(0).getParentSpanId()).isNull();
+        assertThat(spans.get(1).getParentSpanId()).isEqualTo(spans.get(0).getSpanId());
+        assertThat(spans.get(2).getParentSpanId()).isEqualTo(spans.get(1).getSpanId());
+        assertThat(spans.get(2).getError()).isInstanceOf(IllegalStateException.class);
+        assertThat(SpanTracing.currentTraceId()).isNull();
+
+        String json = exporter.toOtlpJson();
+        assertThat(json).startsWith("{\"resourceSpans\":");
+        assertThat(json).contains("\"traceId\":\"" + tracing.getTraceId() + "\"");
+        assertThat(json).contains("\"exception.message\"").contains("\"code\":2");
+    }
+
+    @Test
+    public void testDropWhenFull() {
+        SpanBatcher small = new SpanBatcher(exporter, 2, 100, Duration.ofMinutes(1));
+        try {
+            Span span = new Span("t", "s", null, "n", "thread", 0, 1, null);
+            int added = 0;
+            for ( int i = 0; i < 10; ++i ) {
+                if ( small.add(span) ) {
+                    ++added;
+                }
+            }
+            assertThat(added + small.getDroppedCount()).isEqualTo(10);
+            assertThat(small.getDroppedCount()).isGreaterThan(0);
+        } finally {
+            small.close();
+        }
+        assertThat(exporter.getSpans()).hasSize(10 - (int)small.getDroppedCount());
+    }
+}